@@ -30,6 +30,7 @@ import org.gradle.api.tasks.PathSensitive
 import org.gradle.api.tasks.PathSensitivity.ABSOLUTE
 import org.gradle.api.tasks.SourceSetContainer
 import org.gradle.api.tasks.TaskAction
+import org.gradle.jvm.tasks.Jar
 import org.gradle.nativeplatform.platform.internal.DefaultNativePlatform
 import org.gradle.process.ExecOperations
 import java.nio.file.Files
@@ -62,6 +63,11 @@ fun Project.configureJExtractSourceSet(name: String): Provider<Directory> {
       // compileClasspath += sourceSets["jextract"].output
       // runtimeClasspath += sourceSets["jextract"].output
     }
+
+    // ship the bindings with the project classes, so dependent projects (e.g. benchmarks) can use them
+    tasks.named("jar", Jar::class.java) {
+      from(jextractSourceSet.output)
+    }
   }
 
   return srcPath
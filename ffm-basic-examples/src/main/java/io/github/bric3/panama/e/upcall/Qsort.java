@@ -15,7 +15,6 @@ import java.lang.foreign.Linker;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodType;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class Qsort {
@@ -39,24 +38,15 @@ public class Qsort {
             ValueLayout.ADDRESS.withTargetLayout(ValueLayout.JAVA_INT),
             ValueLayout.ADDRESS.withTargetLayout(ValueLayout.JAVA_INT)
     );
-    var compareHandle = MethodHandles.lookup()
-                                     .findStatic(
-                                             Qsort.class,
-                                             "qsortCompare",
-                                             MethodType.methodType(
-                                                     int.class,
-                                                     MemorySegment.class,
-                                                     MemorySegment.class
-                                             )
-                                     );
+    // linked once, reused by every run
+    var compareUpcallSymbol = UpcallRegistry.global().upcallStub(
+            MethodHandles.lookup(),
+            Qsort.class,
+            "qsortCompare",
+            compareDescriptor
+    );
 
     try (Arena arena = Arena.ofConfined()) {
-      var compareUpcallSymbol = LINKER.upcallStub(
-              compareHandle,
-              compareDescriptor,
-              arena
-      );
-
       var nativeArraySegment = arena.allocateFrom(ValueLayout.JAVA_INT, ints);
 
       qsort.invoke(
@@ -70,6 +60,7 @@ public class Qsort {
         System.out.println(i);
       }
     }
+    UpcallRegistry.global().statistics().forEach(System.out::println);
   }
 
   static int qsortCompare(MemorySegment addr1, MemorySegment addr2) {
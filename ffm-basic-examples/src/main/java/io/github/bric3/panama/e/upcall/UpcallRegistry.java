@@ -0,0 +1,293 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.e.upcall;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Links each upcall once, and counts calls and their latency.
+ * <p>
+ * Creating an upcall stub generates and installs code, callback based native APIs
+ * (sort comparators, tree walks, event callbacks) would pay it on every use with
+ * a stub per arena. Stubs are cached per target handle and descriptor, in the global
+ * arena, they live as long as the JVM. Static methods are also cached per class,
+ * name and descriptor, so the handle lookup happens once too; the first lookup
+ * decides access.
+ * <p>
+ * When instrumented, the default, each upcall is wrapped to count it and time it:
+ * <pre><code>
+ * var start = statistics.start();
+ * var result = target(args);
+ * statistics.record(start);
+ * return result;
+ * </code></pre>
+ * Reading the clock costs about as much as a small upcall, so only one call in
+ * {@code panama.upcall.sampling} (64 by default) is timed, {@code 1} times them all.
+ * The statistics are readable with {@link #statistics()}, and emitted as the JFR
+ * event {@code io.github.bric3.panama.UpcallStatistics} every second. Timed upcalls
+ * slower than {@code panama.upcall.slow.nanos} (1 ms by default) emit an
+ * {@code io.github.bric3.panama.SlowUpcall} event. {@code -Dpanama.upcall.instrument=false}
+ * links the target as is.
+ *
+ * <pre><code>
+ * var compare = UpcallRegistry.global().upcallStub(
+ *         MethodHandles.lookup(),
+ *         Qsort.class,
+ *         "qsortCompare",
+ *         FunctionDescriptor.of(JAVA_INT, ADDRESS.withTargetLayout(JAVA_INT), ADDRESS.withTargetLayout(JAVA_INT))
+ * );
+ * </code></pre>
+ */
+public final class UpcallRegistry {
+  private static final Linker LINKER = Linker.nativeLinker();
+  private static final long SLOW_NANOS = Long.getLong("panama.upcall.slow.nanos", 1_000_000L);
+  private static final int SAMPLING = Math.max(1, Integer.getInteger("panama.upcall.sampling", 64));
+
+  // long UpcallStatistics.start()
+  private static final MethodHandle START;
+  // void UpcallStatistics.record(long start)
+  private static final MethodHandle RECORD;
+
+  static {
+    try {
+      var lookup = MethodHandles.lookup();
+      START = lookup.findVirtual(UpcallStatistics.class, "start", methodType(long.class));
+      RECORD = lookup.findVirtual(UpcallStatistics.class, "record", methodType(void.class, long.class));
+    } catch (ReflectiveOperationException e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  private static final UpcallRegistry GLOBAL = new UpcallRegistry(
+          Boolean.parseBoolean(System.getProperty("panama.upcall.instrument", "true"))
+  );
+
+  private record StubKey(MethodHandle target, FunctionDescriptor descriptor) {}
+
+  private record MethodKey(Class<?> owner, String name, FunctionDescriptor descriptor) {}
+
+  private record Upcall(MemorySegment stub, UpcallStatistics statistics) {}
+
+  private final boolean instrumented;
+  private final ConcurrentHashMap<StubKey, Upcall> upcalls = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<MethodKey, MemorySegment> staticMethods = new ConcurrentHashMap<>();
+
+  private UpcallRegistry(boolean instrumented) {
+    this.instrumented = instrumented;
+    FlightRecorder.addPeriodicEvent(UpcallStatisticsEvent.class, this::emitStatistics);
+  }
+
+  public static UpcallRegistry global() {
+    return GLOBAL;
+  }
+
+  /**
+   * The stub of the handle, linked on the first request.
+   *
+   * @param name names the upcall in the statistics, only the first name is kept
+   */
+  public MemorySegment upcallStub(String name, MethodHandle target, FunctionDescriptor descriptor) {
+    return upcalls.computeIfAbsent(
+            new StubKey(target, descriptor),
+            key -> link(name, key)
+    ).stub();
+  }
+
+  /**
+   * The stub of a static method whose type matches the descriptor, looked up and
+   * linked on the first request.
+   */
+  public MemorySegment upcallStub(MethodHandles.Lookup lookup, Class<?> owner, String methodName, FunctionDescriptor descriptor) {
+    return staticMethods.computeIfAbsent(
+            new MethodKey(owner, methodName, descriptor),
+            key -> {
+              try {
+                var target = lookup.findStatic(owner, methodName, descriptor.toMethodType());
+                return upcallStub(STR."\{owner.getSimpleName()}::\{methodName}", target, descriptor);
+              } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(STR."No static \{methodName}\{descriptor.toMethodType()} in \{owner.getName()}", e);
+              }
+            }
+    );
+  }
+
+  public List<UpcallStatistics> statistics() {
+    return upcalls.values().stream().map(Upcall::statistics).toList();
+  }
+
+  private Upcall link(String name, StubKey key) {
+    var statistics = new UpcallStatistics(name);
+    var target = instrumented ? instrument(key.target(), statistics) : key.target();
+    return new Upcall(LINKER.upcallStub(target, key.descriptor(), Arena.global()), statistics);
+  }
+
+  /**
+   * Wraps the target to record its latency, with the same type.
+   * <p>
+   * No try/finally, an exception thrown by an upcall crashes the JVM anyway.
+   */
+  static MethodHandle instrument(MethodHandle target, UpcallStatistics statistics) {
+    var start = START.bindTo(statistics);
+    var record = RECORD.bindTo(statistics);
+    var returnType = target.type().returnType();
+    // (long start, R result)R, records then returns the result
+    var exit = returnType == void.class
+               ? record
+               : MethodHandles.foldArguments(
+                       MethodHandles.dropArguments(MethodHandles.identity(returnType), 0, long.class),
+                       0,
+                       record
+               );
+    // (long start, args...)R
+    var timed = MethodHandles.collectArguments(exit, 1, target);
+    return MethodHandles.foldArguments(timed, start);
+  }
+
+  private void emitStatistics() {
+    for (var upcall : upcalls.values()) {
+      var statistics = upcall.statistics();
+      var event = new UpcallStatisticsEvent();
+      event.name = statistics.name();
+      event.calls = statistics.calls();
+      event.timedCalls = statistics.timedCalls();
+      event.averageTime = statistics.averageNanos();
+      event.maxTime = statistics.maxNanos();
+      event.commit();
+    }
+  }
+
+  /**
+   * Calls of an upcall since it was linked, and latency of the timed ones,
+   * zero if not instrumented.
+   */
+  public static final class UpcallStatistics {
+    private static final long NOT_TIMED = 0;
+
+    private final String name;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder timedCalls = new LongAdder();
+    private final LongAdder timedNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    UpcallStatistics(String name) {
+      this.name = name;
+    }
+
+    private long start() {
+      if (SAMPLING == 1 || ThreadLocalRandom.current().nextInt(SAMPLING) == 0) {
+        // a clock at exactly 0 only loses a sample
+        return System.nanoTime();
+      }
+      return NOT_TIMED;
+    }
+
+    private void record(long start) {
+      calls.increment();
+      if (start == NOT_TIMED) {
+        return;
+      }
+      var elapsed = System.nanoTime() - start;
+      timedCalls.increment();
+      timedNanos.add(elapsed);
+      maxNanos.accumulate(elapsed);
+      if (elapsed >= SLOW_NANOS) {
+        var event = new SlowUpcallEvent();
+        if (event.isEnabled()) {
+          event.name = name;
+          event.latency = elapsed;
+          event.commit();
+        }
+      }
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public long calls() {
+      return calls.sum();
+    }
+
+    public long timedCalls() {
+      return timedCalls.sum();
+    }
+
+    public long averageNanos() {
+      var timed = timedCalls();
+      return timed == 0 ? 0 : timedNanos.sum() / timed;
+    }
+
+    public long maxNanos() {
+      return maxNanos.get();
+    }
+
+    @Override
+    public String toString() {
+      return STR."\{name}: \{calls()} calls, \{timedCalls()} timed, \{averageNanos()} ns avg, \{maxNanos()} ns max";
+    }
+  }
+
+  @Name("io.github.bric3.panama.UpcallStatistics")
+  @Label("Upcall Statistics")
+  @Category({"Panama", "Upcall"})
+  @Period("1 s")
+  @StackTrace(false)
+  static final class UpcallStatisticsEvent extends Event {
+    @Label("Upcall")
+    String name;
+
+    @Label("Calls")
+    long calls;
+
+    @Label("Timed Calls")
+    long timedCalls;
+
+    @Label("Average Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long averageTime;
+
+    @Label("Max Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long maxTime;
+  }
+
+  @Name("io.github.bric3.panama.SlowUpcall")
+  @Label("Slow Upcall")
+  @Category({"Panama", "Upcall"})
+  static final class SlowUpcallEvent extends Event {
+    @Label("Upcall")
+    String name;
+
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3.jmh;
+
+import blake3.blake3_h;
+import blake3.blake3_hasher;
+import io.github.bric3.panama.blake3.Blake3Hasher;
+import io.github.bric3.panama.blake3.Blake3Library;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocating a {@code blake3_hasher} struct, a native copy of the message and the
+ * digest per message, in a confined or shared arena, the pattern {@link Blake3Hasher}
+ * is meant to replace.
+ * <p>
+ * The struct is used through the bindings directly, {@link Blake3Hasher#create(Arena)}
+ * would also allocate and zero its 64 KiB staging buffer, hiding the arena cost
+ * for small messages.
+ * <p>
+ * The global arena is left out, it cannot be closed so its memory would pile up.
+ * Compare with {@link Blake3ArenaBenchmark#reused()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Blake3AllocationBenchmark {
+  @Param({"64", "1024", "65536"})
+  public int size;
+
+  @Param({"confined", "shared"})
+  public String arenaKind;
+
+  private byte[] message;
+  private final byte[] out = new byte[Blake3Hasher.OUT_LEN];
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Blake3Library.load();
+    message = new byte[size];
+    ThreadLocalRandom.current().nextBytes(message);
+  }
+
+  @Benchmark
+  public byte[] allocatePerMessage() {
+    try (var messageArena = switch (arenaKind) {
+      case "confined" -> Arena.ofConfined();
+      case "shared" -> Arena.ofShared();
+      default -> throw new IllegalArgumentException(arenaKind);
+    }) {
+      var state = blake3_hasher.allocate(messageArena);
+      blake3_h.blake3_hasher_init(state);
+      var input = messageArena.allocateFrom(ValueLayout.JAVA_BYTE, message);
+      blake3_h.blake3_hasher_update(state, input, input.byteSize());
+      var perMessageOut = messageArena.allocate(Blake3Hasher.OUT_LEN);
+      blake3_h.blake3_hasher_finalize(state, perMessageOut, Blake3Hasher.OUT_LEN);
+      MemorySegment.copy(perMessageOut, ValueLayout.JAVA_BYTE, 0, out, 0, out.length);
+      return out;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3.jmh;
+
+import io.github.bric3.panama.blake3.Blake3Hasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the segment scope on downcalls, for segments of confined, shared and global arenas.
+ * <p>
+ * A downcall keeps the scope of every segment argument alive for the duration of the call,
+ * shared arenas pay an extra acquire/release, it only shows for small inputs.
+ * Creating a hasher and its input per message is measured by {@link Blake3AllocationBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Blake3ArenaBenchmark {
+  @Param({"64", "1024", "65536"})
+  public int size;
+
+  @Param({"confined", "shared", "global"})
+  public String arenaKind;
+
+  private Arena arena;
+  private Blake3Hasher hasher;
+  private MemorySegment input;
+  private MemorySegment out;
+  private byte[] message;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    arena = switch (arenaKind) {
+      case "confined" -> Arena.ofConfined();
+      case "shared" -> Arena.ofShared();
+      case "global" -> Arena.global();
+      default -> throw new IllegalArgumentException(arenaKind);
+    };
+    hasher = Blake3Hasher.create(arena);
+    message = new byte[size];
+    ThreadLocalRandom.current().nextBytes(message);
+    input = arena.allocate(size, 64).copyFrom(MemorySegment.ofArray(message));
+    out = arena.allocate(Blake3Hasher.OUT_LEN);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (!arenaKind.equals("global")) {
+      arena.close();
+    }
+  }
+
+  @Benchmark
+  public MemorySegment reused() {
+    hasher.reset().update(input).digest(out);
+    return out;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3.jmh;
+
+import io.github.bric3.panama.blake3.Blake3Hasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of hashing one message of {@code size} bytes, depending on where the input lives.
+ * <p>
+ * Small sizes show the fixed cost of the downcalls (reset, update, finalize).
+ * Heap inputs up to {@link Blake3Hasher#CRITICAL_THRESHOLD} (16 KiB by default)
+ * are passed in place with a critical downcall, larger ones add the copy to the
+ * native staging buffer, {@code 16384} and {@code 16385} sit on both sides of the
+ * default threshold. SHA-256 from the JDK gives the pure-Java baseline with no
+ * native transition at all.
+ * Divide {@code size} by the score to get the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Blake3InputBenchmark {
+  @Param({"64", "256", "1024", "4096", "16384", "16385", "65536", "1048576", "16777216", "1073741824"})
+  public int size;
+
+  private Arena arena;
+  private Path mappedFile;
+  private Blake3Hasher hasher;
+  private MessageDigest sha256;
+  private MemorySegment out;
+
+  private byte[] heapArray;
+  private MemorySegment heapSegment;
+  private MemorySegment nativeSegment;
+  private MemorySegment mappedSegment;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, NoSuchAlgorithmException {
+    arena = Arena.ofConfined();
+    hasher = Blake3Hasher.create(arena);
+    sha256 = MessageDigest.getInstance("SHA-256");
+    out = arena.allocate(Blake3Hasher.OUT_LEN);
+
+    heapArray = new byte[size];
+    ThreadLocalRandom.current().nextBytes(heapArray);
+    heapSegment = MemorySegment.ofArray(heapArray);
+    nativeSegment = arena.allocate(size, 64).copyFrom(heapSegment);
+
+    mappedFile = Files.createTempFile("blake3-jmh", ".bin");
+    Files.write(mappedFile, heapArray);
+    try (var channel = FileChannel.open(mappedFile, StandardOpenOption.READ)) {
+      mappedSegment = channel.map(MapMode.READ_ONLY, 0, size, arena);
+      mappedSegment.load(); // measure hashing, not page faults
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    arena.close();
+    Files.deleteIfExists(mappedFile);
+  }
+
+  @Benchmark
+  public MemorySegment blake3_native() {
+    hasher.reset().update(nativeSegment).digest(out);
+    return out;
+  }
+
+  @Benchmark
+  public MemorySegment blake3_mapped() {
+    hasher.reset().update(mappedSegment).digest(out);
+    return out;
+  }
+
+  @Benchmark
+  public MemorySegment blake3_heapSegment() {
+    hasher.reset().update(heapSegment).digest(out);
+    return out;
+  }
+
+  @Benchmark
+  public MemorySegment blake3_heapArray() {
+    hasher.reset().update(heapArray).digest(out);
+    return out;
+  }
+
+  @Benchmark
+  public byte[] sha256_heapArray() {
+    sha256.update(heapArray);
+    return sha256.digest();
+  }
+
+  @Benchmark
+  public byte[] sha256_nativeByteBuffer() {
+    sha256.update(nativeSegment.asByteBuffer());
+    return sha256.digest();
+  }
+}
@@ -18,12 +18,16 @@ plugins {
 
 val blake3SourcePath = project.configureJExtractSourceSet("blake3")
 
+// Folder of the BLAKE3 C sources, with blake3.h and the built libblake3 (see package-info.java)
+val blake3Home = providers.gradleProperty("blake3_home")
+  .getOrElse("/Users/brice.dutheil/opensource/BLAKE3/c")
+
 val jextractBlake3 by tasks.registering(JExtractTask::class) {
   headerClassName.set("blake3_h")
   targetPackage.set("blake3")
   targetPath.set(file(blake3SourcePath))
   // headerPathIncludes.from(file("/Library/Developer/CommandLineTools/SDKs/MacOSX.sdk/usr/include/"))
-  headers.from(file("/Users/brice.dutheil/opensource/BLAKE3/c/blake3.h"))
+  headers.from(file("$blake3Home/blake3.h"))
 
   args.set(
     listOf(
@@ -49,3 +53,25 @@ val jextractBlake3 by tasks.registering(JExtractTask::class) {
 }
 tasks.compileJava.get().dependsOn(jextractBlake3)
 
+// Batch shim, loops over many records in C so a batch is a single downcall
+val blake3BatchLibrary = layout.buildDirectory.file("lib/" + System.mapLibraryName("blake3_batch"))
+val compileBlake3Batch by tasks.registering(Exec::class) {
+  description = "Compiles the blake3_batch shim against libblake3"
+  val source = file("src/main/c/blake3_batch.c")
+  inputs.file(source)
+  outputs.file(blake3BatchLibrary)
+  doFirst { blake3BatchLibrary.get().asFile.parentFile.mkdirs() }
+  commandLine(
+    "cc", "-shared", "-fPIC", "-O3",
+    "-I", blake3Home,
+    "-L", blake3Home, "-Wl,-rpath,$blake3Home",
+    "-o", blake3BatchLibrary.get().asFile.absolutePath,
+    source.absolutePath,
+    "-lblake3",
+  )
+}
+
+tasks.withType<JavaExec>().configureEach {
+  dependsOn(compileBlake3Batch)
+  systemProperty("blake3.batch.library", blake3BatchLibrary.get().asFile.absolutePath)
+}
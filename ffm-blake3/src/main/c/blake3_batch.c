@@ -0,0 +1,39 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+#include <stddef.h>
+#include <stdint.h>
+#include <string.h>
+
+#include "blake3.h"
+
+/*
+ * Hashes `count` records packed in `data`, record `i` spans `[offsets[i], offsets[i + 1])`,
+ * so `offsets` has `count + 1` entries.
+ *
+ * Each record is hashed from `template_state` (plain, keyed or derive key mode),
+ * the digests of `out_len` bytes are written contiguously in `out`.
+ *
+ * Bounds are checked on the Java side, this loop only exists to have a single
+ * downcall for the whole batch.
+ */
+void blake3_hash_batch(const blake3_hasher *template_state,
+                       const uint8_t *data,
+                       const uint64_t *offsets,
+                       size_t count,
+                       uint8_t *out,
+                       size_t out_len) {
+  blake3_hasher hasher;
+  for (size_t i = 0; i < count; i++) {
+    // the chaining value stack is empty in an initialized hasher, no need to copy it
+    memcpy(&hasher, template_state, offsetof(blake3_hasher, cv_stack));
+    blake3_hasher_update(&hasher, data + offsets[i], (size_t) (offsets[i + 1] - offsets[i]));
+    blake3_hasher_finalize(&hasher, out + i * out_len, out_len);
+  }
+}
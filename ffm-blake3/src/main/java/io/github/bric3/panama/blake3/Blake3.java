@@ -9,12 +9,6 @@
  */
 package io.github.bric3.panama.blake3;
 
-import blake3.blake3_h;
-import blake3.blake3_hasher;
-
-import java.lang.foreign.Arena;
-import java.lang.foreign.MemoryLayout;
-import java.lang.foreign.ValueLayout;
 import java.nio.charset.StandardCharsets;
 import java.util.HexFormat;
 
@@ -22,29 +16,21 @@ public class Blake3 {
 
   public static void main(String[] args) {
     // gcc -shared -O3 -o libblake3.so blake3.c blake3_dispatch.c blake3_portable.c blake3_neon.c
-    System.load("/Users/brice.dutheil/opensource/BLAKE3/c/libblake3.so");
-
-    try (Arena arena = Arena.ofConfined()) {
-      var hasher = blake3_hasher.allocate(arena);
-      blake3_h.blake3_hasher_init(hasher);
-
-      var content = arena.allocateFrom("Hello panama!\n", StandardCharsets.US_ASCII);
+    // -Dblake3.library=/path/to/libblake3.so, or the folder in -Djava.library.path
+    try (var hasher = Blake3Hasher.create()) {
+      var content = "Hello panama!\n".getBytes(StandardCharsets.US_ASCII);
 
-      blake3_h.blake3_hasher_update(hasher, content, content.byteSize() - 1);
+      hasher.update(content);
 
-      var out = arena.allocate(
-              MemoryLayout.sequenceLayout(
-                      blake3_h.BLAKE3_OUT_LEN(),
-                      ValueLayout.JAVA_BYTE
-              )
-      );
-      blake3_h.blake3_hasher_finalize(hasher, out, blake3_h.BLAKE3_OUT_LEN());
-
-      var sigBytes = out.toArray(ValueLayout.JAVA_BYTE);
+      var sigBytes = hasher.digest();
       var sigHex = HexFormat.of().formatHex(sigBytes);
       System.out.println(sigHex);
 
       assert "b95c35ea189068be5f737282c3248277a6398fab7826ef128607e4415ab8558d".equalsIgnoreCase(sigHex) : "Signatures don't match";
+
+      // the same hasher can be reused without allocating
+      hasher.reset().update(content);
+      assert HexFormat.of().formatHex(hasher.digest()).equalsIgnoreCase(sigHex) : "Signatures don't match after reset";
     }
   }
 }
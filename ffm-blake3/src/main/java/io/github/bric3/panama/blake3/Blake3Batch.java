@@ -0,0 +1,118 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Hashes many small records with a single downcall.
+ * <p>
+ * For records of a few hundred bytes, the downcalls of reset, update and
+ * finalize cost about as much as hashing itself. The per-record loop is
+ * done by the {@code blake3_batch} shim ({@code src/main/c/blake3_batch.c}),
+ * built against libblake3 by the {@code compileBlake3Batch} task.
+ * <p>
+ * Records are packed in one native segment, described by {@code count + 1}
+ * offsets as {@code uint64_t}: record {@code i} spans {@code [offsets[i], offsets[i + 1])}.
+ * The digests are written contiguously in the output segment.
+ * <p>
+ * The shim is loaded from the {@code blake3.batch.library} system property, an absolute path,
+ * or the {@code blake3_batch} library name in {@code java.library.path}.
+ */
+public final class Blake3Batch {
+  static {
+    Blake3Library.load();
+    var libraryPath = System.getProperty("blake3.batch.library");
+    if (libraryPath != null && !libraryPath.isBlank()) {
+      System.load(libraryPath);
+    } else {
+      System.loadLibrary("blake3_batch");
+    }
+  }
+
+  // void blake3_hash_batch(const blake3_hasher *template_state, const uint8_t *data, const uint64_t *offsets,
+  //                        size_t count, uint8_t *out, size_t out_len);
+  private static final MethodHandle blake3_hash_batch = Linker.nativeLinker().downcallHandle(
+          SymbolLookup.loaderLookup().find("blake3_hash_batch").orElseThrow(),
+          FunctionDescriptor.ofVoid(
+                  ValueLayout.ADDRESS, // template_state
+                  ValueLayout.ADDRESS, // data
+                  ValueLayout.ADDRESS, // offsets
+                  ValueLayout.JAVA_LONG, // count
+                  ValueLayout.ADDRESS, // out
+                  ValueLayout.JAVA_LONG // out_len
+          )
+  );
+
+  private static final Blake3Template PLAIN = Blake3Template.plain(Arena.global());
+
+  private Blake3Batch() {
+  }
+
+  /**
+   * Hashes every record with the regular hash function.
+   *
+   * @return the number of records
+   */
+  public static long hash(MemorySegment records, MemorySegment offsets, MemorySegment out) {
+    return hash(PLAIN, records, offsets, out, Blake3Hasher.OUT_LEN);
+  }
+
+  /**
+   * Hashes every record starting from the template state, e.g. to compute MACs of a batch.
+   *
+   * @param outLength the length of each digest, positive
+   * @return the number of records
+   * @throws ArithmeticException if the digests length of the batch overflows a {@code long}
+   */
+  public static long hash(Blake3Template template, MemorySegment records, MemorySegment offsets, MemorySegment out, long outLength) {
+    if (!records.isNative() || !offsets.isNative() || !out.isNative()) {
+      throw new IllegalArgumentException("records, offsets and out must be native segments");
+    }
+    if (outLength <= 0) {
+      throw new IllegalArgumentException("outLength must be positive, got " + outLength);
+    }
+    var count = offsets.byteSize() / Long.BYTES - 1;
+    if (count <= 0) {
+      return 0;
+    }
+    if (out.byteSize() < Math.multiplyExact(count, outLength)) {
+      throw new IllegalArgumentException(STR."out is too small for \{count} digests of \{outLength} bytes: \{out.byteSize()}");
+    }
+    checkOffsets(offsets, count, records.byteSize());
+
+    try {
+      blake3_hash_batch.invokeExact(template.state(), records, offsets, count, out, outLength);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+    return count;
+  }
+
+  /**
+   * The native loop trusts the offsets, a single linear pass here is cheap compared to hashing.
+   */
+  private static void checkOffsets(MemorySegment offsets, long count, long recordsSize) {
+    var previous = 0L;
+    for (long i = 0; i <= count; i++) {
+      var offset = offsets.getAtIndex(ValueLayout.JAVA_LONG, i);
+      if (offset < previous || offset > recordsSize) {
+        throw new IndexOutOfBoundsException(STR."offset[\{i}] = \{offset} is out of [\{previous}, \{recordsSize}]");
+      }
+      previous = offset;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Plain Java BLAKE3 compression function.
+ * <p>
+ * Only used for the few nodes that the C API cannot produce on its own,
+ * i.e. non-root chaining values and parent nodes joining subtrees hashed
+ * on different threads. Bulk hashing is always done by the native library.
+ * <p>
+ * This mirrors the reference implementation in {@code blake3.c}.
+ */
+final class Blake3Compression {
+  static final int CHUNK_START = 1;
+  static final int CHUNK_END = 1 << 1;
+  static final int PARENT = 1 << 2;
+  static final int ROOT = 1 << 3;
+  static final int KEYED_HASH = 1 << 4;
+  static final int DERIVE_KEY_CONTEXT = 1 << 5;
+  static final int DERIVE_KEY_MATERIAL = 1 << 6;
+
+  static final int[] IV = {
+          0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+          0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+  };
+
+  private static final int[] MSG_PERMUTATION = {2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8};
+
+  static final ValueLayout.OfInt LE_INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+  private Blake3Compression() {
+  }
+
+  /**
+   * Compresses a block and returns the 8 words chaining value.
+   */
+  static int[] chainingValue(int[] cv, int[] blockWords, long counter, int blockLen, int flags) {
+    var state = compress(cv, blockWords, counter, blockLen, flags);
+    var out = new int[8];
+    System.arraycopy(state, 0, out, 0, 8);
+    return out;
+  }
+
+  /**
+   * Chaining value of a parent node, {@code flags} are the hasher flags, e.g. {@link #KEYED_HASH}.
+   */
+  static int[] parentChainingValue(int[] left, int[] right, int[] key, int flags) {
+    return chainingValue(key, parentBlock(left, right), 0, Blake3Hasher.BLOCK_LEN, flags | PARENT);
+  }
+
+  /**
+   * Writes the first {@value Blake3Hasher#OUT_LEN} bytes of the root output of a parent node.
+   */
+  static void rootParentOutput(int[] left, int[] right, int[] key, int flags, MemorySegment out) {
+    var state = compress(key, parentBlock(left, right), 0, Blake3Hasher.BLOCK_LEN, flags | PARENT | ROOT);
+    var length = Math.min(out.byteSize(), Blake3Hasher.OUT_LEN);
+    for (int i = 0; i < length; i++) {
+      out.set(ValueLayout.JAVA_BYTE, i, (byte) (state[i / 4] >>> (8 * (i % 4))));
+    }
+  }
+
+  static int[] readWords(MemorySegment segment, long offset, int count) {
+    var words = new int[count];
+    for (int i = 0; i < count; i++) {
+      words[i] = segment.get(LE_INT, offset + 4L * i);
+    }
+    return words;
+  }
+
+  private static int[] parentBlock(int[] left, int[] right) {
+    var block = new int[16];
+    System.arraycopy(left, 0, block, 0, 8);
+    System.arraycopy(right, 0, block, 8, 8);
+    return block;
+  }
+
+  private static int[] compress(int[] cv, int[] blockWords, long counter, int blockLen, int flags) {
+    var state = new int[]{
+            cv[0], cv[1], cv[2], cv[3],
+            cv[4], cv[5], cv[6], cv[7],
+            IV[0], IV[1], IV[2], IV[3],
+            (int) counter, (int) (counter >>> 32), blockLen, flags
+    };
+    var m = blockWords.clone();
+    for (int r = 0; r < 7; r++) {
+      round(state, m);
+      if (r < 6) {
+        m = permute(m);
+      }
+    }
+    for (int i = 0; i < 8; i++) {
+      state[i] ^= state[i + 8];
+      state[i + 8] ^= cv[i];
+    }
+    return state;
+  }
+
+  private static void round(int[] s, int[] m) {
+    // columns
+    g(s, 0, 4, 8, 12, m[0], m[1]);
+    g(s, 1, 5, 9, 13, m[2], m[3]);
+    g(s, 2, 6, 10, 14, m[4], m[5]);
+    g(s, 3, 7, 11, 15, m[6], m[7]);
+    // diagonals
+    g(s, 0, 5, 10, 15, m[8], m[9]);
+    g(s, 1, 6, 11, 12, m[10], m[11]);
+    g(s, 2, 7, 8, 13, m[12], m[13]);
+    g(s, 3, 4, 9, 14, m[14], m[15]);
+  }
+
+  private static void g(int[] s, int a, int b, int c, int d, int mx, int my) {
+    s[a] = s[a] + s[b] + mx;
+    s[d] = Integer.rotateRight(s[d] ^ s[a], 16);
+    s[c] = s[c] + s[d];
+    s[b] = Integer.rotateRight(s[b] ^ s[c], 12);
+    s[a] = s[a] + s[b] + my;
+    s[d] = Integer.rotateRight(s[d] ^ s[a], 8);
+    s[c] = s[c] + s[d];
+    s[b] = Integer.rotateRight(s[b] ^ s[c], 7);
+  }
+
+  private static int[] permute(int[] m) {
+    var permuted = new int[16];
+    for (int i = 0; i < 16; i++) {
+      permuted[i] = m[MSG_PERMUTATION[i]];
+    }
+    return permuted;
+  }
+}
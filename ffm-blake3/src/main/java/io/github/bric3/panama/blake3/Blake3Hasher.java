@@ -0,0 +1,250 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import blake3.blake3_h;
+import blake3.blake3_hasher;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Reusable BLAKE3 hasher backed by a native {@code blake3_hasher} struct.
+ * <p>
+ * The native state, a staging buffer for heap inputs and the output buffer are
+ * allocated once, in the arena given at creation. Hashing many messages is then
+ * a matter of {@link #reset()}, {@code update(...)} and {@code digest(...)},
+ * none of which allocate.
+ * <p>
+ * Heap inputs up to {@link #CRITICAL_THRESHOLD} bytes are hashed in place,
+ * {@code blake3_hasher_update} is also linked with {@link Linker.Option#critical(boolean)}
+ * allowing heap access, which pins the array and skips the thread state transition.
+ * The GC cannot run during such a call, so larger heap inputs are copied in the
+ * native staging buffer and go through the regular downcall.
+ * <p>
+ * A hasher is not thread-safe, if it is created with a confined arena, it must
+ * be used by the owner thread of this arena.
+ *
+ * <pre><code>
+ * try (var hasher = Blake3Hasher.create()) {
+ *   for (var message : messages) {
+ *     hasher.reset();
+ *     hasher.update(message);
+ *     hasher.digest(out);
+ *   }
+ * }
+ * </code></pre>
+ */
+public final class Blake3Hasher implements AutoCloseable {
+  public static final int OUT_LEN = 32;
+  public static final int KEY_LEN = 32;
+  public static final int BLOCK_LEN = 64;
+  public static final int CHUNK_LEN = 1024;
+
+  /**
+   * Size of the native buffer used to stage heap inputs.
+   */
+  static final int STAGING_SIZE = 64 * 1024;
+
+  /**
+   * Largest heap input hashed with a critical downcall, can be set with the {@code blake3.critical.threshold} property.
+   */
+  public static final int CRITICAL_THRESHOLD = Integer.getInteger("blake3.critical.threshold", 16 * 1024);
+
+  static {
+    Blake3Library.load();
+  }
+
+  // void blake3_hasher_update(blake3_hasher *self, const void *input, size_t input_len);
+  private static final MethodHandle UPDATE_CRITICAL = Linker.nativeLinker().downcallHandle(
+          blake3_h.blake3_hasher_update$address(),
+          blake3_h.blake3_hasher_update$descriptor(),
+          Linker.Option.critical(true)
+  );
+
+  private final Arena arena;
+  private final boolean ownsArena;
+  private final MemorySegment state;
+  private final MemorySegment staging;
+  private final MemorySegment out;
+
+  private Blake3Hasher(Arena arena, boolean ownsArena) {
+    this.arena = arena;
+    this.ownsArena = ownsArena;
+    this.state = blake3_hasher.allocate(arena);
+    this.staging = arena.allocate(STAGING_SIZE, 64);
+    this.out = arena.allocate(OUT_LEN);
+    blake3_h.blake3_hasher_init(state);
+  }
+
+  /**
+   * Creates a hasher owning a confined arena, closing the hasher releases the native memory.
+   */
+  public static Blake3Hasher create() {
+    return new Blake3Hasher(Arena.ofConfined(), true);
+  }
+
+  /**
+   * Creates a hasher whose native memory lives in the given arena.
+   * <p>
+   * Closing the hasher is a no-op, the memory is released when the arena is closed.
+   */
+  public static Blake3Hasher create(Arena arena) {
+    return new Blake3Hasher(Objects.requireNonNull(arena), false);
+  }
+
+  /**
+   * Creates a hasher initialized from the template, e.g. keyed or in derive key mode.
+   */
+  public static Blake3Hasher create(Blake3Template template, Arena arena) {
+    return create(arena).reset(template);
+  }
+
+  /**
+   * The native {@code blake3_hasher} struct of this hasher.
+   */
+  public MemorySegment state() {
+    return state;
+  }
+
+  /**
+   * Resets the hasher to its initial state, keeping the key or derive key context if any.
+   */
+  public Blake3Hasher reset() {
+    blake3_h.blake3_hasher_reset(state);
+    return this;
+  }
+
+  /**
+   * Resets the hasher to the initialized state of the template, this is a memory copy, not a downcall.
+   */
+  public Blake3Hasher reset(Blake3Template template) {
+    template.copyTo(state);
+    return this;
+  }
+
+  public Blake3Hasher update(MemorySegment input) {
+    if (input.isNative()) {
+      blake3_h.blake3_hasher_update(state, input, input.byteSize());
+      return this;
+    }
+    if (input.byteSize() <= CRITICAL_THRESHOLD) {
+      updateCritical(input);
+      return this;
+    }
+
+    var length = input.byteSize();
+    for (long offset = 0; offset < length; offset += STAGING_SIZE) {
+      var size = Math.min(STAGING_SIZE, length - offset);
+      MemorySegment.copy(input, offset, staging, 0, size);
+      blake3_h.blake3_hasher_update(state, staging, size);
+    }
+    return this;
+  }
+
+  /**
+   * Hashes the remaining bytes of the buffer, the position is advanced to the limit.
+   */
+  public Blake3Hasher update(ByteBuffer input) {
+    update(MemorySegment.ofBuffer(input));
+    input.position(input.limit());
+    return this;
+  }
+
+  public Blake3Hasher update(byte[] input) {
+    return update(input, 0, input.length);
+  }
+
+  public Blake3Hasher update(byte[] input, int offset, int length) {
+    Objects.checkFromIndexSize(offset, length, input.length);
+    if (length <= CRITICAL_THRESHOLD) {
+      updateCritical(MemorySegment.ofArray(input).asSlice(offset, length));
+      return this;
+    }
+    for (int done = 0; done < length; done += STAGING_SIZE) {
+      var size = Math.min(STAGING_SIZE, length - done);
+      MemorySegment.copy(input, offset + done, staging, ValueLayout.JAVA_BYTE, 0, size);
+      blake3_h.blake3_hasher_update(state, staging, size);
+    }
+    return this;
+  }
+
+  private void updateCritical(MemorySegment heapInput) {
+    try {
+      UPDATE_CRITICAL.invokeExact(state, heapInput, heapInput.byteSize());
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * Writes the {@value #OUT_LEN} bytes digest in the given segment.
+   * <p>
+   * The hasher state is not modified, more input can still be added.
+   */
+  public void digest(MemorySegment output) {
+    if (output.isNative()) {
+      blake3_h.blake3_hasher_finalize(state, output, Math.min(output.byteSize(), OUT_LEN));
+      return;
+    }
+    blake3_h.blake3_hasher_finalize(state, out, OUT_LEN);
+    MemorySegment.copy(out, 0, output, 0, Math.min(output.byteSize(), OUT_LEN));
+  }
+
+  public void digest(byte[] output, int offset) {
+    Objects.checkFromIndexSize(offset, OUT_LEN, output.length);
+    blake3_h.blake3_hasher_finalize(state, out, OUT_LEN);
+    MemorySegment.copy(out, ValueLayout.JAVA_BYTE, 0, output, offset, OUT_LEN);
+  }
+
+  public byte[] digest() {
+    var digest = new byte[OUT_LEN];
+    digest(digest, 0);
+    return digest;
+  }
+
+  /**
+   * Writes {@code output.byteSize()} bytes of the extendable output, starting at {@code seek}.
+   * <p>
+   * The first {@value #OUT_LEN} bytes at seek {@code 0} are the regular digest.
+   * Native segments are written in a single downcall, heap segments go through the staging buffer.
+   */
+  public void output(long seek, MemorySegment output) {
+    var length = output.byteSize();
+    if (output.isNative()) {
+      blake3_h.blake3_hasher_finalize_seek(state, seek, output, length);
+      return;
+    }
+    for (long offset = 0; offset < length; offset += STAGING_SIZE) {
+      var size = Math.min(STAGING_SIZE, length - offset);
+      blake3_h.blake3_hasher_finalize_seek(state, seek + offset, staging, size);
+      MemorySegment.copy(staging, 0, output, offset, size);
+    }
+  }
+
+  /**
+   * Extendable output of the current state, the XOF is independent of further updates.
+   */
+  public Blake3Xof xof(Arena arena) {
+    return new Blake3Xof(state, arena);
+  }
+
+  @Override
+  public void close() {
+    if (ownsArena) {
+      arena.close();
+    }
+  }
+}
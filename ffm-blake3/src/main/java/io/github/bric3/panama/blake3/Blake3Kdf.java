@@ -0,0 +1,45 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+/**
+ * BLAKE3 key derivation for a fixed context, thread-safe.
+ * <p>
+ * Hashing the context string happens once, in the {@link Blake3Template},
+ * deriving a key then only hashes the key material.
+ *
+ * <pre><code>
+ * var kdf = Blake3Kdf.create("example.com 2024-01-01 session tokens v1", Arena.global());
+ * kdf.derive(masterKey, sessionKey);
+ * </code></pre>
+ */
+public final class Blake3Kdf {
+  private final Blake3Template template;
+  private final ThreadLocal<Blake3Hasher> hashers;
+
+  private Blake3Kdf(Blake3Template template) {
+    this.template = template;
+    this.hashers = ThreadLocal.withInitial(() -> Blake3Hasher.create(template, Arena.ofAuto()));
+  }
+
+  public static Blake3Kdf create(String context, Arena arena) {
+    return new Blake3Kdf(Blake3Template.deriveKey(context, arena));
+  }
+
+  /**
+   * Derives {@code derivedKey.byteSize()} bytes from the key material.
+   */
+  public void derive(MemorySegment keyMaterial, MemorySegment derivedKey) {
+    hashers.get().reset(template).update(keyMaterial).output(0, derivedKey);
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+/**
+ * Loads the native BLAKE3 library once per class loader.
+ * <p>
+ * The jextract bindings resolve symbols via the loader lookup, so the library
+ * must be loaded by this class loader before any {@code blake3_h} function is called.
+ * <p>
+ * Resolution order:
+ * <ol>
+ *   <li>the {@code blake3.library} system property, an absolute path to {@code libblake3.so}/{@code .dylib},</li>
+ *   <li>the {@code blake3} library name looked up in {@code java.library.path}.</li>
+ * </ol>
+ */
+public final class Blake3Library {
+  public static final String LIBRARY_PATH_PROPERTY = "blake3.library";
+  private static final String LIBRARY_NAME = "blake3";
+
+  static {
+    var libraryPath = System.getProperty(LIBRARY_PATH_PROPERTY);
+    if (libraryPath != null && !libraryPath.isBlank()) {
+      System.load(libraryPath);
+    } else {
+      System.loadLibrary(LIBRARY_NAME);
+    }
+  }
+
+  private Blake3Library() {
+  }
+
+  /**
+   * Ensures the native library is loaded, the actual work happens in the static initializer.
+   */
+  public static void load() {
+  }
+}
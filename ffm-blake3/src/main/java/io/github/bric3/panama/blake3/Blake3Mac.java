@@ -0,0 +1,71 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * BLAKE3 keyed hash used as a MAC, thread-safe.
+ * <p>
+ * The keyed state is computed once in a {@link Blake3Template}, each message
+ * then costs a struct copy in the calling thread's hasher, and the
+ * update/finalize downcalls.
+ *
+ * <pre><code>
+ * var mac = Blake3Mac.create(keySegment, Arena.global());
+ * mac.tag(request, tag);
+ * if (!mac.verify(request, receivedTag)) { ... }
+ * </code></pre>
+ */
+public final class Blake3Mac {
+  private final Blake3Template template;
+  private final ThreadLocal<Blake3Hasher> hashers;
+
+  private Blake3Mac(Blake3Template template) {
+    this.template = template;
+    this.hashers = ThreadLocal.withInitial(() -> Blake3Hasher.create(template, Arena.ofAuto()));
+  }
+
+  /**
+   * @param key   {@value Blake3Hasher#KEY_LEN} bytes key, only read during this call
+   * @param arena arena of the keyed template, must be accessible from the threads using this MAC
+   */
+  public static Blake3Mac create(MemorySegment key, Arena arena) {
+    return new Blake3Mac(Blake3Template.keyed(key, arena));
+  }
+
+  /**
+   * Writes the tag of the message, {@code tag} is usually {@value Blake3Hasher#OUT_LEN} bytes.
+   */
+  public void tag(MemorySegment message, MemorySegment tag) {
+    hashers.get().reset(template).update(message).digest(tag);
+  }
+
+  public byte[] tag(byte[] message) {
+    return hashers.get().reset(template).update(message).digest();
+  }
+
+  /**
+   * Constant time comparison of the expected tag with the tag of the message.
+   */
+  public boolean verify(MemorySegment message, MemorySegment expectedTag) {
+    if (expectedTag.byteSize() != Blake3Hasher.OUT_LEN) {
+      return false;
+    }
+    var actual = hashers.get().reset(template).update(message).digest();
+    var diff = 0;
+    for (int i = 0; i < Blake3Hasher.OUT_LEN; i++) {
+      diff |= actual[i] ^ expectedTag.get(ValueLayout.JAVA_BYTE, i);
+    }
+    return diff == 0;
+  }
+}
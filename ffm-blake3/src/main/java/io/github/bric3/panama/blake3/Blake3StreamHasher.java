@@ -0,0 +1,240 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * BLAKE3 hashing of streams that cannot be memory mapped, e.g. sockets, pipes or decompressed data.
+ * <p>
+ * Bytes are accumulated in one of two native buffers, while the other one is
+ * hashed on a hashing thread, so that I/O and hashing overlap. Each buffer is
+ * handed to {@code blake3_hasher_update} in a single downcall, whatever the size
+ * of the individual reads or writes.
+ * <p>
+ * Either pull a {@link ReadableByteChannel} with {@link #hash(ReadableByteChannel)},
+ * or push bytes in this {@link WritableByteChannel} (or its {@link #outputStream()}),
+ * e.g. as a tee of an existing pipeline, then call {@link #digest()}.
+ * <p>
+ * Writers must be a single thread at a time, as for any {@link WritableByteChannel}
+ * that is not explicitly thread-safe.
+ */
+public final class Blake3StreamHasher implements WritableByteChannel {
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+  private static final Executor HASHING_THREADS = Executors.newCachedThreadPool(
+          Thread.ofPlatform().daemon().name("blake3-stream-hasher-", 0).factory()
+  );
+
+  private final Arena arena;
+  private final Blake3Hasher hasher;
+  private final Executor executor;
+  private final MemorySegment[] buffers = new MemorySegment[2];
+  private final ByteBuffer[] views = new ByteBuffer[2];
+  private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+  private int current;
+  private boolean open = true;
+
+  private Blake3StreamHasher(int bufferSize, Executor executor) {
+    // buffers and hasher are used by the hashing thread too
+    this.arena = Arena.ofShared();
+    this.hasher = Blake3Hasher.create(arena);
+    this.executor = executor;
+    for (int i = 0; i < 2; i++) {
+      buffers[i] = arena.allocate(bufferSize, 4096);
+      views[i] = buffers[i].asByteBuffer();
+    }
+  }
+
+  public static Blake3StreamHasher create() {
+    return new Blake3StreamHasher(DEFAULT_BUFFER_SIZE, HASHING_THREADS);
+  }
+
+  public static Blake3StreamHasher create(int bufferSize, Executor executor) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("buffer size must be positive, got " + bufferSize);
+    }
+    return new Blake3StreamHasher(bufferSize, Objects.requireNonNull(executor));
+  }
+
+  /**
+   * Reads the channel until end of stream, and returns the digest.
+   */
+  public static byte[] hash(ReadableByteChannel source) throws IOException {
+    try (var streamHasher = create()) {
+      return streamHasher.update(source).digest();
+    }
+  }
+
+  public static byte[] hash(InputStream source) throws IOException {
+    return hash(Channels.newChannel(source));
+  }
+
+  /**
+   * Reads the channel until end of stream, directly in the native buffers.
+   * <p>
+   * A buffer is handed to the hashing thread once full, or at end of stream.
+   *
+   * @throws IllegalBlockingModeException if the channel is a selectable channel in
+   *                                      non-blocking mode, reads could return nothing
+   *                                      forever, feed those with {@link #write(ByteBuffer)}
+   */
+  public Blake3StreamHasher update(ReadableByteChannel source) throws IOException {
+    ensureOpen();
+    if (source instanceof SelectableChannel selectable && !selectable.isBlocking()) {
+      throw new IllegalBlockingModeException();
+    }
+    var eof = false;
+    while (!eof) {
+      var view = views[current];
+      while (view.hasRemaining()) {
+        if (source.read(view) < 0) {
+          eof = true;
+          break;
+        }
+      }
+      if (!view.hasRemaining()) {
+        handOff();
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    ensureOpen();
+    var written = src.remaining();
+    while (src.hasRemaining()) {
+      var view = views[current];
+      var length = Math.min(view.remaining(), src.remaining());
+      view.put(view.position(), src, src.position(), length);
+      view.position(view.position() + length);
+      src.position(src.position() + length);
+      if (!view.hasRemaining()) {
+        handOff();
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Stream view of this hasher, closing the stream closes the hasher.
+   */
+  public OutputStream outputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        ensureOpen();
+        views[current].put((byte) b);
+        if (!views[current].hasRemaining()) {
+          handOff();
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        ensureOpen();
+        while (len > 0) {
+          var view = views[current];
+          var length = Math.min(view.remaining(), len);
+          MemorySegment.copy(b, off, buffers[current], ValueLayout.JAVA_BYTE, view.position(), length);
+          view.position(view.position() + length);
+          off += length;
+          len -= length;
+          if (!view.hasRemaining()) {
+            handOff();
+          }
+        }
+      }
+
+      @Override
+      public void close() {
+        Blake3StreamHasher.this.close();
+      }
+    };
+  }
+
+  /**
+   * Hashes the buffered bytes, and returns the digest of everything written so far.
+   */
+  public byte[] digest() throws IOException {
+    ensureOpen();
+    if (views[current].position() > 0) {
+      handOff();
+    }
+    pending.join();
+    return hasher.digest();
+  }
+
+  /**
+   * Discards the buffered bytes and resets the hasher.
+   */
+  public Blake3StreamHasher reset() throws IOException {
+    ensureOpen();
+    pending.join();
+    hasher.reset();
+    views[0].clear();
+    views[1].clear();
+    return this;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+    if (!open) {
+      return;
+    }
+    open = false;
+    try {
+      pending.join();
+    } finally {
+      arena.close();
+    }
+  }
+
+  /**
+   * Submits the current buffer to the hashing thread, and switches to the other one
+   * once its previous hashing is done.
+   */
+  private void handOff() {
+    var buffer = buffers[current].asSlice(0, views[current].position());
+    pending.join();
+    pending = CompletableFuture.runAsync(() -> hasher.update(buffer), executor);
+    current ^= 1;
+    views[current].clear();
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+}
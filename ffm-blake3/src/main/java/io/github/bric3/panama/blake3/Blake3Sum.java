@@ -9,53 +9,261 @@
  */
 package io.github.bric3.panama.blake3;
 
-import blake3.blake3_h;
-import blake3.blake3_hasher;
-
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.foreign.Arena;
-import java.lang.foreign.ValueLayout;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
+/**
+ * {@code b3sum} like tool, hashes files and directory trees.
+ * <p>
+ * Files are hashed in parallel on a bounded pool, each worker thread owns a
+ * hasher and a direct read buffer. Small files are read in this buffer, larger
+ * files are memory mapped, and very large files are hashed as parallel subtrees
+ * with {@link Blake3TreeHasher}. Mapping a file costs a {@code mmap} and
+ * {@code munmap} syscall pair and page faults, which dominates for small files.
+ * The standard input ({@code -} or no path) is hashed with {@link Blake3StreamHasher}.
+ * <p>
+ * The output is compatible with {@code b3sum}, and can be verified by
+ * {@code b3sum --check} and conversely.
+ *
+ * <pre><code>
+ * java --enable-native-access=ALL-UNNAMED -Dblake3.library=libblake3.so Blake3Sum.java [--threads N] [PATH|-]...
+ * java --enable-native-access=ALL-UNNAMED -Dblake3.library=libblake3.so Blake3Sum.java --check CHECKFILE...
+ * </code></pre>
+ */
 public class Blake3Sum {
+  /**
+   * Files up to this size are read in the worker buffer instead of being mapped.
+   */
+  static final int READ_BUFFER_SIZE = 64 * 1024;
+  /**
+   * Files larger than this are split in subtrees hashed on the common fork-join pool.
+   */
+  static final long TREE_HASH_THRESHOLD = 128L * 1024 * 1024;
 
-  public static void main(String[] args) throws IOException {
-    var path = Path.of("/Users/brice.dutheil/Downloads/openjdk-21-jextract+1-2_macos-x64_bin.tar.gz");
-    System.load("/Users/brice.dutheil/opensource/BLAKE3/c/libblake3.so");
+  private static final String STDIN = "-";
+  private static final HexFormat HEX = HexFormat.of();
 
-    try (Arena arena = Arena.ofConfined();
-         FileChannel channel = FileChannel.open(path)) {
-      var start = System.nanoTime();
+  private static final ThreadLocal<FileHasher> FILE_HASHER = ThreadLocal.withInitial(FileHasher::new);
 
-      var hasher = blake3_hasher.allocate(arena);
-      blake3_h.blake3_hasher_init(hasher);
+  public static void main(String[] args) throws IOException, InterruptedException {
+    var check = false;
+    var threads = Runtime.getRuntime().availableProcessors();
+    var paths = new ArrayList<Path>();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-c", "--check" -> check = true;
+        case "--threads" -> threads = Integer.parseInt(args[++i]);
+        default -> paths.add(Path.of(args[i]));
+      }
+    }
+    if (paths.isEmpty()) {
+      if (check) {
+        System.err.println("Usage: Blake3Sum [--threads N] [PATH|-]... | Blake3Sum --check CHECKFILE...");
+        System.exit(2);
+      }
+      paths.add(Path.of(STDIN));
+    }
 
-      var content = channel.map(
-              MapMode.READ_ONLY,
-              0,
-              Files.size(path),
-              arena
-      );
+    boolean ok;
+    try (var executor = Executors.newFixedThreadPool(threads)) {
+      ok = check ? check(paths, executor) : sum(paths, executor);
+    }
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+   * Prints the hash of every regular file under the given paths, in walk order.
+   */
+  static boolean sum(List<Path> roots, ExecutorService executor) throws InterruptedException {
+    var window = new OrderedWindow(executor);
+    for (var root : roots) {
+      if (root.toString().equals(STDIN)) {
+        window.submit(STDIN, () -> new Result(formatLine(Blake3StreamHasher.hash(System.in), STDIN), true));
+        continue;
+      }
+      try (Stream<Path> files = Files.walk(root)) {
+        for (var file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+          window.submit(file.toString(), () -> new Result(formatLine(hash(file), file.toString()), true));
+        }
+      } catch (IOException | UncheckedIOException e) {
+        System.err.println(STR."b3sum: \{root}: \{e.getMessage()}");
+        window.failed();
+      }
+    }
+    return window.drain();
+  }
 
-      blake3_h.blake3_hasher_update(hasher, content, content.byteSize());
+  /**
+   * Verifies the files listed in {@code b3sum} checkfiles.
+   */
+  static boolean check(List<Path> checkFiles, ExecutorService executor) throws InterruptedException {
+    var window = new OrderedWindow(executor);
+    for (var checkFile : checkFiles) {
+      try (Stream<String> lines = Files.lines(checkFile)) {
+        for (var line : (Iterable<String>) lines::iterator) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          var escaped = line.startsWith("\\");
+          var separator = line.indexOf("  ");
+          if (separator != (escaped ? 65 : 64)) {
+            System.err.println(STR."b3sum: \{checkFile}: invalid line: \{line}");
+            window.failed();
+            continue;
+          }
+          var expected = line.substring(escaped ? 1 : 0, separator);
+          var name = escaped ? unescape(line.substring(separator + 2)) : line.substring(separator + 2);
+          window.submit(name, () -> {
+            try {
+              var matches = HEX.formatHex(hash(Path.of(name))).equalsIgnoreCase(expected);
+              return new Result(STR."\{name}: \{matches ? "OK" : "FAILED"}", matches);
+            } catch (IOException | InvalidPathException e) {
+              // like b3sum, a file that cannot be read fails its line only
+              var reason = e instanceof NoSuchFileException ? "No such file or directory" : e.getMessage();
+              return new Result(STR."\{name}: FAILED (\{reason})", false);
+            }
+          });
+        }
+      } catch (IOException | UncheckedIOException e) {
+        System.err.println(STR."b3sum: \{checkFile}: \{e.getMessage()}");
+        window.failed();
+      }
+    }
+    return window.drain();
+  }
 
-      var out = arena.allocate(blake3_h.BLAKE3_OUT_LEN());
-      blake3_h.blake3_hasher_finalize(hasher, out, blake3_h.BLAKE3_OUT_LEN());
+  static byte[] hash(Path path) throws IOException {
+    return FILE_HASHER.get().hash(path);
+  }
 
-      var end = System.nanoTime();
+  /**
+   * Same escaping as {@code b3sum}, lines with a backslash or a newline in the file name are prefixed by a backslash.
+   */
+  static String formatLine(byte[] digest, String name) {
+    if (name.indexOf('\\') >= 0 || name.indexOf('\n') >= 0) {
+      return STR."\\\{HEX.formatHex(digest)}  \{name.replace("\\", "\\\\").replace("\n", "\\n")}";
+    }
+    return STR."\{HEX.formatHex(digest)}  \{name}";
+  }
 
-      var sigBytes = out.toArray(ValueLayout.JAVA_BYTE);
-      var sigHex = HexFormat.of().formatHex(sigBytes);
-      System.out.println(sigHex);
-      System.out.println("time: " + (end - start) / 1000000 + "ms");
-      
-      assert sigHex.equalsIgnoreCase("6b1b63cf578e129b38ba424f18cc9f12956d1e3d38206e225aeeb4fd53eaae49") : "oups";
+  static String unescape(String name) {
+    var sb = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      var c = name.charAt(i);
+      if (c == '\\' && i + 1 < name.length()) {
+        var next = name.charAt(++i);
+        sb.append(next == 'n' ? '\n' : next);
+      } else {
+        sb.append(c);
+      }
     }
+    return sb.toString();
   }
-}
 
+  /**
+   * Per worker thread state, the buffer and hasher are reused for every small file.
+   */
+  private static final class FileHasher {
+    private final Arena arena = Arena.ofAuto();
+    private final Blake3Hasher hasher = Blake3Hasher.create(arena);
+    private final ByteBuffer readBuffer = arena.allocate(READ_BUFFER_SIZE, 4096).asByteBuffer();
+    private final MemorySegment readSegment = MemorySegment.ofBuffer(readBuffer);
+
+    byte[] hash(Path path) throws IOException {
+      try (var channel = FileChannel.open(path)) {
+        var size = channel.size();
+        if (size > TREE_HASH_THRESHOLD) {
+          try (var mappingArena = Arena.ofShared()) {
+            return Blake3TreeHasher.create().digest(channel.map(MapMode.READ_ONLY, 0, size, mappingArena));
+          }
+        }
+
+        hasher.reset();
+        if (size > READ_BUFFER_SIZE) {
+          try (var mappingArena = Arena.ofConfined()) {
+            hasher.update(channel.map(MapMode.READ_ONLY, 0, size, mappingArena));
+          }
+        } else {
+          // also covers files whose size is not known upfront, e.g. in /proc
+          int read;
+          while ((read = channel.read(readBuffer.clear())) >= 0) {
+            hasher.update(readSegment.asSlice(0, read));
+          }
+        }
+        return hasher.digest();
+      }
+    }
+  }
+
+  private record Result(String line, boolean ok) {}
+
+  @FunctionalInterface
+  private interface Job {
+    Result compute() throws IOException;
+  }
+
+  /**
+   * Bounded window of in-flight files, lines are printed in submission order.
+   */
+  private static final class OrderedWindow {
+    private final ExecutorService executor;
+    private final int capacity;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private boolean ok = true;
+
+    private record Pending(String name, Future<Result> result) {}
+
+    OrderedWindow(ExecutorService executor) {
+      this.executor = executor;
+      this.capacity = Runtime.getRuntime().availableProcessors() * 16;
+    }
 
+    void submit(String name, Job job) throws InterruptedException {
+      if (pending.size() >= capacity) {
+        printHead();
+      }
+      pending.add(new Pending(name, executor.submit(job::compute)));
+    }
+
+    void failed() {
+      ok = false;
+    }
+
+    boolean drain() throws InterruptedException {
+      while (!pending.isEmpty()) {
+        printHead();
+      }
+      return ok;
+    }
+
+    private void printHead() throws InterruptedException {
+      var head = pending.remove();
+      try {
+        var result = head.result.get();
+        System.out.println(result.line);
+        ok &= result.ok;
+      } catch (ExecutionException e) {
+        System.err.println(STR."b3sum: \{head.name}: \{e.getCause().getMessage()}");
+        ok = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import blake3.blake3_h;
+import blake3.blake3_hasher;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Initialized {@code blake3_hasher} state, computed once and copied into hashers.
+ * <p>
+ * {@code blake3_hasher_init_derive_key} hashes the context string to get the
+ * context key, and keyed hashers carry their key; a template does this work
+ * once, then {@link Blake3Hasher#reset(Blake3Template)} is a plain memory copy
+ * of the initialized struct. Only the struct prefix up to the chaining value
+ * stack is copied, the stack content is irrelevant when its length is zero.
+ * <p>
+ * A template is immutable once created, it can be shared by threads if its arena allows it.
+ */
+public final class Blake3Template {
+  static final long INITIALIZED_PREFIX = blake3_hasher.layout().byteOffset(PathElement.groupElement("cv_stack"));
+
+  static {
+    Blake3Library.load();
+  }
+
+  private final MemorySegment state;
+
+  private Blake3Template(MemorySegment state) {
+    this.state = state.asReadOnly();
+  }
+
+  /**
+   * Template for regular hashing.
+   */
+  public static Blake3Template plain(Arena arena) {
+    var state = blake3_hasher.allocate(arena);
+    blake3_h.blake3_hasher_init(state);
+    return new Blake3Template(state);
+  }
+
+  /**
+   * Template for keyed hashing, i.e. a MAC, the key must be {@value Blake3Hasher#KEY_LEN} bytes.
+   * <p>
+   * The key is only read during this call, it can live in secret memory.
+   */
+  public static Blake3Template keyed(MemorySegment key, Arena arena) {
+    if (key.byteSize() != Blake3Hasher.KEY_LEN) {
+      throw new IllegalArgumentException("key must be " + Blake3Hasher.KEY_LEN + " bytes, got " + key.byteSize());
+    }
+    var state = blake3_hasher.allocate(arena);
+    if (key.isNative()) {
+      blake3_h.blake3_hasher_init_keyed(state, key);
+    } else {
+      try (var keyArena = Arena.ofConfined()) {
+        var nativeKey = keyArena.allocate(Blake3Hasher.KEY_LEN).copyFrom(key);
+        blake3_h.blake3_hasher_init_keyed(state, nativeKey);
+        nativeKey.fill((byte) 0);
+      }
+    }
+    return new Blake3Template(state);
+  }
+
+  /**
+   * Template for key derivation, the context should be hardcoded, globally unique, and application-specific.
+   */
+  public static Blake3Template deriveKey(String context, Arena arena) {
+    var contextBytes = context.getBytes(StandardCharsets.UTF_8);
+    var state = blake3_hasher.allocate(arena);
+    try (var contextArena = Arena.ofConfined()) {
+      var nativeContext = contextArena.allocateFrom(ValueLayout.JAVA_BYTE, contextBytes);
+      blake3_h.blake3_hasher_init_derive_key_raw(state, nativeContext, contextBytes.length);
+    }
+    return new Blake3Template(state);
+  }
+
+  /**
+   * The read-only initialized {@code blake3_hasher} struct.
+   */
+  MemorySegment state() {
+    return state;
+  }
+
+  /**
+   * Copies the initialized state in the given hasher state.
+   */
+  void copyTo(MemorySegment hasherState) {
+    MemorySegment.copy(state, 0, hasherState, 0, INITIALIZED_PREFIX);
+  }
+}
@@ -0,0 +1,377 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import blake3.blake3_hasher;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.LongStream;
+
+import static io.github.bric3.panama.blake3.Blake3Compression.CHUNK_END;
+import static io.github.bric3.panama.blake3.Blake3Compression.CHUNK_START;
+import static io.github.bric3.panama.blake3.Blake3Hasher.BLOCK_LEN;
+import static io.github.bric3.panama.blake3.Blake3Hasher.CHUNK_LEN;
+import static io.github.bric3.panama.blake3.Blake3Hasher.OUT_LEN;
+
+/**
+ * Multi-threaded BLAKE3 hashing of a large native segment.
+ * <p>
+ * BLAKE3 is a Merkle tree on the inside: the input is split in 1 KiB chunks,
+ * and every left subtree has a power of two number of chunks. This class
+ * follows the same split, subtrees up to {@link #subtreeSize()} are hashed by
+ * the native library on a {@link ForkJoinPool} worker, each worker reusing its
+ * own {@code blake3_hasher}, and the subtree chaining values are then joined
+ * as parent nodes up to the root. The digest is the same as a single
+ * {@code blake3_hasher_update} over the whole input.
+ * <p>
+ * The C API has no entry point to hash a subtree at a given chunk offset,
+ * so the leaf hasher state is adjusted through the {@code blake3_hasher} struct
+ * layout extracted by jextract: the chunk counter is moved to the subtree
+ * offset, and the chaining value stack is padded so the lazy merge of the
+ * C implementation (based on the popcount of the chunk counter) stays within
+ * the subtree. The non-root chaining value is then computed from the
+ * leftover chunk state and stack, like {@code blake3_hasher_finalize} does
+ * for the root.
+ * <p>
+ * The struct layout comes from the {@code blake3.h} given to jextract, it is
+ * checked against the loaded library before the first tree digest, and a
+ * mismatch fails with an {@link IllegalStateException} rather than a wrong
+ * digest. {@link #main(String[])} compares tree digests with sequential ones.
+ * <p>
+ * The input segment is read from pool threads, so it must be accessible
+ * from any thread, e.g. mapped in a shared or global arena.
+ */
+public final class Blake3TreeHasher {
+  /**
+   * Smallest subtree handed to a worker, smaller subtrees cost more in
+   * task scheduling than they gain in parallelism.
+   */
+  public static final long MIN_SUBTREE_SIZE = 256 * 1024;
+
+  private static final long KEY_OFFSET = offset(PathElement.groupElement("key"));
+  private static final long CHUNK_CV_OFFSET = offset(PathElement.groupElement("chunk"), PathElement.groupElement("cv"));
+  private static final long CHUNK_COUNTER_OFFSET = offset(PathElement.groupElement("chunk"), PathElement.groupElement("chunk_counter"));
+  private static final long CHUNK_BUF_OFFSET = offset(PathElement.groupElement("chunk"), PathElement.groupElement("buf"));
+  private static final long CHUNK_BUF_LEN_OFFSET = offset(PathElement.groupElement("chunk"), PathElement.groupElement("buf_len"));
+  private static final long CHUNK_BLOCKS_COMPRESSED_OFFSET = offset(PathElement.groupElement("chunk"), PathElement.groupElement("blocks_compressed"));
+  private static final long CHUNK_FLAGS_OFFSET = offset(PathElement.groupElement("chunk"), PathElement.groupElement("flags"));
+  private static final long CV_STACK_LEN_OFFSET = offset(PathElement.groupElement("cv_stack_len"));
+  private static final long CV_STACK_OFFSET = offset(PathElement.groupElement("cv_stack"));
+
+  private static final ThreadLocal<Blake3Hasher> WORKER_HASHER = ThreadLocal.withInitial(
+          () -> Blake3Hasher.create(Arena.ofAuto())
+  );
+
+  private final ForkJoinPool pool;
+  private final long subtreeSize;
+
+  private Blake3TreeHasher(ForkJoinPool pool, long subtreeSize) {
+    this.pool = pool;
+    this.subtreeSize = subtreeSize;
+  }
+
+  /**
+   * Tree hasher on the common pool, the subtree size is derived from the input size.
+   */
+  public static Blake3TreeHasher create() {
+    return new Blake3TreeHasher(ForkJoinPool.commonPool(), 0);
+  }
+
+  /**
+   * Tree hasher on the given pool, with a fixed subtree size.
+   *
+   * @param subtreeSize a power of two number of bytes, at least {@value Blake3Hasher#CHUNK_LEN},
+   *                    or {@code 0} to derive it from the input size.
+   */
+  public static Blake3TreeHasher create(ForkJoinPool pool, long subtreeSize) {
+    if (subtreeSize != 0 && (subtreeSize < CHUNK_LEN || Long.bitCount(subtreeSize) != 1)) {
+      throw new IllegalArgumentException("subtree size must be a power of two >= " + CHUNK_LEN + ", got " + subtreeSize);
+    }
+    return new Blake3TreeHasher(pool, subtreeSize);
+  }
+
+  public long subtreeSize() {
+    return subtreeSize;
+  }
+
+  /**
+   * Hashes the whole segment and writes the {@value Blake3Hasher#OUT_LEN} bytes digest in {@code out}.
+   */
+  public void digest(MemorySegment input, MemorySegment out) {
+    var subtree = subtreeSize != 0 ? subtreeSize : subtreeSizeFor(input.byteSize(), pool.getParallelism());
+    if (input.byteSize() <= subtree) {
+      WORKER_HASHER.get().reset().update(input).digest(out);
+      return;
+    }
+
+    StateLayout.ensureChecked();
+    var root = pool.invoke(new SubtreeTask(input, 0, input.byteSize(), subtree));
+    Blake3Compression.rootParentOutput(root.left, root.right, Blake3Compression.IV, 0, out);
+  }
+
+  public byte[] digest(MemorySegment input) {
+    var digest = new byte[OUT_LEN];
+    digest(input, MemorySegment.ofArray(digest));
+    return digest;
+  }
+
+  /**
+   * Aims at a handful of subtrees per worker, so work stealing can balance unequal workers.
+   */
+  static long subtreeSizeFor(long inputSize, int parallelism) {
+    var target = inputSize / (parallelism * 8L);
+    return Math.max(MIN_SUBTREE_SIZE, Long.highestOneBit(Math.max(target, 1)));
+  }
+
+  /**
+   * Size of the left subtree, the largest power of two number of full chunks
+   * that leaves at least one byte for the right subtree.
+   */
+  static long leftSubtreeSize(long length) {
+    var fullChunks = (length - 1) / CHUNK_LEN;
+    return Long.highestOneBit(fullChunks) * CHUNK_LEN;
+  }
+
+  /**
+   * Left and right chaining values of a parent node, kept apart so the root can be finalized with the ROOT flag.
+   */
+  private record Parent(int[] left, int[] right) {
+    int[] chainingValue() {
+      return Blake3Compression.parentChainingValue(left, right, Blake3Compression.IV, 0);
+    }
+  }
+
+  private static final class SubtreeTask extends RecursiveTask<Parent> {
+    private final MemorySegment input;
+    private final long offset;
+    private final long length;
+    private final long subtreeSize;
+
+    SubtreeTask(MemorySegment input, long offset, long length, long subtreeSize) {
+      this.input = input;
+      this.offset = offset;
+      this.length = length;
+      this.subtreeSize = subtreeSize;
+    }
+
+    @Override
+    protected Parent compute() {
+      var leftLength = leftSubtreeSize(length);
+      var right = new ChainingValueTask(input, offset + leftLength, length - leftLength, subtreeSize);
+      right.fork();
+      var left = new ChainingValueTask(input, offset, leftLength, subtreeSize).compute();
+      return new Parent(left, right.join());
+    }
+  }
+
+  private static final class ChainingValueTask extends RecursiveTask<int[]> {
+    private final MemorySegment input;
+    private final long offset;
+    private final long length;
+    private final long subtreeSize;
+
+    ChainingValueTask(MemorySegment input, long offset, long length, long subtreeSize) {
+      this.input = input;
+      this.offset = offset;
+      this.length = length;
+      this.subtreeSize = subtreeSize;
+    }
+
+    @Override
+    protected int[] compute() {
+      if (length <= subtreeSize) {
+        return leafChainingValue(WORKER_HASHER.get(), input.asSlice(offset, length), offset / CHUNK_LEN);
+      }
+      return new SubtreeTask(input, offset, length, subtreeSize).compute().chainingValue();
+    }
+  }
+
+  /**
+   * Non-root chaining value of the subtree starting at {@code chunkCounter}.
+   * <p>
+   * The chunk counter must be a multiple of the number of chunks in the subtree,
+   * which is the case for every subtree of the BLAKE3 tree.
+   */
+  static int[] leafChainingValue(Blake3Hasher hasher, MemorySegment subtree, long chunkCounter) {
+    var state = hasher.reset().state();
+    // the C hasher expects popcount(chunk_counter) entries in the stack for the chunks before this subtree
+    var base = Long.bitCount(chunkCounter);
+    state.set(ValueLayout.JAVA_LONG_UNALIGNED, CHUNK_COUNTER_OFFSET, chunkCounter);
+    state.set(ValueLayout.JAVA_BYTE, CV_STACK_LEN_OFFSET, (byte) base);
+
+    hasher.update(subtree);
+
+    return nonRootChainingValue(state, base);
+  }
+
+  /**
+   * Same roll-up as {@code blake3_hasher_finalize}, but without the ROOT flag,
+   * ignoring the first {@code base} entries of the chaining value stack.
+   */
+  static int[] nonRootChainingValue(MemorySegment state, int base) {
+    var key = Blake3Compression.readWords(state, KEY_OFFSET, 8);
+    var flags = Byte.toUnsignedInt(state.get(ValueLayout.JAVA_BYTE, CHUNK_FLAGS_OFFSET));
+    var stackLength = Byte.toUnsignedInt(state.get(ValueLayout.JAVA_BYTE, CV_STACK_LEN_OFFSET)) - base;
+    var bufLength = Byte.toUnsignedInt(state.get(ValueLayout.JAVA_BYTE, CHUNK_BUF_LEN_OFFSET));
+    var blocksCompressed = Byte.toUnsignedInt(state.get(ValueLayout.JAVA_BYTE, CHUNK_BLOCKS_COMPRESSED_OFFSET));
+
+    int[] cv;
+    int remaining;
+    if (bufLength + blocksCompressed * BLOCK_LEN > 0) {
+      var block = new int[16];
+      for (int i = 0; i < bufLength; i++) {
+        block[i / 4] |= Byte.toUnsignedInt(state.get(ValueLayout.JAVA_BYTE, CHUNK_BUF_OFFSET + i)) << (8 * (i % 4));
+      }
+      cv = Blake3Compression.chainingValue(
+              Blake3Compression.readWords(state, CHUNK_CV_OFFSET, 8),
+              block,
+              state.get(ValueLayout.JAVA_LONG_UNALIGNED, CHUNK_COUNTER_OFFSET),
+              bufLength,
+              flags | (blocksCompressed == 0 ? CHUNK_START : 0) | CHUNK_END
+      );
+      remaining = stackLength;
+    } else {
+      // there are always at least 2 chaining values in the stack in this case
+      remaining = stackLength - 2;
+      cv = Blake3Compression.parentChainingValue(
+              stackEntry(state, base + remaining),
+              stackEntry(state, base + remaining + 1),
+              key,
+              flags
+      );
+    }
+    while (remaining > 0) {
+      remaining--;
+      cv = Blake3Compression.parentChainingValue(stackEntry(state, base + remaining), cv, key, flags);
+    }
+    return cv;
+  }
+
+  /**
+   * Checks that the {@code blake3_hasher} fields used by the leaf hashing are where
+   * jextract put them, in the loaded library.
+   * <p>
+   * Hashing one chunk, one block and a few bytes leaves the chaining value of the
+   * first chunk in the stack and the second chunk half compressed, each of these
+   * fields is compared with the same state computed in Java.
+   *
+   * @throws IllegalStateException if the layout does not match, e.g. the library is another BLAKE3 version.
+   */
+  static void checkStateLayout() {
+    try (var arena = Arena.ofConfined()) {
+      var tailLength = 5;
+      var input = arena.allocate(CHUNK_LEN + BLOCK_LEN + tailLength);
+      for (long i = 0; i < input.byteSize(); i++) {
+        input.set(ValueLayout.JAVA_BYTE, i, (byte) (i % 251));
+      }
+      var state = Blake3Hasher.create(arena).update(input).state();
+
+      var firstChunk = Blake3Compression.IV;
+      var blocksPerChunk = CHUNK_LEN / BLOCK_LEN;
+      for (int block = 0; block < blocksPerChunk; block++) {
+        firstChunk = Blake3Compression.chainingValue(
+                firstChunk,
+                Blake3Compression.readWords(input, (long) block * BLOCK_LEN, 16),
+                0,
+                BLOCK_LEN,
+                (block == 0 ? CHUNK_START : 0) | (block == blocksPerChunk - 1 ? CHUNK_END : 0)
+        );
+      }
+      var secondChunk = Blake3Compression.chainingValue(
+              Blake3Compression.IV,
+              Blake3Compression.readWords(input, CHUNK_LEN, 16),
+              1,
+              BLOCK_LEN,
+              CHUNK_START
+      );
+
+      var matches = Arrays.equals(Blake3Compression.readWords(state, KEY_OFFSET, 8), Blake3Compression.IV)
+                    && Arrays.equals(Blake3Compression.readWords(state, CHUNK_CV_OFFSET, 8), secondChunk)
+                    && state.get(ValueLayout.JAVA_LONG_UNALIGNED, CHUNK_COUNTER_OFFSET) == 1
+                    && MemorySegment.mismatch(state, CHUNK_BUF_OFFSET, CHUNK_BUF_OFFSET + tailLength, input, CHUNK_LEN + BLOCK_LEN, input.byteSize()) == -1
+                    && state.get(ValueLayout.JAVA_BYTE, CHUNK_BUF_LEN_OFFSET) == tailLength
+                    && state.get(ValueLayout.JAVA_BYTE, CHUNK_BLOCKS_COMPRESSED_OFFSET) == 1
+                    && state.get(ValueLayout.JAVA_BYTE, CHUNK_FLAGS_OFFSET) == 0
+                    && state.get(ValueLayout.JAVA_BYTE, CV_STACK_LEN_OFFSET) == 1
+                    && Arrays.equals(stackEntry(state, 0), firstChunk);
+      if (!matches) {
+        throw new IllegalStateException("blake3_hasher layout from blake3.h does not match the loaded library, regenerate the bindings with the headers of this library");
+      }
+    }
+  }
+
+  /**
+   * Checks the layout once, on the thread of the first tree digest, not from a pool worker.
+   */
+  private static final class StateLayout {
+    static {
+      checkStateLayout();
+    }
+
+    static void ensureChecked() {
+    }
+  }
+
+  /**
+   * Compares tree digests with a sequential {@code blake3_hasher_update} for sizes
+   * around one chunk, around the subtree sizes, and powers of two, exits with 1 on a mismatch.
+   * <pre><code>
+   * java --enable-preview --enable-native-access=ALL-UNNAMED -cp ... io.github.bric3.panama.blake3.Blake3TreeHasher
+   * </code></pre>
+   */
+  public static void main(String[] args) {
+    var maxLength = 1L << 24;
+    var checks = 0;
+    var mismatches = 0;
+    try (var arena = Arena.ofShared();
+         var sequential = Blake3Hasher.create()) {
+      var input = arena.allocate(maxLength + 1, 64);
+      for (long i = 0; i < input.byteSize(); i++) {
+        input.set(ValueLayout.JAVA_BYTE, i, (byte) (i % 251));
+      }
+
+      for (var subtreeSize : new long[]{CHUNK_LEN, 4 * CHUNK_LEN, MIN_SUBTREE_SIZE}) {
+        var tree = create(ForkJoinPool.commonPool(), subtreeSize);
+        var lengths = LongStream.builder();
+        for (var around : new long[]{CHUNK_LEN, subtreeSize, 2 * subtreeSize, 3 * subtreeSize}) {
+          lengths.add(around - 1).add(around).add(around + 1);
+        }
+        for (long power = 1; power <= maxLength; power <<= 1) {
+          lengths.add(power - 1).add(power).add(power + 1);
+        }
+
+        for (var length : lengths.build().distinct().sorted().toArray()) {
+          var slice = input.asSlice(0, length);
+          checks++;
+          if (!Arrays.equals(tree.digest(slice), sequential.reset().update(slice).digest())) {
+            mismatches++;
+            System.err.println(STR."digest mismatch for \{length} bytes with subtrees of \{subtreeSize} bytes");
+          }
+        }
+      }
+    }
+    System.out.println(STR."\{checks} tree digests checked, \{mismatches} mismatches");
+    System.exit(mismatches == 0 ? 0 : 1);
+  }
+
+  private static int[] stackEntry(MemorySegment state, int index) {
+    return Blake3Compression.readWords(state, CV_STACK_OFFSET + (long) index * OUT_LEN, 8);
+  }
+
+  private static long offset(PathElement... path) {
+    return blake3_hasher.layout().byteOffset(path);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3;
+
+import blake3.blake3_h;
+import blake3.blake3_hasher;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Extendable output of a BLAKE3 hasher, a seekable stream of output bytes.
+ * <p>
+ * The hasher state is copied when the XOF is created, later updates of the
+ * hasher do not affect this output. Each {@link #read(MemorySegment)} is a single
+ * {@code blake3_hasher_finalize_seek} call writing directly in the caller's
+ * native segment, whatever its size, so hundreds of MB of keystream do not
+ * go through the heap.
+ * <p>
+ * Output blocks are independent, seeking is free. Not thread-safe, but
+ * several XOFs of the same hasher can be used concurrently, e.g. one per range.
+ */
+public final class Blake3Xof {
+  private final MemorySegment state;
+  private final MemorySegment scratch;
+  private long position;
+
+  Blake3Xof(MemorySegment hasherState, Arena arena) {
+    this.state = blake3_hasher.allocate(arena).copyFrom(hasherState);
+    this.scratch = arena.allocate(Blake3Hasher.STAGING_SIZE, 64);
+  }
+
+  public long position() {
+    return position;
+  }
+
+  public Blake3Xof seek(long position) {
+    if (position < 0) {
+      throw new IllegalArgumentException("negative position: " + position);
+    }
+    this.position = position;
+    return this;
+  }
+
+  /**
+   * Fills the segment with the next output bytes.
+   */
+  public Blake3Xof read(MemorySegment output) {
+    var length = output.byteSize();
+    if (output.isNative()) {
+      blake3_h.blake3_hasher_finalize_seek(state, position, output, length);
+    } else {
+      for (long offset = 0; offset < length; offset += scratch.byteSize()) {
+        var size = Math.min(scratch.byteSize(), length - offset);
+        blake3_h.blake3_hasher_finalize_seek(state, position + offset, scratch, size);
+        MemorySegment.copy(scratch, 0, output, offset, size);
+      }
+    }
+    position += length;
+    return this;
+  }
+
+  /**
+   * XORs the next output bytes into the segment, i.e. uses the output as a keystream.
+   */
+  public Blake3Xof xor(MemorySegment data) {
+    var length = data.byteSize();
+    for (long offset = 0; offset < length; offset += scratch.byteSize()) {
+      var size = Math.min(scratch.byteSize(), length - offset);
+      blake3_h.blake3_hasher_finalize_seek(state, position + offset, scratch, size);
+      xor(data, offset, scratch, size);
+    }
+    position += length;
+    return this;
+  }
+
+  private static void xor(MemorySegment data, long offset, MemorySegment keystream, long size) {
+    long i = 0;
+    for (; i + Long.BYTES <= size; i += Long.BYTES) {
+      data.set(ValueLayout.JAVA_LONG_UNALIGNED, offset + i,
+               data.get(ValueLayout.JAVA_LONG_UNALIGNED, offset + i) ^ keystream.get(ValueLayout.JAVA_LONG_UNALIGNED, i));
+    }
+    for (; i < size; i++) {
+      data.set(ValueLayout.JAVA_BYTE, offset + i,
+               (byte) (data.get(ValueLayout.JAVA_BYTE, offset + i) ^ keystream.get(ValueLayout.JAVA_BYTE, i)));
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3.cas;
+
+import io.github.bric3.panama.blake3.Blake3Hasher;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store of chunks, deduplicated by their BLAKE3 digest.
+ * <p>
+ * Contents are split by a {@link Chunker}, each chunk is hashed with a reused
+ * {@link Blake3Hasher} directly from the input segment, e.g. a mapped file,
+ * and appended to the current {@link PackFile} only if its digest is unknown.
+ * The digest to location mapping is a {@link DigestIndex} off-heap, rebuilt
+ * when the store is opened by scanning the pack files.
+ * <p>
+ * Stored chunks are returned as read-only slices of the pack mappings, no copy
+ * is made until they are written somewhere. These slices are valid until the
+ * store is closed.
+ * <p>
+ * Methods are thread-safe, writes are serialized.
+ *
+ * <pre><code>
+ * java --enable-native-access=ALL-UNNAMED -Dblake3.library=libblake3.so ChunkStore.java STORE_DIR [--fixed SIZE] FILE...
+ * </code></pre>
+ */
+public final class ChunkStore implements AutoCloseable {
+  public static final long DEFAULT_PACK_CAPACITY = 1L << 30;
+  private static final String PACK_PREFIX = "pack-";
+  private static final String PACK_SUFFIX = ".b3p";
+
+  private final Path directory;
+  private final Chunker chunker;
+  private final long packCapacity;
+  private final List<PackFile> packs = new ArrayList<>();
+  private final DigestIndex index;
+  private final Arena arena = Arena.ofShared();
+  private final Blake3Hasher hasher = Blake3Hasher.create(arena);
+  private final MemorySegment digest = arena.allocate(Blake3Hasher.OUT_LEN);
+  private PackFile current;
+  private long storedBytes;
+  private long dedupedBytes;
+
+  private ChunkStore(Path directory, Chunker chunker, long packCapacity) {
+    this.directory = directory;
+    this.chunker = chunker;
+    this.packCapacity = packCapacity;
+    this.index = new DigestIndex(1024);
+  }
+
+  /**
+   * Opens the store with content defined chunks of 64 KiB on average.
+   */
+  public static ChunkStore open(Path directory) throws IOException {
+    return open(directory, Chunker.contentDefined(16 * 1024, 64 * 1024, 256 * 1024), DEFAULT_PACK_CAPACITY);
+  }
+
+  public static ChunkStore open(Path directory, Chunker chunker, long packCapacity) throws IOException {
+    if (packCapacity <= PackFile.HEADER_SIZE + PackFile.RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("pack capacity too small: " + packCapacity);
+    }
+    Files.createDirectories(directory);
+    var store = new ChunkStore(directory, chunker, packCapacity);
+    try (Stream<Path> files = Files.list(directory)) {
+      var packPaths = files.filter(ChunkStore::isPack).sorted().toList();
+      for (var packPath : packPaths) {
+        var pack = PackFile.open(packPath);
+        var packId = store.packs.size();
+        store.packs.add(pack);
+        pack.scan((digest, offset, length) -> {
+          if (store.index.insert(digest, packId, offset, length)) {
+            store.storedBytes += length;
+          }
+        });
+      }
+    } catch (IOException | RuntimeException e) {
+      store.close();
+      throw e;
+    }
+    return store;
+  }
+
+  /**
+   * Stores the chunks of the content that are not already present.
+   */
+  public synchronized Manifest put(MemorySegment content) throws IOException {
+    var digests = new byte[16 * Blake3Hasher.OUT_LEN];
+    var count = 0;
+    for (long offset = 0; offset < content.byteSize(); ) {
+      var end = chunker.chunkEnd(content, offset);
+      var chunk = content.asSlice(offset, end - offset);
+      hasher.reset().update(chunk).digest(digest);
+      if (index.find(digest) >= 0) {
+        dedupedBytes += chunk.byteSize();
+      } else {
+        append(chunk);
+      }
+
+      if ((count + 1) * Blake3Hasher.OUT_LEN > digests.length) {
+        digests = Arrays.copyOf(digests, digests.length * 2);
+      }
+      MemorySegment.copy(digest, 0, MemorySegment.ofArray(digests), (long) count * Blake3Hasher.OUT_LEN, Blake3Hasher.OUT_LEN);
+      count++;
+      offset = end;
+    }
+    return new Manifest(content.byteSize(), Arrays.copyOf(digests, count * Blake3Hasher.OUT_LEN));
+  }
+
+  /**
+   * Stores the chunks of the file, the file is memory mapped.
+   */
+  public Manifest put(Path file) throws IOException {
+    try (var channel = FileChannel.open(file);
+         var mappingArena = Arena.ofConfined()) {
+      return put(channel.map(MapMode.READ_ONLY, 0, channel.size(), mappingArena));
+    }
+  }
+
+  public synchronized boolean contains(MemorySegment digest) {
+    return index.find(digest) >= 0;
+  }
+
+  /**
+   * Read-only view of the chunk, or {@code null} if unknown.
+   */
+  public synchronized MemorySegment get(MemorySegment digest) {
+    var slot = index.find(digest);
+    if (slot < 0) {
+      return null;
+    }
+    return packs.get(index.pack(slot)).chunk(index.offset(slot), index.length(slot));
+  }
+
+  /**
+   * Writes the content described by the manifest.
+   */
+  public void restore(Manifest manifest, WritableByteChannel target) throws IOException {
+    for (int i = 0; i < manifest.chunkCount(); i++) {
+      var chunk = get(manifest.digest(i));
+      if (chunk == null) {
+        throw new IOException(STR."missing chunk \{HexFormat.of().formatHex(manifest.digest(i).toArray(ValueLayout.JAVA_BYTE))}");
+      }
+      var buffer = chunk.asByteBuffer();
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+    }
+  }
+
+  /**
+   * Writes the pending records of the current pack to the storage device.
+   */
+  public synchronized void flush() {
+    if (current != null) {
+      current.force();
+    }
+  }
+
+  public synchronized Stats stats() {
+    return new Stats(index.size(), storedBytes, dedupedBytes, packs.size());
+  }
+
+  /**
+   * @param chunks       number of distinct chunks
+   * @param storedBytes  bytes of distinct chunks
+   * @param dedupedBytes bytes not stored because already present, since the store was opened
+   * @param packs        number of pack files
+   */
+  public record Stats(long chunks, long storedBytes, long dedupedBytes, int packs) {}
+
+  @Override
+  public synchronized void close() throws IOException {
+    IOException failure = null;
+    for (var pack : packs) {
+      try {
+        pack.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    packs.clear();
+    index.close();
+    arena.close();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void append(MemorySegment chunk) throws IOException {
+    var offset = current == null ? -1 : current.append(digest, chunk);
+    if (offset < 0) {
+      // a chunk larger than the pack capacity gets its own pack
+      var capacity = Math.max(packCapacity, PackFile.HEADER_SIZE + PackFile.RECORD_HEADER_SIZE + chunk.byteSize());
+      current = PackFile.create(directory.resolve(STR."\{PACK_PREFIX}\{"%08d".formatted(packs.size())}\{PACK_SUFFIX}"), capacity);
+      packs.add(current);
+      offset = current.append(digest, chunk);
+    }
+    index.insert(digest, packs.size() - 1, offset, (int) chunk.byteSize());
+    storedBytes += chunk.byteSize();
+  }
+
+  private static boolean isPack(Path path) {
+    var name = path.getFileName().toString();
+    return name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX) && Files.isRegularFile(path);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: ChunkStore STORE_DIR [--fixed SIZE] FILE...");
+      System.exit(2);
+    }
+    var chunker = Chunker.contentDefined(16 * 1024, 64 * 1024, 256 * 1024);
+    var files = new ArrayList<Path>();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--fixed")) {
+        chunker = Chunker.fixed(Integer.parseInt(args[++i]));
+      } else {
+        files.add(Path.of(args[i]));
+      }
+    }
+
+    try (var store = open(Path.of(args[0]), chunker, DEFAULT_PACK_CAPACITY)) {
+      for (var file : files) {
+        var manifest = store.put(file);
+        System.out.println(STR."\{HexFormat.of().formatHex(manifest.id())}  \{manifest.chunkCount()} chunks  \{file}");
+      }
+      System.out.println(store.stats());
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3.cas;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.SplittableRandom;
+
+/**
+ * Splits content in chunks.
+ */
+public sealed interface Chunker {
+  /**
+   * Returns the end (exclusive) of the chunk starting at {@code offset}.
+   */
+  long chunkEnd(MemorySegment data, long offset);
+
+  /**
+   * Chunks of {@code size} bytes, an insertion shifts every following chunk.
+   */
+  static Chunker fixed(int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("size must be positive, got " + size);
+    }
+    return new Fixed(size);
+  }
+
+  /**
+   * Content defined chunks, boundaries depend on the content only, so an insertion
+   * only changes the chunks around it.
+   *
+   * @param averageSize a power of two
+   */
+  static Chunker contentDefined(int minSize, int averageSize, int maxSize) {
+    if (Integer.bitCount(averageSize) != 1 || minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+      throw new IllegalArgumentException(
+              STR."expected 0 < min <= average <= max and average a power of two: \{minSize}, \{averageSize}, \{maxSize}"
+      );
+    }
+    var lowMask = averageSize - 1L;
+    return new ContentDefined(minSize, lowMask << (64 - Long.bitCount(lowMask)), maxSize);
+  }
+
+  record Fixed(int size) implements Chunker {
+    @Override
+    public long chunkEnd(MemorySegment data, long offset) {
+      return Math.min(data.byteSize(), offset + size);
+    }
+  }
+
+  /**
+   * Gear rolling hash, as in FastCDC: a boundary is found when the high bits of the hash are zero.
+   * <p>
+   * Each byte is shifted one bit further, so the low bits only depend on the last few
+   * bytes, the mask selects the high bits that depend on the whole window.
+   */
+  record ContentDefined(int minSize, long mask, int maxSize) implements Chunker {
+    private static final long[] GEAR = new SplittableRandom(0xB1A4E3L).longs(256).toArray();
+
+    @Override
+    public long chunkEnd(MemorySegment data, long offset) {
+      var end = Math.min(data.byteSize(), offset + maxSize);
+      var position = offset + minSize;
+      if (position >= end) {
+        return end;
+      }
+      var hash = 0L;
+      for (; position < end; position++) {
+        hash = (hash << 1) + GEAR[Byte.toUnsignedInt(data.get(ValueLayout.JAVA_BYTE, position))];
+        if ((hash & mask) == 0) {
+          return position + 1;
+        }
+      }
+      return end;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3.cas;
+
+import io.github.bric3.panama.blake3.Blake3Hasher;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Off-heap open addressing hash table, from a 32 bytes digest to a chunk location.
+ * <p>
+ * Each entry is a 48 bytes slot, with no object per entry, where a
+ * {@code HashMap<String, ...>} of hex digests costs several hundred bytes per
+ * entry in the heap. The table stays below {@value #MAX_LOAD} full, a million
+ * chunks take 2^21 slots, 96 MiB, and up to 144 MiB while growing, as the old
+ * and new tables coexist.
+ * Digests are uniformly distributed, so the first 8 bytes are used as the hash,
+ * collisions are resolved by linear probing. A slot with a zero length is empty.
+ * <p>
+ * Not thread-safe.
+ */
+final class DigestIndex implements AutoCloseable {
+  static final StructLayout SLOT = MemoryLayout.structLayout(
+          MemoryLayout.sequenceLayout(Blake3Hasher.OUT_LEN, ValueLayout.JAVA_BYTE).withName("digest"),
+          ValueLayout.JAVA_LONG.withName("offset"),
+          ValueLayout.JAVA_INT.withName("pack"),
+          ValueLayout.JAVA_INT.withName("length")
+  ).withName("slot");
+  private static final long OFFSET = SLOT.byteOffset(PathElement.groupElement("offset"));
+  private static final long PACK = SLOT.byteOffset(PathElement.groupElement("pack"));
+  private static final long LENGTH = SLOT.byteOffset(PathElement.groupElement("length"));
+  private static final double MAX_LOAD = 0.7;
+
+  private Arena arena;
+  private MemorySegment slots;
+  private long capacity;
+  private long size;
+
+  DigestIndex(long initialCapacity) {
+    allocate(Math.max(16, Long.highestOneBit(Math.max(1, initialCapacity - 1)) << 1));
+  }
+
+  long size() {
+    return size;
+  }
+
+  /**
+   * Returns the slot of the digest, or {@code -1}.
+   */
+  long find(MemorySegment digest) {
+    for (long slot = home(digest); ; slot = (slot + 1) & (capacity - 1)) {
+      if (length(slot) == 0) {
+        return -1;
+      }
+      if (matches(slot, digest)) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Inserts the location of the digest, unless it is already present.
+   *
+   * @return {@code true} if inserted
+   */
+  boolean insert(MemorySegment digest, int pack, long offset, int length) {
+    if (length <= 0) {
+      throw new IllegalArgumentException("length must be positive, got " + length);
+    }
+    if (size + 1 > capacity * MAX_LOAD) {
+      grow();
+    }
+    for (long slot = home(digest); ; slot = (slot + 1) & (capacity - 1)) {
+      if (length(slot) == 0) {
+        var base = slot * SLOT.byteSize();
+        MemorySegment.copy(digest, 0, slots, base, Blake3Hasher.OUT_LEN);
+        slots.set(ValueLayout.JAVA_LONG, base + OFFSET, offset);
+        slots.set(ValueLayout.JAVA_INT, base + PACK, pack);
+        slots.set(ValueLayout.JAVA_INT, base + LENGTH, length);
+        size++;
+        return true;
+      }
+      if (matches(slot, digest)) {
+        return false;
+      }
+    }
+  }
+
+  int pack(long slot) {
+    return slots.get(ValueLayout.JAVA_INT, slot * SLOT.byteSize() + PACK);
+  }
+
+  long offset(long slot) {
+    return slots.get(ValueLayout.JAVA_LONG, slot * SLOT.byteSize() + OFFSET);
+  }
+
+  int length(long slot) {
+    return slots.get(ValueLayout.JAVA_INT, slot * SLOT.byteSize() + LENGTH);
+  }
+
+  @Override
+  public void close() {
+    arena.close();
+  }
+
+  private long home(MemorySegment digest) {
+    return digest.get(ValueLayout.JAVA_LONG_UNALIGNED, 0) & (capacity - 1);
+  }
+
+  private boolean matches(long slot, MemorySegment digest) {
+    var base = slot * SLOT.byteSize();
+    return MemorySegment.mismatch(slots, base, base + Blake3Hasher.OUT_LEN, digest, 0, Blake3Hasher.OUT_LEN) == -1;
+  }
+
+  private void allocate(long newCapacity) {
+    arena = Arena.ofShared();
+    // allocate zeroes the memory, all slots are empty
+    slots = arena.allocate(SLOT, newCapacity);
+    capacity = newCapacity;
+    size = 0;
+  }
+
+  private void grow() {
+    var oldArena = arena;
+    var oldSlots = slots;
+    var oldCapacity = capacity;
+    allocate(capacity << 1);
+    for (long slot = 0; slot < oldCapacity; slot++) {
+      var base = slot * SLOT.byteSize();
+      var length = oldSlots.get(ValueLayout.JAVA_INT, base + LENGTH);
+      if (length != 0) {
+        insert(
+                oldSlots.asSlice(base, Blake3Hasher.OUT_LEN),
+                oldSlots.get(ValueLayout.JAVA_INT, base + PACK),
+                oldSlots.get(ValueLayout.JAVA_LONG, base + OFFSET),
+                length
+        );
+      }
+    }
+    oldArena.close();
+  }
+}
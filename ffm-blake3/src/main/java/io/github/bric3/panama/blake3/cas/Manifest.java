@@ -0,0 +1,86 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3.cas;
+
+import io.github.bric3.panama.blake3.Blake3Hasher;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Ordered list of the chunk digests of a content, packed in a single array.
+ * <p>
+ * The {@link #id()} is hashed once, when the manifest is created.
+ */
+public final class Manifest {
+  private final long size;
+  private final byte[] digests;
+  private final byte[] id;
+
+  /**
+   * @param size    the content size
+   * @param digests the concatenated {@value Blake3Hasher#OUT_LEN} bytes digests
+   */
+  public Manifest(long size, byte[] digests) {
+    if (digests.length % Blake3Hasher.OUT_LEN != 0) {
+      throw new IllegalArgumentException("digests length must be a multiple of " + Blake3Hasher.OUT_LEN);
+    }
+    this.size = size;
+    this.digests = digests;
+    try (var hasher = Blake3Hasher.create()) {
+      this.id = hasher.update(digests).digest();
+    }
+  }
+
+  /**
+   * The content size.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * The concatenated {@value Blake3Hasher#OUT_LEN} bytes digests.
+   */
+  public byte[] digests() {
+    return digests;
+  }
+
+  public int chunkCount() {
+    return digests.length / Blake3Hasher.OUT_LEN;
+  }
+
+  public MemorySegment digest(int index) {
+    return MemorySegment.ofArray(digests).asSlice((long) index * Blake3Hasher.OUT_LEN, Blake3Hasher.OUT_LEN);
+  }
+
+  /**
+   * Identifier of the content, the BLAKE3 hash of the chunk digests.
+   */
+  public byte[] id() {
+    return id;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof Manifest other && size == other.size && Arrays.equals(digests, other.digests);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Long.hashCode(size) + Arrays.hashCode(digests);
+  }
+
+  @Override
+  public String toString() {
+    return STR."Manifest[id=\{HexFormat.of().formatHex(id())}, size=\{size}, chunks=\{chunkCount()}]";
+  }
+}
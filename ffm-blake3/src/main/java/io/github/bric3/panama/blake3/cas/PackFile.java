@@ -0,0 +1,171 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.blake3.cas;
+
+import io.github.bric3.panama.blake3.Blake3Hasher;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only file of chunk records, memory mapped.
+ * <p>
+ * The file starts with an 8 bytes magic, followed by records
+ * {@code [length: u32][digest: 32 bytes][data: length bytes]}, with native byte order.
+ * A writable pack is mapped at its full capacity upfront, so appending is a
+ * memory copy, no {@code write} syscall nor remapping. The file is sparse until
+ * written, and truncated to its used size on close. After a crash the tail of
+ * the file is zeroes, the scan stops at the first zero length record.
+ * <p>
+ * The mapping lives in a shared arena, chunks are read from any thread.
+ */
+final class PackFile implements AutoCloseable {
+  static final long MAGIC = 0x3130_4b43_4150_3342L; // "B3PACK01" in little endian
+  static final long HEADER_SIZE = Long.BYTES;
+  static final long RECORD_HEADER_SIZE = Integer.BYTES + Blake3Hasher.OUT_LEN;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final Arena arena;
+  private final MemorySegment mapping;
+  private final boolean writable;
+  private long size;
+
+  private PackFile(Path path, FileChannel channel, MemorySegment mapping, Arena arena, boolean writable, long size) {
+    this.path = path;
+    this.channel = channel;
+    this.mapping = mapping;
+    this.arena = arena;
+    this.writable = writable;
+    this.size = size;
+  }
+
+  /**
+   * Creates a new pack that can hold {@code capacity} bytes, header included.
+   */
+  static PackFile create(Path path, long capacity) throws IOException {
+    var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    var arena = Arena.ofShared();
+    try {
+      var mapping = channel.map(MapMode.READ_WRITE, 0, capacity, arena);
+      mapping.set(ValueLayout.JAVA_LONG_UNALIGNED, 0, MAGIC);
+      return new PackFile(path, channel, mapping, arena, true, HEADER_SIZE);
+    } catch (IOException | RuntimeException e) {
+      arena.close();
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens an existing pack read-only.
+   */
+  static PackFile open(Path path) throws IOException {
+    var channel = FileChannel.open(path, StandardOpenOption.READ);
+    var arena = Arena.ofShared();
+    try {
+      var mapping = channel.map(MapMode.READ_ONLY, 0, channel.size(), arena);
+      if (mapping.byteSize() < HEADER_SIZE || mapping.get(ValueLayout.JAVA_LONG_UNALIGNED, 0) != MAGIC) {
+        throw new IOException(STR."\{path}: not a pack file");
+      }
+      return new PackFile(path, channel, mapping, arena, false, mapping.byteSize());
+    } catch (IOException | RuntimeException e) {
+      arena.close();
+      channel.close();
+      throw e;
+    }
+  }
+
+  Path path() {
+    return path;
+  }
+
+  long size() {
+    return size;
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @return the offset of the chunk data, or {@code -1} if the pack is full.
+   */
+  long append(MemorySegment digest, MemorySegment data) {
+    if (!writable) {
+      throw new IllegalStateException(STR."\{path} is read-only");
+    }
+    var length = data.byteSize();
+    if (size + RECORD_HEADER_SIZE + length > mapping.byteSize()) {
+      return -1;
+    }
+    var dataOffset = size + RECORD_HEADER_SIZE;
+    MemorySegment.copy(digest, 0, mapping, size + Integer.BYTES, Blake3Hasher.OUT_LEN);
+    MemorySegment.copy(data, 0, mapping, dataOffset, length);
+    // the length comes last, a record is visible to a scan only once complete
+    mapping.set(ValueLayout.JAVA_INT_UNALIGNED, size, (int) length);
+    size = dataOffset + length;
+    return dataOffset;
+  }
+
+  /**
+   * Read-only view of the chunk data, valid until the pack is closed.
+   */
+  MemorySegment chunk(long offset, int length) {
+    return mapping.asSlice(offset, length).asReadOnly();
+  }
+
+  @FunctionalInterface
+  interface RecordVisitor {
+    void visit(MemorySegment digest, long offset, int length);
+  }
+
+  /**
+   * Visits the complete records of this pack.
+   */
+  void scan(RecordVisitor visitor) {
+    var position = HEADER_SIZE;
+    while (position + RECORD_HEADER_SIZE <= size) {
+      var length = mapping.get(ValueLayout.JAVA_INT_UNALIGNED, position);
+      if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+        break;
+      }
+      visitor.visit(mapping.asSlice(position + Integer.BYTES, Blake3Hasher.OUT_LEN), position + RECORD_HEADER_SIZE, length);
+      position += RECORD_HEADER_SIZE + length;
+    }
+  }
+
+  /**
+   * Writes the appended records to the storage device.
+   */
+  void force() {
+    if (writable) {
+      mapping.force();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try (channel) {
+      if (writable) {
+        mapping.force();
+      }
+      // unmap before truncating
+      arena.close();
+      if (writable) {
+        channel.truncate(size);
+      }
+    }
+  }
+}
@@ -20,6 +20,12 @@
  *     blake3_avx2.o blake3_avx512.o blake3_sse41.o blake3_sse2.o
  * ```
  *
+ * The batch shim is built by `compileBlake3Batch`, point `blake3_home` to this folder:
+ *
+ * ```
+ * ./gradlew :ffm-blake3:compileBlake3Batch -Pblake3_home=$HOME/opensource/BLAKE3/c
+ * ```
+ *
  *
  */
 package io.github.bric3.panama.blake3;
\ No newline at end of file
@@ -0,0 +1,39 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+plugins {
+  id("panama.java-conventions")
+  id("me.champeau.jmh") version "0.7.2"
+}
+
+// jmh-core and jmh-generator-annprocess
+repositories {
+  mavenCentral()
+}
+
+dependencies {
+  jmh(project(":ffm-offheap-sort"))
+}
+
+// ./gradlew :ffm-offheap-sort-jmh:jmh
+// ./gradlew :ffm-offheap-sort-jmh:jmh -Pjmh_includes=SegmentSortBenchmark
+jmh {
+  jmhVersion.set("1.37")
+  // Need to set the toolchain, the plugin uses the Gradle JVM otherwise
+  jvm.set(javaToolchains.launcherFor(java.toolchain).map { it.executablePath.asFile.absolutePath })
+  jvmArgsAppend.addAll(
+    "-Xmx4g",
+    "--enable-native-access=ALL-UNNAMED",
+    "--enable-preview",
+  )
+  providers.gradleProperty("jmh_includes").orNull?.let {
+    includes.add(it)
+  }
+  resultFormat.set("JSON")
+}
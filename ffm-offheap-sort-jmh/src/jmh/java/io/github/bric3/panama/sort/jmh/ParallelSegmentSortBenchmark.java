@@ -0,0 +1,106 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.sort.jmh;
+
+import io.github.bric3.panama.sort.ParallelSegmentSort;
+import io.github.bric3.panama.sort.SegmentSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+/**
+ * Sorting random {@code long}s in a shared arena segment, on the common pool.
+ * <p>
+ * The scratch of the parallel sorts is preallocated, {@code arraysParallelSort}
+ * copies to a Java array and back. Every benchmark first restores the unsorted input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParallelSegmentSortBenchmark {
+  @Param({"1000000", "16000000", "128000000"})
+  public long size;
+
+  private Arena arena;
+  private MemorySegment unsorted;
+  private MemorySegment data;
+  private SegmentAllocator scratch;
+  private final ParallelSegmentSort sorter = ParallelSegmentSort.common();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    arena = Arena.ofShared();
+    var byteSize = size * ValueLayout.JAVA_LONG.byteSize();
+    unsorted = arena.allocate(byteSize, 64);
+    var seed = new SplittableRandom().nextLong();
+    LongStream.range(0, size)
+              .parallel()
+              .forEach(i -> unsorted.setAtIndex(ValueLayout.JAVA_LONG, i, new SplittableRandom(seed ^ i).nextLong()));
+    data = arena.allocate(byteSize, 64);
+    scratch = SegmentAllocator.prefixAllocator(arena.allocate(byteSize, 64));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    arena.close();
+  }
+
+  @Benchmark
+  public MemorySegment radixSort() {
+    data.copyFrom(unsorted);
+    sorter.radixSortLongs(data, scratch);
+    return data;
+  }
+
+  @Benchmark
+  public MemorySegment mergeSort() {
+    data.copyFrom(unsorted);
+    sorter.mergeSortLongs(data, scratch);
+    return data;
+  }
+
+  @Benchmark
+  public MemorySegment sequentialSort() {
+    data.copyFrom(unsorted);
+    SegmentSort.sortLongs(data);
+    return data;
+  }
+
+  @Benchmark
+  public MemorySegment arraysParallelSort() {
+    data.copyFrom(unsorted);
+    var array = data.toArray(ValueLayout.JAVA_LONG);
+    Arrays.parallelSort(array);
+    MemorySegment.copy(array, 0, data, ValueLayout.JAVA_LONG, 0, array.length);
+    return data;
+  }
+}
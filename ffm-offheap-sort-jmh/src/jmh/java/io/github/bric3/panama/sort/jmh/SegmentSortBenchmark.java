@@ -0,0 +1,144 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.sort.jmh;
+
+import io.github.bric3.panama.sort.SegmentSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting random {@code int}s held in a native segment.
+ * <p>
+ * {@code qsortUpcall} is the {@code Qsort} example, a comparator upcall per comparison.
+ * {@code arraysSort} and {@code arraysParallelSort} copy to a Java array and back.
+ * {@code segmentSort} sorts in place with {@link SegmentSort}.
+ * Every benchmark first restores the unsorted input, the copy is part of each score.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentSortBenchmark {
+  private static final Linker LINKER = Linker.nativeLinker();
+  // void qsort(void *base, size_t nmemb, size_t size, int (*compar)(const void *, const void *));
+  private static final MethodHandle qsort = LINKER.downcallHandle(
+          LINKER.defaultLookup().find("qsort").orElseThrow(),
+          FunctionDescriptor.ofVoid(
+                  ValueLayout.ADDRESS,
+                  ValueLayout.JAVA_LONG,
+                  ValueLayout.JAVA_LONG,
+                  ValueLayout.ADDRESS
+          )
+  );
+
+  @Param({"1000", "100000", "1000000"})
+  public int size;
+
+  private Arena arena;
+  private MemorySegment unsorted;
+  private MemorySegment data;
+  private MemorySegment compareUpcall;
+
+  @Setup(Level.Trial)
+  public void setUp() throws ReflectiveOperationException {
+    arena = Arena.ofConfined();
+    unsorted = arena.allocateFrom(
+            ValueLayout.JAVA_INT,
+            ThreadLocalRandom.current().ints(size).toArray()
+    );
+    data = arena.allocate(unsorted.byteSize(), 64);
+    compareUpcall = LINKER.upcallStub(
+            MethodHandles.lookup().findStatic(
+                    SegmentSortBenchmark.class,
+                    "qsortCompare",
+                    MethodType.methodType(int.class, MemorySegment.class, MemorySegment.class)
+            ),
+            FunctionDescriptor.of(
+                    ValueLayout.JAVA_INT,
+                    ValueLayout.ADDRESS.withTargetLayout(ValueLayout.JAVA_INT),
+                    ValueLayout.ADDRESS.withTargetLayout(ValueLayout.JAVA_INT)
+            ),
+            arena
+    );
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    arena.close();
+  }
+
+  @Benchmark
+  public MemorySegment qsortUpcall() {
+    data.copyFrom(unsorted);
+    try {
+      qsort.invokeExact(data, (long) size, ValueLayout.JAVA_INT.byteSize(), compareUpcall);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+    return data;
+  }
+
+  @Benchmark
+  public MemorySegment segmentSort() {
+    data.copyFrom(unsorted);
+    SegmentSort.sortInts(data);
+    return data;
+  }
+
+  @Benchmark
+  public MemorySegment arraysSort() {
+    data.copyFrom(unsorted);
+    var array = data.toArray(ValueLayout.JAVA_INT);
+    Arrays.sort(array);
+    MemorySegment.copy(array, 0, data, ValueLayout.JAVA_INT, 0, array.length);
+    return data;
+  }
+
+  @Benchmark
+  public MemorySegment arraysParallelSort() {
+    data.copyFrom(unsorted);
+    var array = data.toArray(ValueLayout.JAVA_INT);
+    Arrays.parallelSort(array);
+    MemorySegment.copy(array, 0, data, ValueLayout.JAVA_INT, 0, array.length);
+    return data;
+  }
+
+  static int qsortCompare(MemorySegment addr1, MemorySegment addr2) {
+    return Integer.compare(
+            addr1.get(ValueLayout.JAVA_INT, 0),
+            addr2.get(ValueLayout.JAVA_INT, 0)
+    );
+  }
+}
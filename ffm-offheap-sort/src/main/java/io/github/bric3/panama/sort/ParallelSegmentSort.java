@@ -0,0 +1,418 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.sort;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Sorts large native segments of {@code int} or {@code long} keys on a fork-join pool.
+ * <p>
+ * Two algorithms, both needing a scratch segment the size of the data:
+ * <ul>
+ *   <li>LSD radix sort, one pass per 8 bits digit. Each pass counts the digits of
+ *   every chunk in parallel, turns the counts into per chunk offsets, then scatters
+ *   the chunks in parallel. A pass is skipped when all keys share the digit, e.g. the
+ *   high bytes of small keys. The sign bit of the last digit is flipped so negative
+ *   keys come first.</li>
+ *   <li>Merge sort, chunks sorted with {@link SegmentSort} then merged pairwise, large
+ *   merges are split around the median of the larger run so the last merges are
+ *   parallel too.</li>
+ * </ul>
+ * Data never goes through Java arrays. The data and scratch segments are accessed by
+ * the pool threads, they must come from a shared or global arena, or be mapped files
+ * in one; confined segments fail with {@link WrongThreadException}. The scratch
+ * allocator can be a {@link SegmentAllocator#slicingAllocator(MemorySegment) slicing
+ * allocator} over a mapped file when the scratch does not fit in memory.
+ * <p>
+ * Below {@value #SEQUENTIAL_THRESHOLD} elements, both delegate to {@link SegmentSort}.
+ */
+public final class ParallelSegmentSort {
+  static final long SEQUENTIAL_THRESHOLD = 1 << 16;
+  private static final int RADIX_BITS = 8;
+  private static final int BUCKETS = 1 << RADIX_BITS;
+  private static final int MASK = BUCKETS - 1;
+  private static final long MIN_CHUNK = 1 << 14;
+
+  private static final ParallelSegmentSort COMMON = new ParallelSegmentSort(ForkJoinPool.commonPool());
+
+  private final ForkJoinPool pool;
+
+  public ParallelSegmentSort(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Sorts on the {@link ForkJoinPool#commonPool() common pool}.
+   */
+  public static ParallelSegmentSort common() {
+    return COMMON;
+  }
+
+  /**
+   * Radix sorts, the scratch is allocated in a temporary shared arena.
+   */
+  public void radixSortInts(MemorySegment data) {
+    try (var arena = Arena.ofShared()) {
+      radixSortInts(data, arena);
+    }
+  }
+
+  public void radixSortInts(MemorySegment data, SegmentAllocator scratch) {
+    var length = SegmentSort.count(data, JAVA_INT);
+    if (length < SEQUENTIAL_THRESHOLD) {
+      SegmentSort.sortInts(data);
+      return;
+    }
+    var chunks = chunks(length);
+    var counts = new long[chunks][BUCKETS];
+    var src = data;
+    var dst = scratch.allocate(data.byteSize(), 64);
+    for (int digit = 0; digit < Integer.BYTES; digit++) {
+      var shift = digit * RADIX_BITS;
+      var flip = digit == Integer.BYTES - 1 ? BUCKETS >>> 1 : 0;
+      var from = src;
+      var to = dst;
+      forEachChunk(chunks, chunk -> {
+        var count = counts[chunk];
+        Arrays.fill(count, 0);
+        for (long i = chunkStart(chunk, chunks, length), end = chunkStart(chunk + 1, chunks, length); i < end; i++) {
+          count[(from.getAtIndex(JAVA_INT, i) >>> shift & MASK) ^ flip]++;
+        }
+      });
+      if (!toOffsets(counts, length)) {
+        continue;
+      }
+      forEachChunk(chunks, chunk -> {
+        var offset = counts[chunk];
+        for (long i = chunkStart(chunk, chunks, length), end = chunkStart(chunk + 1, chunks, length); i < end; i++) {
+          var value = from.getAtIndex(JAVA_INT, i);
+          to.setAtIndex(JAVA_INT, offset[(value >>> shift & MASK) ^ flip]++, value);
+        }
+      });
+      src = to;
+      dst = from;
+    }
+    copyBack(src, data, chunks);
+  }
+
+  /**
+   * Radix sorts, the scratch is allocated in a temporary shared arena.
+   */
+  public void radixSortLongs(MemorySegment data) {
+    try (var arena = Arena.ofShared()) {
+      radixSortLongs(data, arena);
+    }
+  }
+
+  public void radixSortLongs(MemorySegment data, SegmentAllocator scratch) {
+    var length = SegmentSort.count(data, JAVA_LONG);
+    if (length < SEQUENTIAL_THRESHOLD) {
+      SegmentSort.sortLongs(data);
+      return;
+    }
+    var chunks = chunks(length);
+    var counts = new long[chunks][BUCKETS];
+    var src = data;
+    var dst = scratch.allocate(data.byteSize(), 64);
+    for (int digit = 0; digit < Long.BYTES; digit++) {
+      var shift = digit * RADIX_BITS;
+      var flip = digit == Long.BYTES - 1 ? BUCKETS >>> 1 : 0;
+      var from = src;
+      var to = dst;
+      forEachChunk(chunks, chunk -> {
+        var count = counts[chunk];
+        Arrays.fill(count, 0);
+        for (long i = chunkStart(chunk, chunks, length), end = chunkStart(chunk + 1, chunks, length); i < end; i++) {
+          count[((int) (from.getAtIndex(JAVA_LONG, i) >>> shift) & MASK) ^ flip]++;
+        }
+      });
+      if (!toOffsets(counts, length)) {
+        continue;
+      }
+      forEachChunk(chunks, chunk -> {
+        var offset = counts[chunk];
+        for (long i = chunkStart(chunk, chunks, length), end = chunkStart(chunk + 1, chunks, length); i < end; i++) {
+          var value = from.getAtIndex(JAVA_LONG, i);
+          to.setAtIndex(JAVA_LONG, offset[((int) (value >>> shift) & MASK) ^ flip]++, value);
+        }
+      });
+      src = to;
+      dst = from;
+    }
+    copyBack(src, data, chunks);
+  }
+
+  /**
+   * Merge sorts, the scratch is allocated in a temporary shared arena.
+   */
+  public void mergeSortInts(MemorySegment data) {
+    try (var arena = Arena.ofShared()) {
+      mergeSortInts(data, arena);
+    }
+  }
+
+  public void mergeSortInts(MemorySegment data, SegmentAllocator scratch) {
+    var length = SegmentSort.count(data, JAVA_INT);
+    if (length < SEQUENTIAL_THRESHOLD) {
+      SegmentSort.sortInts(data);
+      return;
+    }
+    pool.invoke(new MergeSortTask(data, scratch.allocate(data.byteSize(), 64), 0, length, false, leafSize(length), false));
+  }
+
+  /**
+   * Merge sorts, the scratch is allocated in a temporary shared arena.
+   */
+  public void mergeSortLongs(MemorySegment data) {
+    try (var arena = Arena.ofShared()) {
+      mergeSortLongs(data, arena);
+    }
+  }
+
+  public void mergeSortLongs(MemorySegment data, SegmentAllocator scratch) {
+    var length = SegmentSort.count(data, JAVA_LONG);
+    if (length < SEQUENTIAL_THRESHOLD) {
+      SegmentSort.sortLongs(data);
+      return;
+    }
+    pool.invoke(new MergeSortTask(data, scratch.allocate(data.byteSize(), 64), 0, length, false, leafSize(length), true));
+  }
+
+  private int chunks(long length) {
+    return (int) Math.max(1, Math.min(pool.getParallelism() * 4L, length / MIN_CHUNK));
+  }
+
+  private long leafSize(long length) {
+    return Math.max(SEQUENTIAL_THRESHOLD, length / (pool.getParallelism() * 4L));
+  }
+
+  private static long chunkStart(int chunk, int chunks, long length) {
+    return length * chunk / chunks;
+  }
+
+  /**
+   * Turns the digit counts of each chunk into the first destination index of each
+   * digit for that chunk, chunks in order so the pass is stable.
+   *
+   * @return {@code false} if all keys share the same digit, the pass can be skipped
+   */
+  private static boolean toOffsets(long[][] counts, long length) {
+    var offset = 0L;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      var total = 0L;
+      for (var count : counts) {
+        total += count[bucket];
+      }
+      if (total == length) {
+        return false;
+      }
+      for (var count : counts) {
+        var chunkCount = count[bucket];
+        count[bucket] = offset;
+        offset += chunkCount;
+      }
+    }
+    return true;
+  }
+
+  private void copyBack(MemorySegment sorted, MemorySegment data, int chunks) {
+    if (sorted == data) {
+      return;
+    }
+    var size = data.byteSize();
+    forEachChunk(chunks, chunk -> {
+      // chunks of bytes, may split an element, the copy does not care
+      var start = chunkStart(chunk, chunks, size);
+      var end = chunkStart(chunk + 1, chunks, size);
+      MemorySegment.copy(sorted, start, data, start, end - start);
+    });
+  }
+
+  private void forEachChunk(int chunks, IntConsumer body) {
+    var tasks = new ArrayList<ForkJoinTask<?>>(chunks);
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      var c = chunk;
+      tasks.add(ForkJoinTask.adapt(() -> body.accept(c)));
+    }
+    pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+  }
+
+  /**
+   * Sorts {@code [lo, hi)} into the data, or into the buffer if {@code toBuffer}.
+   * <p>
+   * Halves alternate destination, so each merge reads from one segment and writes
+   * to the other.
+   */
+  private static final class MergeSortTask extends RecursiveAction {
+    private final MemorySegment data;
+    private final MemorySegment buffer;
+    private final long lo;
+    private final long hi;
+    private final boolean toBuffer;
+    private final long leafSize;
+    private final boolean longs;
+
+    MergeSortTask(MemorySegment data, MemorySegment buffer, long lo, long hi, boolean toBuffer, long leafSize, boolean longs) {
+      this.data = data;
+      this.buffer = buffer;
+      this.lo = lo;
+      this.hi = hi;
+      this.toBuffer = toBuffer;
+      this.leafSize = leafSize;
+      this.longs = longs;
+    }
+
+    @Override
+    protected void compute() {
+      var elementSize = longs ? Long.BYTES : Integer.BYTES;
+      if (hi - lo <= leafSize) {
+        if (longs) {
+          SegmentSort.sortLongs(data, lo, hi);
+        } else {
+          SegmentSort.sortInts(data, lo, hi);
+        }
+        if (toBuffer) {
+          MemorySegment.copy(data, lo * elementSize, buffer, lo * elementSize, (hi - lo) * elementSize);
+        }
+        return;
+      }
+      var mid = (lo + hi) >>> 1;
+      invokeAll(
+              new MergeSortTask(data, buffer, lo, mid, !toBuffer, leafSize, longs),
+              new MergeSortTask(data, buffer, mid, hi, !toBuffer, leafSize, longs)
+      );
+      var src = toBuffer ? data : buffer;
+      var dst = toBuffer ? buffer : data;
+      new MergeTask(src, lo, mid, mid, hi, dst, lo, longs).compute();
+    }
+  }
+
+  /**
+   * Merges the sorted runs {@code [aLo, aHi)} and {@code [bLo, bHi)} of {@code src}
+   * into {@code dst} from {@code dstLo}.
+   */
+  private static final class MergeTask extends RecursiveAction {
+    private final MemorySegment src;
+    private final long aLo;
+    private final long aHi;
+    private final long bLo;
+    private final long bHi;
+    private final MemorySegment dst;
+    private final long dstLo;
+    private final boolean longs;
+
+    MergeTask(MemorySegment src, long aLo, long aHi, long bLo, long bHi, MemorySegment dst, long dstLo, boolean longs) {
+      this.src = src;
+      this.aLo = aLo;
+      this.aHi = aHi;
+      this.bLo = bLo;
+      this.bHi = bHi;
+      this.dst = dst;
+      this.dstLo = dstLo;
+      this.longs = longs;
+    }
+
+    @Override
+    protected void compute() {
+      if ((aHi - aLo) + (bHi - bLo) <= SEQUENTIAL_THRESHOLD) {
+        if (longs) {
+          mergeLongs(src, aLo, aHi, bLo, bHi, dst, dstLo);
+        } else {
+          mergeInts(src, aLo, aHi, bLo, bHi, dst, dstLo);
+        }
+        return;
+      }
+      if (aHi - aLo < bHi - bLo) {
+        // split around the median of the larger run
+        new MergeTask(src, bLo, bHi, aLo, aHi, dst, dstLo, longs).compute();
+        return;
+      }
+      // A[aLo, aMid) <= pivot, B[bLo, bMid) < pivot, the rest is >= pivot
+      var aMid = (aLo + aHi) >>> 1;
+      var bMid = longs
+                 ? lowerBoundLongs(src, bLo, bHi, src.getAtIndex(JAVA_LONG, aMid))
+                 : lowerBoundInts(src, bLo, bHi, src.getAtIndex(JAVA_INT, aMid));
+      var dstMid = dstLo + (aMid - aLo) + (bMid - bLo);
+      invokeAll(
+              new MergeTask(src, aLo, aMid, bLo, bMid, dst, dstLo, longs),
+              new MergeTask(src, aMid, aHi, bMid, bHi, dst, dstMid, longs)
+      );
+    }
+  }
+
+  private static void mergeInts(MemorySegment src, long aLo, long aHi, long bLo, long bHi, MemorySegment dst, long d) {
+    while (aLo < aHi && bLo < bHi) {
+      var a = src.getAtIndex(JAVA_INT, aLo);
+      var b = src.getAtIndex(JAVA_INT, bLo);
+      if (b < a) {
+        dst.setAtIndex(JAVA_INT, d++, b);
+        bLo++;
+      } else {
+        dst.setAtIndex(JAVA_INT, d++, a);
+        aLo++;
+      }
+    }
+    MemorySegment.copy(src, aLo * Integer.BYTES, dst, d * Integer.BYTES, (aHi - aLo) * Integer.BYTES);
+    d += aHi - aLo;
+    MemorySegment.copy(src, bLo * Integer.BYTES, dst, d * Integer.BYTES, (bHi - bLo) * Integer.BYTES);
+  }
+
+  private static void mergeLongs(MemorySegment src, long aLo, long aHi, long bLo, long bHi, MemorySegment dst, long d) {
+    while (aLo < aHi && bLo < bHi) {
+      var a = src.getAtIndex(JAVA_LONG, aLo);
+      var b = src.getAtIndex(JAVA_LONG, bLo);
+      if (b < a) {
+        dst.setAtIndex(JAVA_LONG, d++, b);
+        bLo++;
+      } else {
+        dst.setAtIndex(JAVA_LONG, d++, a);
+        aLo++;
+      }
+    }
+    MemorySegment.copy(src, aLo * Long.BYTES, dst, d * Long.BYTES, (aHi - aLo) * Long.BYTES);
+    d += aHi - aLo;
+    MemorySegment.copy(src, bLo * Long.BYTES, dst, d * Long.BYTES, (bHi - bLo) * Long.BYTES);
+  }
+
+  private static long lowerBoundInts(MemorySegment src, long lo, long hi, int key) {
+    while (lo < hi) {
+      var mid = (lo + hi) >>> 1;
+      if (src.getAtIndex(JAVA_INT, mid) < key) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static long lowerBoundLongs(MemorySegment src, long lo, long hi, long key) {
+    while (lo < hi) {
+      var mid = (lo + hi) >>> 1;
+      if (src.getAtIndex(JAVA_LONG, mid) < key) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
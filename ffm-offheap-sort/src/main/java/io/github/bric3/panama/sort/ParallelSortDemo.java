@@ -0,0 +1,77 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.sort;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.stream.LongStream;
+
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Sorts random {@code long}s off-heap, with each algorithm.
+ * <p>
+ * With a file, the longs are written to the file and sorted in the mapping,
+ * the scratch is a second file mapped next to it.
+ *
+ * <pre><code>
+ * java --enable-preview -cp ... io.github.bric3.panama.sort.ParallelSortDemo [COUNT] [FILE]
+ * </code></pre>
+ */
+public class ParallelSortDemo {
+  public static void main(String[] args) throws IOException {
+    var count = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+    var file = args.length > 1 ? Path.of(args[1]) : null;
+    var size = count * JAVA_LONG.byteSize();
+    var sorter = ParallelSegmentSort.common();
+
+    try (var arena = Arena.ofShared()) {
+      var data = file == null ? arena.allocate(size, 64) : map(file, size, arena);
+      // every sort reuses the scratch from its start
+      var scratch = SegmentAllocator.prefixAllocator(
+              file == null
+              ? arena.allocate(size, 64)
+              : map(file.resolveSibling(STR."\{file.getFileName()}.scratch"), size, arena)
+      );
+
+      time("radix", data, () -> sorter.radixSortLongs(data, scratch));
+      time("merge", data, () -> sorter.mergeSortLongs(data, scratch));
+      time("sequential", data, () -> SegmentSort.sortLongs(data));
+    }
+  }
+
+  private static MemorySegment map(Path path, long size, Arena arena) throws IOException {
+    try (var channel = FileChannel.open(path, CREATE, READ, WRITE)) {
+      return channel.map(MapMode.READ_WRITE, 0, size, arena);
+    }
+  }
+
+  private static void time(String name, MemorySegment data, Runnable sort) {
+    var length = data.byteSize() / JAVA_LONG.byteSize();
+    var seed = new SplittableRandom().nextLong();
+    LongStream.range(0, length).parallel().forEach(i -> data.setAtIndex(JAVA_LONG, i, new SplittableRandom(seed ^ i).nextLong()));
+
+    var start = System.nanoTime();
+    sort.run();
+    var elapsed = System.nanoTime() - start;
+
+    var sorted = LongStream.range(1, length).parallel().allMatch(i -> data.getAtIndex(JAVA_LONG, i - 1) <= data.getAtIndex(JAVA_LONG, i));
+    System.out.println(STR."\{name} sorted \{length} longs in \{elapsed / 1_000_000} ms, sorted: \{sorted}");
+  }
+}
@@ -0,0 +1,440 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.sort;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static java.lang.foreign.ValueLayout.JAVA_DOUBLE;
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Sorts primitive values in place, directly in native segments.
+ * <p>
+ * libc {@code qsort} needs a comparator upcall per comparison, roughly {@code n log n}
+ * native to Java transitions; copying to a Java array for {@link java.util.Arrays#sort(int[])}
+ * needs the heap to hold the data twice. This is an introsort over the segment:
+ * quicksort with a median of three pivot, heapsort past {@code 2 log n} levels of
+ * recursion, insertion sort for small ranges. It is not stable.
+ * <p>
+ * Values are in native byte order, segments must be aligned to their element size.
+ * Floating point values are ordered like {@link Float#compare(float, float)}:
+ * {@code -0.0} before {@code 0.0}, NaNs last, NaNs are made canonical.
+ *
+ * @see ParallelSegmentSort
+ */
+public final class SegmentSort {
+  static final int INSERTION_SORT_THRESHOLD = 24;
+
+  private SegmentSort() {
+  }
+
+  public static void sortInts(MemorySegment segment) {
+    var length = count(segment, JAVA_INT);
+    sortInts(segment, 0, length);
+  }
+
+  /**
+   * Sorts the {@code int} values in {@code [from, to)}, indices are in elements.
+   */
+  public static void sortInts(MemorySegment segment, long from, long to) {
+    checkRange(from, to, count(segment, JAVA_INT));
+    if (to - from > 1) {
+      introSortInts(segment, from, to - 1, maxDepth(to - from));
+    }
+  }
+
+  public static void sortLongs(MemorySegment segment) {
+    var length = count(segment, JAVA_LONG);
+    sortLongs(segment, 0, length);
+  }
+
+  /**
+   * Sorts the {@code long} values in {@code [from, to)}, indices are in elements.
+   */
+  public static void sortLongs(MemorySegment segment, long from, long to) {
+    checkRange(from, to, count(segment, JAVA_LONG));
+    if (to - from > 1) {
+      introSortLongs(segment, from, to - 1, maxDepth(to - from));
+    }
+  }
+
+  /**
+   * Sorts {@code long} keys, and moves the {@code long} payload at the same index along.
+   * <p>
+   * The payload is typically an offset or an index into a larger record segment,
+   * which avoids moving the records themselves.
+   */
+  public static void sortLongs(MemorySegment keys, MemorySegment payloads) {
+    var length = count(keys, JAVA_LONG);
+    if (count(payloads, JAVA_LONG) != length) {
+      throw new IllegalArgumentException(STR."keys and payloads differ in length: \{length} != \{payloads.byteSize() / JAVA_LONG.byteSize()}");
+    }
+    if (length > 1) {
+      introSortPairs(keys, payloads, 0, length - 1, maxDepth(length));
+    }
+  }
+
+  public static void sortFloats(MemorySegment segment) {
+    var length = count(segment, JAVA_FLOAT);
+    for (long i = 0; i < length; i++) {
+      segment.setAtIndex(JAVA_INT, i, toSortable(segment.getAtIndex(JAVA_INT, i)));
+    }
+    sortInts(segment, 0, length);
+    for (long i = 0; i < length; i++) {
+      segment.setAtIndex(JAVA_INT, i, fromSortable(segment.getAtIndex(JAVA_INT, i)));
+    }
+  }
+
+  public static void sortDoubles(MemorySegment segment) {
+    var length = count(segment, JAVA_DOUBLE);
+    for (long i = 0; i < length; i++) {
+      segment.setAtIndex(JAVA_LONG, i, toSortable(segment.getAtIndex(JAVA_LONG, i)));
+    }
+    sortLongs(segment, 0, length);
+    for (long i = 0; i < length; i++) {
+      segment.setAtIndex(JAVA_LONG, i, fromSortable(segment.getAtIndex(JAVA_LONG, i)));
+    }
+  }
+
+  /**
+   * Maps float bits to an {@code int} with the same order as {@link Float#compare(float, float)}.
+   * <p>
+   * Negative floats order in reverse of their magnitude bits, which are flipped;
+   * NaNs become the canonical positive NaN, above positive infinity.
+   */
+  static int toSortable(int floatBits) {
+    if ((floatBits & 0x7fffffff) > 0x7f800000) {
+      return 0x7fc00000;
+    }
+    return floatBits ^ ((floatBits >> 31) >>> 1);
+  }
+
+  static int fromSortable(int sortable) {
+    return sortable ^ ((sortable >> 31) >>> 1);
+  }
+
+  /**
+   * @see #toSortable(int)
+   */
+  static long toSortable(long doubleBits) {
+    if ((doubleBits & 0x7fffffffffffffffL) > 0x7ff0000000000000L) {
+      return 0x7ff8000000000000L;
+    }
+    return doubleBits ^ ((doubleBits >> 63) >>> 1);
+  }
+
+  static long fromSortable(long sortable) {
+    return sortable ^ ((sortable >> 63) >>> 1);
+  }
+
+  static long count(MemorySegment segment, ValueLayout layout) {
+    if (segment.byteSize() % layout.byteSize() != 0) {
+      throw new IllegalArgumentException(STR."segment of \{segment.byteSize()} bytes is not a whole number of \{layout.byteSize()} bytes elements");
+    }
+    return segment.byteSize() / layout.byteSize();
+  }
+
+  private static void checkRange(long from, long to, long length) {
+    if (from < 0 || from > to || to > length) {
+      throw new IndexOutOfBoundsException(STR."[\{from}, \{to}) out of [0, \{length})");
+    }
+  }
+
+  private static int maxDepth(long length) {
+    return 2 * (63 - Long.numberOfLeadingZeros(length));
+  }
+
+  // ints, bounds are inclusive
+
+  private static void introSortInts(MemorySegment a, long lo, long hi, int depth) {
+    while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+      if (depth-- == 0) {
+        heapSortInts(a, lo, hi);
+        return;
+      }
+      // a[lo] <= a[mid] <= a[hi], the pivot value stays within the range
+      var mid = lo + ((hi - lo) >>> 1);
+      if (a.getAtIndex(JAVA_INT, mid) < a.getAtIndex(JAVA_INT, lo)) {
+        swapInts(a, lo, mid);
+      }
+      if (a.getAtIndex(JAVA_INT, hi) < a.getAtIndex(JAVA_INT, lo)) {
+        swapInts(a, lo, hi);
+      }
+      if (a.getAtIndex(JAVA_INT, hi) < a.getAtIndex(JAVA_INT, mid)) {
+        swapInts(a, mid, hi);
+      }
+      var pivot = a.getAtIndex(JAVA_INT, mid);
+
+      // Hoare partition, equal values are spread on both sides
+      var i = lo - 1;
+      var j = hi + 1;
+      while (true) {
+        do {
+          i++;
+        } while (a.getAtIndex(JAVA_INT, i) < pivot);
+        do {
+          j--;
+        } while (a.getAtIndex(JAVA_INT, j) > pivot);
+        if (i >= j) {
+          break;
+        }
+        swapInts(a, i, j);
+      }
+
+      // recurse in the smaller side, bounds the stack to log n
+      if (j - lo < hi - j) {
+        introSortInts(a, lo, j, depth);
+        lo = j + 1;
+      } else {
+        introSortInts(a, j + 1, hi, depth);
+        hi = j;
+      }
+    }
+    insertionSortInts(a, lo, hi);
+  }
+
+  static void insertionSortInts(MemorySegment a, long lo, long hi) {
+    for (long i = lo + 1; i <= hi; i++) {
+      var value = a.getAtIndex(JAVA_INT, i);
+      var j = i - 1;
+      while (j >= lo && a.getAtIndex(JAVA_INT, j) > value) {
+        a.setAtIndex(JAVA_INT, j + 1, a.getAtIndex(JAVA_INT, j));
+        j--;
+      }
+      a.setAtIndex(JAVA_INT, j + 1, value);
+    }
+  }
+
+  private static void heapSortInts(MemorySegment a, long lo, long hi) {
+    var n = hi - lo + 1;
+    for (long root = n / 2 - 1; root >= 0; root--) {
+      siftDownInts(a, lo, root, n);
+    }
+    for (long end = n - 1; end > 0; end--) {
+      swapInts(a, lo, lo + end);
+      siftDownInts(a, lo, 0, end);
+    }
+  }
+
+  private static void siftDownInts(MemorySegment a, long base, long root, long n) {
+    var value = a.getAtIndex(JAVA_INT, base + root);
+    long child;
+    while ((child = 2 * root + 1) < n) {
+      if (child + 1 < n && a.getAtIndex(JAVA_INT, base + child + 1) > a.getAtIndex(JAVA_INT, base + child)) {
+        child++;
+      }
+      var childValue = a.getAtIndex(JAVA_INT, base + child);
+      if (value >= childValue) {
+        break;
+      }
+      a.setAtIndex(JAVA_INT, base + root, childValue);
+      root = child;
+    }
+    a.setAtIndex(JAVA_INT, base + root, value);
+  }
+
+  private static void swapInts(MemorySegment a, long i, long j) {
+    var tmp = a.getAtIndex(JAVA_INT, i);
+    a.setAtIndex(JAVA_INT, i, a.getAtIndex(JAVA_INT, j));
+    a.setAtIndex(JAVA_INT, j, tmp);
+  }
+
+  // longs, same as ints
+
+  private static void introSortLongs(MemorySegment a, long lo, long hi, int depth) {
+    while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+      if (depth-- == 0) {
+        heapSortLongs(a, lo, hi);
+        return;
+      }
+      var mid = lo + ((hi - lo) >>> 1);
+      if (a.getAtIndex(JAVA_LONG, mid) < a.getAtIndex(JAVA_LONG, lo)) {
+        swapLongs(a, lo, mid);
+      }
+      if (a.getAtIndex(JAVA_LONG, hi) < a.getAtIndex(JAVA_LONG, lo)) {
+        swapLongs(a, lo, hi);
+      }
+      if (a.getAtIndex(JAVA_LONG, hi) < a.getAtIndex(JAVA_LONG, mid)) {
+        swapLongs(a, mid, hi);
+      }
+      var pivot = a.getAtIndex(JAVA_LONG, mid);
+
+      var i = lo - 1;
+      var j = hi + 1;
+      while (true) {
+        do {
+          i++;
+        } while (a.getAtIndex(JAVA_LONG, i) < pivot);
+        do {
+          j--;
+        } while (a.getAtIndex(JAVA_LONG, j) > pivot);
+        if (i >= j) {
+          break;
+        }
+        swapLongs(a, i, j);
+      }
+
+      if (j - lo < hi - j) {
+        introSortLongs(a, lo, j, depth);
+        lo = j + 1;
+      } else {
+        introSortLongs(a, j + 1, hi, depth);
+        hi = j;
+      }
+    }
+    insertionSortLongs(a, lo, hi);
+  }
+
+  static void insertionSortLongs(MemorySegment a, long lo, long hi) {
+    for (long i = lo + 1; i <= hi; i++) {
+      var value = a.getAtIndex(JAVA_LONG, i);
+      var j = i - 1;
+      while (j >= lo && a.getAtIndex(JAVA_LONG, j) > value) {
+        a.setAtIndex(JAVA_LONG, j + 1, a.getAtIndex(JAVA_LONG, j));
+        j--;
+      }
+      a.setAtIndex(JAVA_LONG, j + 1, value);
+    }
+  }
+
+  private static void heapSortLongs(MemorySegment a, long lo, long hi) {
+    var n = hi - lo + 1;
+    for (long root = n / 2 - 1; root >= 0; root--) {
+      siftDownLongs(a, lo, root, n);
+    }
+    for (long end = n - 1; end > 0; end--) {
+      swapLongs(a, lo, lo + end);
+      siftDownLongs(a, lo, 0, end);
+    }
+  }
+
+  private static void siftDownLongs(MemorySegment a, long base, long root, long n) {
+    var value = a.getAtIndex(JAVA_LONG, base + root);
+    long child;
+    while ((child = 2 * root + 1) < n) {
+      if (child + 1 < n && a.getAtIndex(JAVA_LONG, base + child + 1) > a.getAtIndex(JAVA_LONG, base + child)) {
+        child++;
+      }
+      var childValue = a.getAtIndex(JAVA_LONG, base + child);
+      if (value >= childValue) {
+        break;
+      }
+      a.setAtIndex(JAVA_LONG, base + root, childValue);
+      root = child;
+    }
+    a.setAtIndex(JAVA_LONG, base + root, value);
+  }
+
+  private static void swapLongs(MemorySegment a, long i, long j) {
+    var tmp = a.getAtIndex(JAVA_LONG, i);
+    a.setAtIndex(JAVA_LONG, i, a.getAtIndex(JAVA_LONG, j));
+    a.setAtIndex(JAVA_LONG, j, tmp);
+  }
+
+  // long keys with long payloads, payloads follow every key move
+
+  private static void introSortPairs(MemorySegment keys, MemorySegment payloads, long lo, long hi, int depth) {
+    while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+      if (depth-- == 0) {
+        heapSortPairs(keys, payloads, lo, hi);
+        return;
+      }
+      var mid = lo + ((hi - lo) >>> 1);
+      if (keys.getAtIndex(JAVA_LONG, mid) < keys.getAtIndex(JAVA_LONG, lo)) {
+        swapPairs(keys, payloads, lo, mid);
+      }
+      if (keys.getAtIndex(JAVA_LONG, hi) < keys.getAtIndex(JAVA_LONG, lo)) {
+        swapPairs(keys, payloads, lo, hi);
+      }
+      if (keys.getAtIndex(JAVA_LONG, hi) < keys.getAtIndex(JAVA_LONG, mid)) {
+        swapPairs(keys, payloads, mid, hi);
+      }
+      var pivot = keys.getAtIndex(JAVA_LONG, mid);
+
+      var i = lo - 1;
+      var j = hi + 1;
+      while (true) {
+        do {
+          i++;
+        } while (keys.getAtIndex(JAVA_LONG, i) < pivot);
+        do {
+          j--;
+        } while (keys.getAtIndex(JAVA_LONG, j) > pivot);
+        if (i >= j) {
+          break;
+        }
+        swapPairs(keys, payloads, i, j);
+      }
+
+      if (j - lo < hi - j) {
+        introSortPairs(keys, payloads, lo, j, depth);
+        lo = j + 1;
+      } else {
+        introSortPairs(keys, payloads, j + 1, hi, depth);
+        hi = j;
+      }
+    }
+    insertionSortPairs(keys, payloads, lo, hi);
+  }
+
+  private static void insertionSortPairs(MemorySegment keys, MemorySegment payloads, long lo, long hi) {
+    for (long i = lo + 1; i <= hi; i++) {
+      var key = keys.getAtIndex(JAVA_LONG, i);
+      var payload = payloads.getAtIndex(JAVA_LONG, i);
+      var j = i - 1;
+      while (j >= lo && keys.getAtIndex(JAVA_LONG, j) > key) {
+        keys.setAtIndex(JAVA_LONG, j + 1, keys.getAtIndex(JAVA_LONG, j));
+        payloads.setAtIndex(JAVA_LONG, j + 1, payloads.getAtIndex(JAVA_LONG, j));
+        j--;
+      }
+      keys.setAtIndex(JAVA_LONG, j + 1, key);
+      payloads.setAtIndex(JAVA_LONG, j + 1, payload);
+    }
+  }
+
+  private static void heapSortPairs(MemorySegment keys, MemorySegment payloads, long lo, long hi) {
+    var n = hi - lo + 1;
+    for (long root = n / 2 - 1; root >= 0; root--) {
+      siftDownPairs(keys, payloads, lo, root, n);
+    }
+    for (long end = n - 1; end > 0; end--) {
+      swapPairs(keys, payloads, lo, lo + end);
+      siftDownPairs(keys, payloads, lo, 0, end);
+    }
+  }
+
+  private static void siftDownPairs(MemorySegment keys, MemorySegment payloads, long base, long root, long n) {
+    var key = keys.getAtIndex(JAVA_LONG, base + root);
+    var payload = payloads.getAtIndex(JAVA_LONG, base + root);
+    long child;
+    while ((child = 2 * root + 1) < n) {
+      if (child + 1 < n && keys.getAtIndex(JAVA_LONG, base + child + 1) > keys.getAtIndex(JAVA_LONG, base + child)) {
+        child++;
+      }
+      var childKey = keys.getAtIndex(JAVA_LONG, base + child);
+      if (key >= childKey) {
+        break;
+      }
+      keys.setAtIndex(JAVA_LONG, base + root, childKey);
+      payloads.setAtIndex(JAVA_LONG, base + root, payloads.getAtIndex(JAVA_LONG, base + child));
+      root = child;
+    }
+    keys.setAtIndex(JAVA_LONG, base + root, key);
+    payloads.setAtIndex(JAVA_LONG, base + root, payload);
+  }
+
+  private static void swapPairs(MemorySegment keys, MemorySegment payloads, long i, long j) {
+    swapLongs(keys, i, j);
+    swapLongs(payloads, i, j);
+  }
+}
@@ -58,4 +58,57 @@ val jextractSyscalls by tasks.registering(JExtractTask::class) {
 
   // outputs.upToDateWhen { false }
 }
-tasks.compileJava.get().dependsOn(jextractSyscalls)
\ No newline at end of file
+tasks.compileJava.get().dependsOn(jextractSyscalls)
+
+val epollSourcePath = project.configureJExtractSourceSet("epoll")
+
+val jextractEpoll by tasks.registering(JExtractTask::class) {
+  onlyIf {
+    DefaultNativePlatform.getCurrentOperatingSystem().isLinux
+  }
+  headerClassName.set("epoll_h")
+  targetPackage.set("epoll")
+  targetPath.set(file(epollSourcePath))
+  headerPathIncludes.from(file("/usr/include/"))
+  headerContent.set(
+    """
+    #include <time.h>
+    #include <sys/epoll.h>
+    #include <sys/eventfd.h>
+    #include <sys/timerfd.h>
+    """.trimIndent()
+  )
+
+  argFileContent.set(
+    """
+    --include-function epoll_create1
+    --include-function epoll_ctl
+    --include-function epoll_wait
+    --include-constant EPOLL_CLOEXEC
+    --include-constant EPOLL_CTL_ADD
+    --include-constant EPOLL_CTL_DEL
+    --include-constant EPOLL_CTL_MOD
+    --include-constant EPOLLIN
+    --include-constant EPOLLOUT
+    --include-constant EPOLLERR
+    --include-constant EPOLLHUP
+    --include-constant EPOLLRDHUP
+    --include-constant EPOLLONESHOT
+
+    --include-function eventfd
+    --include-constant EFD_CLOEXEC
+    --include-constant EFD_NONBLOCK
+    --include-constant EFD_SEMAPHORE
+
+    --include-function timerfd_create
+    --include-function timerfd_settime
+    --include-constant TFD_CLOEXEC
+    --include-constant TFD_NONBLOCK
+    --include-constant CLOCK_MONOTONIC
+    
+    #### struct epoll_event is packed on x86_64 only, its layout is declared
+    #### in Epoll.EPOLL_EVENT rather than generated for the build machine
+    """.trimIndent()
+  )
+}
+tasks.compileJava.get().dependsOn(jextractEpoll)
\ No newline at end of file
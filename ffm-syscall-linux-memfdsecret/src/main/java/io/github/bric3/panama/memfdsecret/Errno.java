@@ -0,0 +1,84 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+/**
+ * Linux errno values, from {@code /usr/include/asm-generic/errno-base.h} and {@code errno.h}.
+ * <p>
+ * Only the values the syscalls of this module are expected to return are listed.
+ */
+public enum Errno {
+  EPERM(1),
+  ENOENT(2),
+  EINTR(4),
+  EIO(5),
+  EBADF(9),
+  EAGAIN(11),
+  ENOMEM(12),
+  EACCES(13),
+  EFAULT(14),
+  EBUSY(16),
+  EEXIST(17),
+  ENODEV(19),
+  EINVAL(22),
+  ENFILE(23),
+  EMFILE(24),
+  EFBIG(27),
+  ENOSPC(28),
+  ESPIPE(29),
+  EPIPE(32),
+  ERANGE(34),
+  ENOSYS(38),
+  ETIME(62),
+  EOVERFLOW(75),
+  EOPNOTSUPP(95),
+  ETIMEDOUT(110),
+  ECANCELED(125);
+
+  private static final Errno[] BY_VALUE = new Errno[126];
+
+  static {
+    for (var errno : values()) {
+      BY_VALUE[errno.value] = errno;
+    }
+  }
+
+  private final int value;
+
+  Errno(int value) {
+    this.value = value;
+  }
+
+  public int value() {
+    return value;
+  }
+
+  /**
+   * Whether the errno, or the negated errno returned by {@link LinuxSyscalls}, is this one.
+   */
+  public boolean is(long errnoOrResult) {
+    return errnoOrResult == value || errnoOrResult == -value;
+  }
+
+  /**
+   * Returns the constant of the errno value, or {@code null} if not listed.
+   */
+  public static Errno of(int value) {
+    return value > 0 && value < BY_VALUE.length ? BY_VALUE[value] : null;
+  }
+
+  /**
+   * Name and message of the errno value, e.g. {@code ENOSYS (Function not implemented)}.
+   */
+  public static String describe(int value) {
+    var errno = of(value);
+    return STR."\{errno != null ? errno.name() : "errno " + value} (\{LinuxSyscalls.strerror(value)})";
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.io.IOException;
+
+/**
+ * Failed syscall, with its errno.
+ */
+public class ErrnoException extends IOException {
+  private final int errno;
+
+  public ErrnoException(String operation, int errno) {
+    super(STR."\{operation} failed: \{Errno.describe(errno)}");
+    this.errno = errno;
+  }
+
+  public int errno() {
+    return errno;
+  }
+
+  /**
+   * The constant of the errno, or {@code null} if not listed in {@link Errno}.
+   */
+  public Errno errnoConstant() {
+    return Errno.of(errno);
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_ANONYMOUS;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_HUGETLB;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_HUGE_SHIFT;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_POPULATE;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_PRIVATE;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_READ;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_WRITE;
+
+/**
+ * Arena for large off-heap tables, each segment is its own anonymous mapping.
+ * <p>
+ * Regular 4 KiB pages cost a TLB entry each, a table of several GiB accessed
+ * randomly misses the TLB on most accesses. This arena can back segments with
+ * 2 MiB (or 1 GiB) pages:
+ * <ul>
+ *   <li>{@link HugePages#HUGETLB}, pages from the pool reserved by the administrator
+ *   ({@code vm.nr_hugepages}), with a fallback to transparent huge pages when the pool is exhausted;</li>
+ *   <li>{@link HugePages#TRANSPARENT}, mappings aligned on the huge page size and
+ *   advised with {@code MADV_HUGEPAGE}, the kernel then uses huge pages when it can.</li>
+ * </ul>
+ * Pages can be pre-faulted at allocation ({@link Options#populate()}), so the
+ * first accesses do not pay page faults, and placed on NUMA nodes with {@code mbind}.
+ * When both are requested, the mapping is bound before it is populated.
+ * <p>
+ * Segments are released when the arena is closed. Allocations are rounded up
+ * to the page size, small segments should come from another arena.
+ *
+ * <pre><code>
+ * try (var arena = HugePageArena.create(HugePageArena.Options.DEFAULT.withPopulate(true).withNumaNodes(0))) {
+ *   var table = arena.allocate(8L &lt;&lt; 30);
+ * }
+ * </code></pre>
+ */
+public final class HugePageArena implements Arena {
+  public static final long PAGE_SIZE = 4096;
+  public static final long HUGE_PAGE_SIZE = 2 * 1024 * 1024;
+
+  private static final int MADV_HUGEPAGE = 14;
+  private static final int MADV_POPULATE_WRITE = 23;
+  private static final int MPOL_BIND = 2;
+  // long mbind(void *addr, unsigned long len, int mode, const unsigned long *nodemask, unsigned long maxnode, unsigned flags);
+  private static final long SYS_MBIND = switch (System.getProperty("os.arch")) {
+    case "amd64", "x86_64" -> 237;
+    case "aarch64" -> 235;
+    default -> -1;
+  };
+
+  public enum HugePages {
+    NONE,
+    TRANSPARENT,
+    HUGETLB
+  }
+
+  /**
+   * @param hugePages    how segments are backed by huge pages
+   * @param hugePageSize the huge page size for {@link HugePages#HUGETLB}, 2 MiB or 1 GiB on x86_64
+   * @param populate     whether pages are pre-faulted at allocation
+   * @param numaNodeMask nodes the pages are bound to, one bit per node, {@code 0} for no binding
+   */
+  public record Options(HugePages hugePages, long hugePageSize, boolean populate, long numaNodeMask) {
+    public static final Options DEFAULT = new Options(HugePages.TRANSPARENT, HUGE_PAGE_SIZE, false, 0);
+
+    public Options {
+      Objects.requireNonNull(hugePages);
+      if (hugePageSize < HUGE_PAGE_SIZE || Long.bitCount(hugePageSize) != 1) {
+        throw new IllegalArgumentException("huge page size must be a power of two >= 2 MiB, got " + hugePageSize);
+      }
+    }
+
+    public Options withHugePages(HugePages hugePages) {
+      return new Options(hugePages, hugePageSize, populate, numaNodeMask);
+    }
+
+    public Options withHugePageSize(long hugePageSize) {
+      return new Options(hugePages, hugePageSize, populate, numaNodeMask);
+    }
+
+    public Options withPopulate(boolean populate) {
+      return new Options(hugePages, hugePageSize, populate, numaNodeMask);
+    }
+
+    public Options withNumaNodes(int... nodes) {
+      var mask = 0L;
+      for (var node : nodes) {
+        if (node < 0 || node >= Long.SIZE) {
+          throw new IllegalArgumentException("NUMA node out of range: " + node);
+        }
+        mask |= 1L << node;
+      }
+      return new Options(hugePages, hugePageSize, populate, mask);
+    }
+  }
+
+  private final Options options;
+  private final Arena scope = Arena.ofShared();
+  private final List<MemorySegment> mappings = new ArrayList<>();
+  private final MemorySegment nodeMask;
+  private long hugeTlbFallbacks;
+
+  private HugePageArena(Options options) {
+    this.options = options;
+    this.nodeMask = scope.allocate(ValueLayout.JAVA_LONG);
+    nodeMask.set(ValueLayout.JAVA_LONG, 0, options.numaNodeMask());
+  }
+
+  public static HugePageArena create(Options options) {
+    if (options.numaNodeMask() != 0 && SYS_MBIND < 0) {
+      throw new UnsupportedOperationException("mbind is not supported on " + System.getProperty("os.arch"));
+    }
+    return new HugePageArena(options);
+  }
+
+  public static HugePageArena ofTransparentHugePages() {
+    return create(Options.DEFAULT);
+  }
+
+  public Options options() {
+    return options;
+  }
+
+  /**
+   * Number of {@link HugePages#HUGETLB} allocations that fell back to transparent huge pages.
+   */
+  public synchronized long hugeTlbFallbacks() {
+    return hugeTlbFallbacks;
+  }
+
+  @Override
+  public synchronized MemorySegment allocate(long byteSize, long byteAlignment) {
+    if (!scope.scope().isAlive()) {
+      throw new IllegalStateException("Already closed");
+    }
+    if (byteSize <= 0 || byteAlignment <= 0 || Long.bitCount(byteAlignment) != 1) {
+      throw new IllegalArgumentException(STR."invalid size or alignment: \{byteSize}, \{byteAlignment}");
+    }
+
+    MemorySegment mapping = null;
+    var populated = false;
+    if (options.hugePages() == HugePages.HUGETLB && byteAlignment <= options.hugePageSize()) {
+      mapping = mapHugeTlb(align(byteSize, options.hugePageSize()));
+      // MAP_POPULATE, unless pages have to be bound first
+      populated = mapping != null && options.populate() && options.numaNodeMask() == 0;
+    }
+    if (mapping == null) {
+      var transparent = options.hugePages() != HugePages.NONE;
+      var alignment = Math.max(byteAlignment, transparent ? HUGE_PAGE_SIZE : PAGE_SIZE);
+      mapping = mapAligned(align(byteSize, transparent ? HUGE_PAGE_SIZE : PAGE_SIZE), alignment);
+      if (transparent) {
+        // best effort, fails with EINVAL if THP is disabled
+        LinuxSyscalls.madvise(mapping, mapping.byteSize(), MADV_HUGEPAGE);
+      }
+    }
+    mappings.add(mapping);
+
+    if (options.numaNodeMask() != 0) {
+      bind(mapping);
+    }
+    if (options.populate() && !populated) {
+      populate(mapping);
+    }
+    return mapping.asSlice(0, byteSize).reinterpret(scope, null);
+  }
+
+  @Override
+  public MemorySegment.Scope scope() {
+    return scope.scope();
+  }
+
+  @Override
+  public synchronized void close() {
+    scope.close();
+    for (var mapping : mappings) {
+      LinuxSyscalls.munmap(mapping, mapping.byteSize());
+    }
+    mappings.clear();
+  }
+
+  /**
+   * Returns the mapping, or {@code null} if the huge page pool is exhausted.
+   */
+  private MemorySegment mapHugeTlb(long size) {
+    var flags = MAP_PRIVATE | MAP_ANONYMOUS | MAP_HUGETLB | (Long.numberOfTrailingZeros(options.hugePageSize()) << MAP_HUGE_SHIFT);
+    // populating before mbind would place the pages on the local node
+    if (options.populate() && options.numaNodeMask() == 0) {
+      flags |= MAP_POPULATE;
+    }
+    var address = LinuxSyscalls.mmap(MemorySegment.NULL, size, PROT_READ | PROT_WRITE, flags, -1, 0);
+    if (address < 0) {
+      hugeTlbFallbacks++;
+      return null;
+    }
+    return MemorySegment.ofAddress(address).reinterpret(size);
+  }
+
+  /**
+   * Maps more than needed, and trims the head and tail to get an aligned mapping.
+   */
+  private MemorySegment mapAligned(long size, long alignment) {
+    var span = size + (alignment > PAGE_SIZE ? alignment : 0);
+    var address = LinuxSyscalls.mmap(MemorySegment.NULL, span, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    if (address < 0) {
+      throw new OutOfMemoryError(STR."mmap of \{span} bytes failed: \{Errno.describe((int) -address)}");
+    }
+    var start = align(address, alignment);
+    var head = start - address;
+    var tail = span - head - size;
+    if (head > 0) {
+      LinuxSyscalls.munmap(MemorySegment.ofAddress(address), head);
+    }
+    if (tail > 0) {
+      LinuxSyscalls.munmap(MemorySegment.ofAddress(start + size), tail);
+    }
+    return MemorySegment.ofAddress(start).reinterpret(size);
+  }
+
+  private void bind(MemorySegment mapping) {
+    var res = LinuxSyscalls.syscall(
+            SYS_MBIND,
+            mapping.address(),
+            mapping.byteSize(),
+            MPOL_BIND,
+            nodeMask.address(),
+            Long.SIZE + 1, // maxnode, the kernel reads maxnode - 1 bits
+            0
+    );
+    if (res < 0) {
+      throw new IllegalStateException(STR."mbind failed: \{Errno.describe((int) -res)}");
+    }
+  }
+
+  private static void populate(MemorySegment mapping) {
+    // Linux 5.14+, otherwise touch each page
+    if (LinuxSyscalls.madvise(mapping, mapping.byteSize(), MADV_POPULATE_WRITE) == 0) {
+      return;
+    }
+    for (long offset = 0; offset < mapping.byteSize(); offset += PAGE_SIZE) {
+      mapping.set(ValueLayout.JAVA_BYTE, offset, (byte) 0);
+    }
+  }
+
+  private static long align(long value, long alignment) {
+    return (value + alignment - 1) & -alignment;
+  }
+}
@@ -9,14 +9,11 @@
  */
 package io.github.bric3.panama.memfdsecret;
 
-import java.io.FileDescriptor;
+import java.io.IOException;
 import java.lang.foreign.Arena;
-import java.lang.foreign.FunctionDescriptor;
-import java.lang.foreign.Linker;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -57,8 +54,6 @@ public class LinuxSyscall {
   private static final int MAP_PRIVATE = 2;
   private static final int MAP_FIXED = 16;
 
-  private static final Linker LINKER = Linker.nativeLinker();
-
   public static void main(String[] args) throws Throwable {
     if (!System.getProperty("os.name").toLowerCase().contains("linux")
         || !System.getProperty("os.arch").toLowerCase().contains("amd64")) {
@@ -77,189 +72,73 @@ public class LinuxSyscall {
 
     // https://github.com/mkerrisk/man-pages/blob/ae6b221882ce71ba82fcdbe02419a225111502f0/man2/memfd_secret.2
     memfd_secret_external();
+    secret_arena();
     memfd_secret();
-    // --add-opens=java.base/java.io=ALL-UNNAMED
-    memfd_secret_avoid_syscall();
+    memfd_channel();
   }
 
-  private static void memfd_secret() throws Throwable {
+  private static void memfd_secret() {
     System.out.println("starting memfd_secret");
     var secret = "p@ss123";
 
-    // #define SYS_memfd_secret 447
-    var sys_memfd_secret = MethodHandles.insertArguments(LINKER.downcallHandle(
-            LINKER.defaultLookup().find("syscall").orElseThrow(),
-            FunctionDescriptor.of(
-                    ValueLayout.JAVA_INT,
-                    ValueLayout.JAVA_INT // syscall number
-            ).appendArgumentLayouts(ValueLayout.JAVA_INT) // flags
-    ), 0, 447);
-    // int ftruncate(int fd, off_t length);
-    var ftruncate = LINKER.downcallHandle(
-            LINKER.defaultLookup().find("ftruncate").orElseThrow(),
-            FunctionDescriptor.of(
-                    ValueLayout.JAVA_INT,
-                    ValueLayout.JAVA_INT, // fd
-                    ValueLayout.JAVA_LONG // length
-            )
-    );
-    // void *mmap(void *addr, size_t lengthint " prot ", int " flags, int fd, off_t offset)
-    var mmap = LINKER.downcallHandle(
-            LINKER.defaultLookup().find("mmap").orElseThrow(),
-            FunctionDescriptor.of(
-                    ValueLayout.ADDRESS, // addr
-                    ValueLayout.ADDRESS, // addr
-                    ValueLayout.JAVA_LONG, // size
-                    ValueLayout.JAVA_INT, // protection modes
-                    ValueLayout.JAVA_INT, // flags
-                    ValueLayout.JAVA_INT, // fd
-                    ValueLayout.JAVA_LONG // offset
-            )
-    );
-    // int munmap(void *addr, size_t length);
-    var munmap = LINKER.downcallHandle(
-            LINKER.defaultLookup().find("munmap").orElseThrow(),
-            FunctionDescriptor.of(
-                    ValueLayout.JAVA_INT,
-                    ValueLayout.ADDRESS, // addr
-                    ValueLayout.JAVA_LONG // length
-            )
-    );
-    // int close(int fd);
-    var close = LINKER.downcallHandle(
-            LINKER.defaultLookup().find("close").orElseThrow(),
-            FunctionDescriptor.of(
-                    ValueLayout.JAVA_INT,
-                    ValueLayout.JAVA_INT // fd
-            )
-    );
-
     // Create the anonymous RAM-based file
-    int fd = (int) sys_memfd_secret.invoke(0);
-    if (fd == -1) {
+    var fd = LinuxSyscalls.memfdSecret(0);
+    if (fd < 0) {
       // non-existent system call, errno will be set to ENOSYS.
       // gated by secretmem_enable
       // https://github.com/torvalds/linux/commit/1507f51255c9ff07d75909a84e7c0d7f3c4b2f49#diff-659f2a8bad777301f059a00056336b415c41e024f88280a2131e0eabd7507b91R186-R187
-      var errno = errno();
-      System.err.println(errno == 38 ?
+      System.err.println(Errno.ENOSYS.is(fd) ?
                          "tried to call a syscall that doesn't exist (errno=ENOSYS), may need to set the 'secretmem.enable=1' kernel boot option" :
-                         STR."syscall memfd_secret failed, errno: \{errno()}");
+                         STR."syscall memfd_secret failed: \{Errno.describe(-fd)}");
       System.exit(1);
     }
     System.out.println(STR."Secret mem fd: \{fd}");
 
-    try (Arena scope = Arena.ofConfined()) {
+    try {
       // Set the size
       System.out.println("Setting size");
-      var res = (int) ftruncate.invoke(fd, secret.length());
-      if (res == -1) {
-        System.err.println(STR."ftruncate failed, errno: \{errno()}");
+      var res = LinuxSyscalls.ftruncate(fd, secret.length() + 1);
+      if (res < 0) {
+        System.err.println(STR."ftruncate failed: \{Errno.describe(-res)}");
+        System.exit(1);
       }
 
       System.out.println("Mapping");
-      var segmentAddress = (MemorySegment) mmap.invoke(NULL, secret.length(), PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
-      if (segmentAddress.address() == -1) {
-        System.err.println(STR."mmap failed, errno: \{errno()}, \{strerror(errno())}");
+      var address = LinuxSyscalls.mmap(NULL, secret.length() + 1, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+      if (address < 0) {
+        System.err.println(STR."mmap failed: \{Errno.describe((int) -address)}");
         System.exit(1);
       }
+      var segment = MemorySegment.ofAddress(address).reinterpret(secret.length() + 1);
 
-      System.out.println(STR."segmentAddress: \{segmentAddress}");
+      System.out.println(STR."segmentAddress: \{segment}");
 
-      segmentAddress.setString(0, secret);
+      segment.setString(0, secret);
 
 
-      System.out.println(STR."Secret segment contained: \{segmentAddress.getString(0)}");;
+      System.out.println(STR."Secret segment contained: \{segment.getString(0)}");
 
-      var r = (int) munmap.invoke(segmentAddress, secret.length());
+      LinuxSyscalls.munmap(segment, segment.byteSize());
     } finally {
-      if (fd >= 0) {
-        close.invoke(fd);
-      }
+      LinuxSyscalls.close(fd);
     }
   }
 
-  private static void memfd_secret_avoid_syscall() throws Throwable {
-    System.out.println("starting memfd_secret avoiding syscalls");
-    var secret = "p@ss123";
-
-
-    // #define SYS_memfd_secret 447
-    var sys_memfd_secret = MethodHandles.insertArguments(LINKER.downcallHandle(
-            LINKER.defaultLookup().find("syscall").orElseThrow(),
-            FunctionDescriptor.of(
-                    ValueLayout.JAVA_INT,
-                    ValueLayout.JAVA_INT // syscall number
-            ).appendArgumentLayouts(ValueLayout.JAVA_INT) // flags
-    ), 0, 447);
-
-    // Create the anonymous RAM-based file
-    int fd = (int) sys_memfd_secret.invoke(0);
-    if (fd == -1) {
-      // non-existent system call, errno will be set to ENOSYS.
-      // gated by secretmem_enable
-      // https://github.com/torvalds/linux/commit/1507f51255c9ff07d75909a84e7c0d7f3c4b2f49#diff-659f2a8bad777301f059a00056336b415c41e024f88280a2131e0eabd7507b91R186-R187
-      var errno = errno();
-      System.err.println(errno == 38 ?
-                         "tried to call a syscall that doesn't exist (errno=ENOSYS), may need to set the 'secretmem.enable=1' kernel boot option" :
-                         "syscall memfd_secret failed, errno: " + errno);
-      System.exit(1);
-    }
-    System.out.println("Secret mem fd: " + fd);
-
-    try (Arena scope = Arena.ofConfined()) {
-
-      // NoSuchFile when trying to read again from the same fd
-
-      // var memfd = makeFD(fd);
-      // try (var fos = new FileOutputStream(memfd);
-      //      var fis = new FileInputStream(memfd);) {
-      //   var writeOnly = fos.getChannel().map( // => java.nio.channels.NonReadableChannelException
-      //           MapMode.READ_WRITE,
-      //           0,
-      //           secret.length() + 1
-      //   );
-      //   var readOnly = fis.getChannel().map(
-      //           MapMode.READ_ONLY,
-      //           0,
-      //           secret.length() + 1
-      //   );
-      //
-      //   writeOnly.put(secret.getBytes());
-      //
-      //   readOnly.flip();
-      //   var bytes = new byte[secret.length()];
-      //   readOnly.get(bytes);
-      //   System.out.println("Secret read: " + new String(bytes));
-      // }
-
-      // var secretSegment = MemorySegment.mapFile(
-      //         // Files.readSymbolicLink(Path.of("/proc/self/fd/" + fd)), // => java.nio.file.NoSuchFileException: /secretmem (deleted)
-      //         Path.of("/proc/self/fd/" + fd), // => java.nio.file.FileSystemException: /proc/self/fd/4: No such device or address
-      //         0,
-      //         secret.length() + 1,
-      //         MapMode.READ_WRITE,
-      //         scope
-      // );
-      //
-      // secretSegment.setUtf8String(0, secret);
-      //
-      // System.out.println("Secret segment: " + secretSegment.getUtf8String(0));;
-      
-      // var mappedByteBuffer = FileChannel.open(Files.readSymbolicLink(Path.of("/proc/self/fd/" + fd)),
-      //                            StandardOpenOption.READ,
-      //                            StandardOpenOption.WRITE
-      // ).map(MapMode.READ_WRITE, 0, secret.length());
-      // mappedByteBuffer.put(secret.getBytes());
-      //
-      // TimeUnit.SECONDS.sleep(15);
-      //
-      // mappedByteBuffer.flip();
-      //
-      //
-      // var bytes = new byte[secret.length()];
-      // mappedByteBuffer.get(bytes);
-      //
-      // System.out.println("Secret read: " + new String(bytes));
+  private static void memfd_channel() throws IOException {
+    System.out.println("starting memfd channel");
+    // memfd_secret only supports mmap, read and write on a secretmem fd fail with EINVAL,
+    // a regular memfd can be used as a file through its descriptor
+    var fd = LinuxSyscalls.check(LinuxSyscalls.memfdCreate("channel", LinuxSyscalls.MFD_CLOEXEC), "memfd_create");
+    try (var channel = NativeFdChannel.of(fd)) {
+      var header = ByteBuffer.allocateDirect(Integer.BYTES).putInt(0, 7);
+      var body = ByteBuffer.wrap("p@ss123".getBytes(StandardCharsets.UTF_8));
+      channel.write(new ByteBuffer[]{header, body});
+
+      var length = ByteBuffer.allocateDirect(Integer.BYTES);
+      channel.read(length, 0);
+      var secret = ByteBuffer.allocate(length.getInt(0));
+      channel.read(secret, Integer.BYTES);
+      System.out.println(STR."Read back \{channel.size()} bytes: \{new String(secret.array(), StandardCharsets.UTF_8)}");
     }
   }
 
@@ -267,7 +146,7 @@ public class LinuxSyscall {
     var secret = "secret decryption key".getBytes(StandardCharsets.UTF_8);
 
     try (var arena = Arena.ofConfined()) {
-      var secretSegment = MemfdSecret.create(secret.length, arena).orElseThrow();
+      var secretSegment = SecureMemory.allocate(secret.length, arena);
       secretSegment.isNative(); // => true
 
 
@@ -280,40 +159,19 @@ public class LinuxSyscall {
     }
   }
 
-  private static FileDescriptor makeFD(int fd) throws Throwable {
-    // requires --add-opens=java.base/java.io=ALL-UNNAMED
-    var fdInit = MethodHandles.privateLookupIn(FileDescriptor.class, MethodHandles.lookup())
-                              .findConstructor(FileDescriptor.class, MethodType.methodType(void.class, int.class));
-
-    return (FileDescriptor) fdInit.invoke(fd);
-  }
-
-  // /usr/include/asm-generic/errno.h
-  // /usr/include/asm-generic/errno-base.h
-  private static int errno() throws Throwable {
-    // /* The error code set by various library functions.  */
-    // extern int *__errno_location (void) __THROW __attribute_const__;
-    // # define errno (*__errno_location ())
-
-
-    var __errnoLocationMH = LINKER.downcallHandle(FunctionDescriptor.of(ValueLayout.ADDRESS));
-    var errnoPointer = (MemorySegment) __errnoLocationMH.invoke(LINKER.defaultLookup().find("__errno_location").get());
-    return errnoPointer.get(ValueLayout.JAVA_INT, 0);
-  }
-
-  // char *strerror(int errnum);
-  private static String strerror(int errno) throws Throwable {
-    // /* The error code set by various library functions.  */
-    // extern int *__errno_location (void) __THROW __attribute_const__;
-    // # define errno (*__errno_location ())
-
-
-    var strerror = LINKER.downcallHandle(
-            LINKER.defaultLookup().find("strerror").orElseThrow(),
-            FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.JAVA_INT)
-    );
-
-    return ((MemorySegment) strerror.invoke(errno)).getString(0);
+  private static void secret_arena() {
+    System.out.println(STR."starting secret arena, backend: \{SecureMemory.backend().name()}");
+    try (var arena = SecretArena.create(1024 * 1024).orElseThrow()) {
+      var keys = new MemorySegment[10_000];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = arena.allocate(32);
+        keys[i].fill((byte) i);
+      }
+      arena.release(keys[42]);
+      System.out.println(STR."10000 keys of 32 bytes, committed \{arena.committedSize()} bytes of secret memory");
+      System.out.println(SecretMemoryMetrics.summary());
+    }
+    System.out.println(SecretMemoryMetrics.summary());
   }
 }
 
@@ -0,0 +1,627 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Linux syscalls and libc wrappers, with errno captured by the linker.
+ * <p>
+ * Reading errno through {@code __errno_location} after a downcall is not
+ * reliable, the JVM may run code calling libc between the downcall and the
+ * read, e.g. for a safepoint or the GC, and errno is then clobbered. Every
+ * downcall here is linked with {@link Linker.Option#captureCallState(String...)},
+ * errno is saved right after the call, in a per-thread preallocated segment.
+ * <p>
+ * Following the kernel convention, methods return the result of the call, or
+ * {@code -errno} on failure, so error paths allocate nothing. {@link #check(long, String)}
+ * turns a negative result in an {@link ErrnoException}.
+ *
+ * <pre><code>
+ * var fd = LinuxSyscalls.check(LinuxSyscalls.memfdSecret(0), "memfd_secret");
+ * </code></pre>
+ */
+public final class LinuxSyscalls {
+  // /usr/include/asm/unistd_64.h
+  public static final long SYS_MEMFD_SECRET = 447;
+
+  public static final int PROT_NONE = 0;
+  public static final int PROT_READ = 1;
+  public static final int PROT_WRITE = 2;
+  public static final int MAP_SHARED = 1;
+  public static final int MAP_PRIVATE = 2;
+  public static final int MAP_ANONYMOUS = 0x20;
+  public static final int MAP_NORESERVE = 0x4000;
+  public static final int MAP_POPULATE = 0x8000;
+  public static final int MAP_HUGETLB = 0x40000;
+  /**
+   * The huge page size of {@code MAP_HUGETLB} is encoded as its log2 shifted by this value.
+   */
+  public static final int MAP_HUGE_SHIFT = 26;
+  public static final int MFD_CLOEXEC = 1;
+  public static final int MFD_ALLOW_SEALING = 2;
+  public static final int O_RDONLY = 0;
+  public static final int O_RDWR = 2;
+  public static final int O_CLOEXEC = 0x80000;
+  public static final int SEEK_SET = 0;
+  public static final int SEEK_CUR = 1;
+  public static final int SEEK_END = 2;
+  public static final int F_ADD_SEALS = 1033;
+  public static final int F_GET_SEALS = 1034;
+  public static final int F_SEAL_SEAL = 1;
+  public static final int F_SEAL_SHRINK = 2;
+  public static final int F_SEAL_GROW = 4;
+  public static final int F_SEAL_WRITE = 8;
+
+  /**
+   * {@code struct iovec}, a buffer of a vectored I/O.
+   */
+  public static final StructLayout IOVEC = MemoryLayout.structLayout(
+          ADDRESS.withName("iov_base"),
+          JAVA_LONG.withName("iov_len")
+  ).withName("iovec");
+  /**
+   * Maximum number of buffers of a {@code readv} or {@code writev} call.
+   */
+  public static final int IOV_MAX = 1024;
+
+  private static final Linker linker = Linker.nativeLinker();
+  private static final SymbolLookup symbolLookup = linker.defaultLookup();
+
+  private static final StructLayout CAPTURED_STATE_LAYOUT = Linker.Option.captureStateLayout();
+  private static final long ERRNO_OFFSET = CAPTURED_STATE_LAYOUT.byteOffset(PathElement.groupElement("errno"));
+  private static final ThreadLocal<MemorySegment> CAPTURED_STATE = ThreadLocal.withInitial(
+          () -> Arena.ofAuto().allocate(CAPTURED_STATE_LAYOUT)
+  );
+
+  // long syscall(long number, ...);
+  private static final MethodHandle[] syscall = new MethodHandle[7];
+
+  static {
+    for (int argCount = 0; argCount < syscall.length; argCount++) {
+      var args = new MemoryLayout[argCount];
+      Arrays.fill(args, JAVA_LONG);
+      syscall[argCount] = downcall(
+              "syscall",
+              FunctionDescriptor.of(JAVA_LONG, JAVA_LONG).appendArgumentLayouts(args),
+              Linker.Option.firstVariadicArg(1)
+      );
+    }
+  }
+
+  // int memfd_create(const char *name, unsigned int flags);
+  private static final MethodHandle memfd_create = downcall(
+          "memfd_create",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // name
+                  JAVA_INT // flags
+          )
+  );
+  // int open(const char *pathname, int flags, ...);
+  private static final MethodHandle open = downcall(
+          "open",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // pathname
+                  JAVA_INT // flags
+          )
+  );
+  // int fcntl(int fd, int cmd, ...);
+  private static final MethodHandle fcntl = downcall(
+          "fcntl",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  JAVA_INT, // fd
+                  JAVA_INT, // cmd
+                  JAVA_INT // arg
+          ),
+          Linker.Option.firstVariadicArg(2)
+  );
+  // ssize_t read(int fd, void *buf, size_t count);
+  private static final MethodHandle read = downcall(
+          "read",
+          FunctionDescriptor.of(
+                  JAVA_LONG,
+                  JAVA_INT, // fd
+                  ADDRESS, // buf
+                  JAVA_LONG // count
+          )
+  );
+  // ssize_t write(int fd, const void *buf, size_t count);
+  private static final MethodHandle write = downcall(
+          "write",
+          FunctionDescriptor.of(
+                  JAVA_LONG,
+                  JAVA_INT, // fd
+                  ADDRESS, // buf
+                  JAVA_LONG // count
+          )
+  );
+  // ssize_t pread(int fd, void *buf, size_t count, off_t offset);
+  private static final MethodHandle pread = downcall(
+          "pread",
+          FunctionDescriptor.of(
+                  JAVA_LONG,
+                  JAVA_INT, // fd
+                  ADDRESS, // buf
+                  JAVA_LONG, // count
+                  JAVA_LONG // offset
+          )
+  );
+  // ssize_t pwrite(int fd, const void *buf, size_t count, off_t offset);
+  private static final MethodHandle pwrite = downcall(
+          "pwrite",
+          FunctionDescriptor.of(
+                  JAVA_LONG,
+                  JAVA_INT, // fd
+                  ADDRESS, // buf
+                  JAVA_LONG, // count
+                  JAVA_LONG // offset
+          )
+  );
+  // ssize_t readv(int fd, const struct iovec *iov, int iovcnt);
+  private static final MethodHandle readv = downcall(
+          "readv",
+          FunctionDescriptor.of(
+                  JAVA_LONG,
+                  JAVA_INT, // fd
+                  ADDRESS, // iov
+                  JAVA_INT // iovcnt
+          )
+  );
+  // ssize_t writev(int fd, const struct iovec *iov, int iovcnt);
+  private static final MethodHandle writev = downcall(
+          "writev",
+          FunctionDescriptor.of(
+                  JAVA_LONG,
+                  JAVA_INT, // fd
+                  ADDRESS, // iov
+                  JAVA_INT // iovcnt
+          )
+  );
+  // off_t lseek(int fd, off_t offset, int whence);
+  private static final MethodHandle lseek = downcall(
+          "lseek",
+          FunctionDescriptor.of(
+                  JAVA_LONG,
+                  JAVA_INT, // fd
+                  JAVA_LONG, // offset
+                  JAVA_INT // whence
+          )
+  );
+  // int close(int fd);
+  private static final MethodHandle close = downcall(
+          "close",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  JAVA_INT // fd
+          )
+  );
+  // int ftruncate(int fd, off_t length);
+  private static final MethodHandle ftruncate = downcall(
+          "ftruncate",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  JAVA_INT, // fd
+                  JAVA_LONG // length
+          )
+  );
+  // void *mmap(void *addr, size_t length, int prot, int flags, int fd, off_t offset);
+  private static final MethodHandle mmap = downcall(
+          "mmap",
+          FunctionDescriptor.of(
+                  ADDRESS,
+                  ADDRESS, // addr
+                  JAVA_LONG, // length
+                  JAVA_INT, // prot
+                  JAVA_INT, // flags
+                  JAVA_INT, // fd
+                  JAVA_LONG // offset
+          )
+  );
+  // int munmap(void *addr, size_t length);
+  private static final MethodHandle munmap = downcall(
+          "munmap",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // addr
+                  JAVA_LONG // length
+          )
+  );
+  // int mprotect(void *addr, size_t len, int prot);
+  private static final MethodHandle mprotect = downcall(
+          "mprotect",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // addr
+                  JAVA_LONG, // len
+                  JAVA_INT // prot
+          )
+  );
+  // int mlock(const void *addr, size_t len);
+  private static final MethodHandle mlock = downcall(
+          "mlock",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // addr
+                  JAVA_LONG // len
+          )
+  );
+  // int madvise(void *addr, size_t length, int advice);
+  private static final MethodHandle madvise = downcall(
+          "madvise",
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // addr
+                  JAVA_LONG, // length
+                  JAVA_INT // advice
+          )
+  );
+  // void explicit_bzero(void *s, size_t n);
+  // glibc 2.25+, unlike memset, the compiler cannot elide it as a dead store
+  private static final MethodHandle explicit_bzero = symbolLookup.find("explicit_bzero")
+          .map(address -> linker.downcallHandle(
+                  address,
+                  FunctionDescriptor.ofVoid(
+                          ADDRESS, // s
+                          JAVA_LONG // n
+                  )
+          ))
+          .orElse(null);
+  // char *strerror(int errnum);
+  private static final MethodHandle strerror = linker.downcallHandle(
+          symbolLookup.find("strerror").orElseThrow(),
+          FunctionDescriptor.of(ADDRESS, JAVA_INT)
+  );
+
+  private LinuxSyscalls() {
+  }
+
+  /**
+   * Returns the result if positive or zero, throws otherwise.
+   *
+   * @throws ErrnoException if the result is {@code -errno}
+   */
+  public static long check(long result, String operation) throws ErrnoException {
+    if (result < 0) {
+      throw new ErrnoException(operation, (int) -result);
+    }
+    return result;
+  }
+
+  public static int check(int result, String operation) throws ErrnoException {
+    if (result < 0) {
+      throw new ErrnoException(operation, -result);
+    }
+    return result;
+  }
+
+  public static long syscall(long number) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) syscall[0].invokeExact(state, number), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long syscall(long number, long arg1) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) syscall[1].invokeExact(state, number, arg1), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long syscall(long number, long arg1, long arg2) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) syscall[2].invokeExact(state, number, arg1, arg2), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long syscall(long number, long arg1, long arg2, long arg3) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) syscall[3].invokeExact(state, number, arg1, arg2, arg3), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long syscall(long number, long arg1, long arg2, long arg3, long arg4) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) syscall[4].invokeExact(state, number, arg1, arg2, arg3, arg4), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long syscall(long number, long arg1, long arg2, long arg3, long arg4, long arg5) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) syscall[5].invokeExact(state, number, arg1, arg2, arg3, arg4, arg5), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long syscall(long number, long arg1, long arg2, long arg3, long arg4, long arg5, long arg6) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) syscall[6].invokeExact(state, number, arg1, arg2, arg3, arg4, arg5, arg6), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * Creates a secret memory file descriptor, Linux 5.14+ booted with {@code secretmem.enable=1}.
+   */
+  public static int memfdSecret(int flags) {
+    return (int) syscall(SYS_MEMFD_SECRET, flags);
+  }
+
+  /**
+   * Creates an anonymous file descriptor backed by RAM, the name only shows in {@code /proc/<pid>/fd}.
+   */
+  public static int memfdCreate(String name, int flags) {
+    try (var arena = Arena.ofConfined()) {
+      var state = CAPTURED_STATE.get();
+      return result((int) memfd_create.invokeExact(state, arena.allocateFrom(name), flags), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * Opens an existing file, without {@code O_CREAT} there is no mode argument.
+   */
+  public static int open(String path, int flags) {
+    try (var arena = Arena.ofConfined()) {
+      var state = CAPTURED_STATE.get();
+      return result((int) open.invokeExact(state, arena.allocateFrom(path), flags), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * {@code fcntl} commands taking an int argument, e.g. {@link #F_ADD_SEALS}, or none, e.g. {@link #F_GET_SEALS}.
+   */
+  public static int fcntl(int fd, int cmd, int arg) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((int) fcntl.invokeExact(state, fd, cmd, arg), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long read(int fd, MemorySegment buffer, long count) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) read.invokeExact(state, fd, buffer, count), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long write(int fd, MemorySegment buffer, long count) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) write.invokeExact(state, fd, buffer, count), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long pread(int fd, MemorySegment buffer, long count, long offset) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) pread.invokeExact(state, fd, buffer, count, offset), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static long pwrite(int fd, MemorySegment buffer, long count, long offset) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) pwrite.invokeExact(state, fd, buffer, count, offset), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * @param iov array of {@link #IOVEC} structs
+   */
+  public static long readv(int fd, MemorySegment iov, int iovcnt) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) readv.invokeExact(state, fd, iov, iovcnt), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * @param iov array of {@link #IOVEC} structs
+   */
+  public static long writev(int fd, MemorySegment iov, int iovcnt) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) writev.invokeExact(state, fd, iov, iovcnt), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * Returns the new offset, or {@code -ESPIPE} on pipes, sockets and other unseekable descriptors.
+   */
+  public static long lseek(int fd, long offset, int whence) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((long) lseek.invokeExact(state, fd, offset, whence), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static int close(int fd) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((int) close.invokeExact(state, fd), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static int ftruncate(int fd, long length) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((int) ftruncate.invokeExact(state, fd, length), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * Returns the address of the mapping, or {@code -errno}.
+   */
+  public static long mmap(MemorySegment address, long length, int prot, int flags, int fd, long offset) {
+    try {
+      var state = CAPTURED_STATE.get();
+      var mapping = (MemorySegment) mmap.invokeExact(state, address, length, prot, flags, fd, offset);
+      // MAP_FAILED is (void *) -1
+      return result(mapping.address(), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static int munmap(MemorySegment address, long length) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((int) munmap.invokeExact(state, address, length), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static int mprotect(MemorySegment address, long length, int prot) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((int) mprotect.invokeExact(state, address, length, prot), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static int mlock(MemorySegment address, long length) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((int) mlock.invokeExact(state, address, length), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static int madvise(MemorySegment address, long length, int advice) {
+    try {
+      var state = CAPTURED_STATE.get();
+      return result((int) madvise.invokeExact(state, address, length, advice), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * Zeroes the segment, in a way that cannot be optimized away.
+   * <p>
+   * Falls back to a fill and a full fence if the libc has no {@code explicit_bzero}.
+   */
+  public static void explicitBzero(MemorySegment segment) {
+    if (explicit_bzero == null || !segment.isNative()) {
+      segment.fill((byte) 0);
+      VarHandle.fullFence();
+      return;
+    }
+    try {
+      explicit_bzero.invokeExact(segment, segment.byteSize());
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static String strerror(int errno) {
+    try {
+      return ((MemorySegment) strerror.invokeExact(errno)).reinterpret(Long.MAX_VALUE).getString(0);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * Captured state segment of the calling thread, the first argument of the handles linked by
+   * {@link #downcall(MemorySegment, FunctionDescriptor, Linker.Option...)}.
+   */
+  public static MemorySegment capturedState() {
+    return CAPTURED_STATE.get();
+  }
+
+  /**
+   * Returns the result, or {@code -errno} read from the captured state if the result is {@code -1}.
+   */
+  public static int result(int result, MemorySegment state) {
+    return result == -1 ? -state.get(JAVA_INT, ERRNO_OFFSET) : result;
+  }
+
+  public static long result(long result, MemorySegment state) {
+    return result == -1 ? -state.get(JAVA_INT, ERRNO_OFFSET) : result;
+  }
+
+  /**
+   * Links the function with a leading captured state segment parameter.
+   */
+  static MethodHandle downcall(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+    return downcall(symbolLookup.find(name).orElseThrow(), descriptor, options);
+  }
+
+  /**
+   * Links the function at this address, e.g. of jextract generated bindings, with a leading captured state segment parameter.
+   */
+  public static MethodHandle downcall(MemorySegment address, FunctionDescriptor descriptor, Linker.Option... options) {
+    var allOptions = Arrays.copyOf(options, options.length + 1);
+    allOptions[options.length] = Linker.Option.captureCallState("errno");
+    return linker.downcallHandle(address, descriptor, allOptions);
+  }
+}
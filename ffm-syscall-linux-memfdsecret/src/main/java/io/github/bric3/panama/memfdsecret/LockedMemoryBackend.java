@@ -0,0 +1,95 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Optional;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_ANONYMOUS;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_NORESERVE;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_PRIVATE;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_NONE;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_READ;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_WRITE;
+
+/**
+ * Regions in anonymous private memory, the fallback when {@code memfd_secret} is not available.
+ * <p>
+ * The memory stays readable by the kernel, but committed pages are locked
+ * with {@code mlock} so they are never swapped, excluded from core dumps
+ * ({@code MADV_DONTDUMP}) and zeroed in forked children ({@code MADV_WIPEONFORK}).
+ * A {@code PROT_NONE} guard page on each side of the region turns overflows into faults.
+ * <p>
+ * Pages are locked as they are committed, so the {@code RLIMIT_MEMLOCK} limit
+ * is consumed by the used pages only, not by the whole reservation.
+ */
+final class LockedMemoryBackend implements SecureMemoryBackend {
+  static final LockedMemoryBackend INSTANCE = new LockedMemoryBackend();
+
+  private static final int MADV_DONTDUMP = 16;
+  private static final int MADV_WIPEONFORK = 18;
+  private static final long GUARD_SIZE = SecretArena.PAGE_SIZE;
+
+  private LockedMemoryBackend() {
+  }
+
+  @Override
+  public String name() {
+    return "mlock";
+  }
+
+  @Override
+  public Optional<Region> reserve(long size) {
+    var span = size + 2 * GUARD_SIZE;
+    var address = LinuxSyscalls.mmap(MemorySegment.NULL, span, PROT_NONE, MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE, -1, 0);
+    if (address < 0) {
+      return Optional.empty();
+    }
+    var mapping = MemorySegment.ofAddress(address).reinterpret(span);
+    var memory = mapping.asSlice(GUARD_SIZE, size);
+
+    var res = LinuxSyscalls.mprotect(memory, size, PROT_READ | PROT_WRITE);
+    if (res < 0) {
+      LinuxSyscalls.munmap(mapping, span);
+      return Optional.empty();
+    }
+    res = LinuxSyscalls.madvise(memory, size, MADV_DONTDUMP);
+    if (res < 0) {
+      LinuxSyscalls.munmap(mapping, span);
+      return Optional.empty();
+    }
+    // Linux 4.14+, the region is still usable without it
+    LinuxSyscalls.madvise(memory, size, MADV_WIPEONFORK);
+
+    SecretMemoryMetrics.mapped(size);
+    return Optional.of(new LockedRegion(mapping, memory));
+  }
+
+  private record LockedRegion(MemorySegment mapping, MemorySegment memory) implements Region {
+    @Override
+    public void commit(long offset, long length) {
+      var res = LinuxSyscalls.mlock(memory.asSlice(offset, length), length);
+      if (res < 0) {
+        throw new OutOfMemoryError("mlock failed: " + Errno.describe(-res));
+      }
+    }
+
+    @Override
+    public void close() {
+      // unmapping unlocks the pages
+      var res = LinuxSyscalls.munmap(mapping, mapping.byteSize());
+      if (res < 0) {
+        System.err.println("munmap failed: " + Errno.describe(-res));
+        return;
+      }
+      SecretMemoryMetrics.unmapped(memory.byteSize());
+    }
+  }
+}
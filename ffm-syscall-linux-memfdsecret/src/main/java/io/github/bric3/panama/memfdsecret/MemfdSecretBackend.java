@@ -0,0 +1,89 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Optional;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_SHARED;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_READ;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_WRITE;
+
+/**
+ * Regions in a {@code memfd_secret} file, removed from the kernel direct map.
+ * <p>
+ * The file is sized once, the kernel refuses to resize a secret memory file,
+ * pages are allocated on first touch so there is nothing to commit.
+ */
+final class MemfdSecretBackend implements SecureMemoryBackend {
+  static final MemfdSecretBackend INSTANCE = new MemfdSecretBackend();
+
+  private MemfdSecretBackend() {
+  }
+
+  @Override
+  public String name() {
+    return "memfd_secret";
+  }
+
+  /**
+   * Returns the errno of {@code memfd_secret}, or {@code 0} if the syscall is available.
+   */
+  int probe() {
+    var fd = LinuxSyscalls.memfdSecret(0);
+    if (fd < 0) {
+      return -fd;
+    }
+    LinuxSyscalls.close(fd);
+    return 0;
+  }
+
+  @Override
+  public Optional<Region> reserve(long size) {
+    var fd = LinuxSyscalls.memfdSecret(0);
+    if (fd < 0) {
+      return Optional.empty();
+    }
+
+    try {
+      var res = LinuxSyscalls.ftruncate(fd, size);
+      if (res < 0) {
+        return Optional.empty();
+      }
+
+      var address = LinuxSyscalls.mmap(MemorySegment.NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+      if (address < 0) {
+        return Optional.empty();
+      }
+      SecretMemoryMetrics.mapped(size);
+      return Optional.of(new SecretRegion(MemorySegment.ofAddress(address).reinterpret(size)));
+    } finally {
+      // the mapping keeps the file alive
+      LinuxSyscalls.close(fd);
+    }
+  }
+
+  private record SecretRegion(MemorySegment memory) implements Region {
+    @Override
+    public void commit(long offset, long length) {
+      // pages are allocated on first touch
+    }
+
+    @Override
+    public void close() {
+      var res = LinuxSyscalls.munmap(memory, memory.byteSize());
+      if (res < 0) {
+        System.err.println("munmap failed: " + Errno.describe(-res));
+        return;
+      }
+      SecretMemoryMetrics.unmapped(memory.byteSize());
+    }
+  }
+}
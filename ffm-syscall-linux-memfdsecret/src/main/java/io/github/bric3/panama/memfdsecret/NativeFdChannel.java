@@ -0,0 +1,440 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Objects;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.IOVEC;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.IOV_MAX;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.SEEK_CUR;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.SEEK_END;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.SEEK_SET;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Channel over a raw file descriptor, e.g. a memfd, a pipe or an inherited descriptor.
+ * <p>
+ * The JDK only builds channels from paths, wrapping a raw fd in a {@link java.io.FileDescriptor}
+ * requires reflective access to its private constructor. This channel calls
+ * {@code read}, {@code write}, {@code pread}, {@code pwrite}, {@code readv} and
+ * {@code writev} directly, and uses the fd's file offset as its position, like
+ * {@link java.nio.channels.FileChannel}.
+ * <p>
+ * Direct buffers are handed to the kernel as is. Heap buffers are staged in a
+ * native buffer of {@value #STAGING_SIZE} bytes, a single call transfers at most
+ * this many bytes from or to heap buffers. Vectored calls take up to
+ * {@link LinuxSyscalls#IOV_MAX} buffers.
+ * <p>
+ * Pipes and sockets are not seekable, {@link #position()}, {@link #size()} and
+ * the positional methods throw an {@link ErrnoException} with {@code ESPIPE}.
+ * EINTR is retried, a non-blocking descriptor that would block transfers 0 bytes.
+ * <p>
+ * Operations are serialized. Closing does not wake up a thread blocked in {@code read},
+ * the descriptor is closed once the operations in flight return, so they never
+ * reach another file that reused the descriptor number. Errors of such a deferred
+ * {@code close} are ignored.
+ */
+public final class NativeFdChannel implements SeekableByteChannel, ScatteringByteChannel, GatheringByteChannel {
+  static final int STAGING_SIZE = 64 * 1024;
+
+  private static final long IOV_BASE_OFFSET = IOVEC.byteOffset(PathElement.groupElement("iov_base"));
+  private static final long IOV_LEN_OFFSET = IOVEC.byteOffset(PathElement.groupElement("iov_len"));
+  // results are -errno, Errno.is would also match a byte count
+  private static final long INTERRUPTED = -Errno.EINTR.value();
+  private static final long WOULD_BLOCK = -Errno.EAGAIN.value();
+
+  private final int fd;
+  private final boolean closeFd;
+  private final MemorySegment staging;
+  private final MemorySegment iovecs;
+  private final int[] iovBuffers = new int[IOV_MAX];
+  private final Object stateLock = new Object();
+  // written under stateLock
+  private volatile boolean open = true;
+  private int inFlight;
+
+  private NativeFdChannel(int fd, boolean closeFd) {
+    this.fd = fd;
+    this.closeFd = closeFd;
+    // not closed with the channel, a thread may still be blocked in a call using them
+    var arena = Arena.ofAuto();
+    this.staging = arena.allocate(STAGING_SIZE, 4096);
+    this.iovecs = arena.allocate(IOVEC, IOV_MAX);
+  }
+
+  /**
+   * Channel owning the descriptor, closing the channel closes the descriptor.
+   */
+  public static NativeFdChannel of(int fd) {
+    return of(fd, true);
+  }
+
+  public static NativeFdChannel of(int fd, boolean closeFd) {
+    if (fd < 0) {
+      throw new IllegalArgumentException(STR."invalid fd: \{fd}");
+    }
+    return new NativeFdChannel(fd, closeFd);
+  }
+
+  public int fd() {
+    return fd;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    return read(dst, -1, "read");
+  }
+
+  /**
+   * Reads at the given position, without changing the channel position.
+   */
+  public synchronized int read(ByteBuffer dst, long position) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException(STR."negative position: \{position}");
+    }
+    return read(dst, position, "pread");
+  }
+
+  private int read(ByteBuffer dst, long position, String operation) throws IOException {
+    begin();
+    try {
+      return doRead(dst, position, operation);
+    } finally {
+      end();
+    }
+  }
+
+  private int doRead(ByteBuffer dst, long position, String operation) throws IOException {
+    if (dst.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    var target = dst.isDirect() ? MemorySegment.ofBuffer(dst) : staging;
+    var count = Math.min(dst.remaining(), target.byteSize());
+    long n;
+    do {
+      n = position < 0 ?
+          LinuxSyscalls.read(fd, target, count) :
+          LinuxSyscalls.pread(fd, target, count, position);
+    } while (n == INTERRUPTED);
+    if (n == 0) {
+      return -1;
+    }
+    if (n == WOULD_BLOCK) {
+      return 0;
+    }
+    LinuxSyscalls.check(n, operation);
+    if (!dst.isDirect()) {
+      MemorySegment.copy(staging, 0, MemorySegment.ofBuffer(dst), 0, n);
+    }
+    dst.position(dst.position() + (int) n);
+    return (int) n;
+  }
+
+  @Override
+  public synchronized int write(ByteBuffer src) throws IOException {
+    return write(src, -1, "write");
+  }
+
+  /**
+   * Writes at the given position, without changing the channel position.
+   */
+  public synchronized int write(ByteBuffer src, long position) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException(STR."negative position: \{position}");
+    }
+    return write(src, position, "pwrite");
+  }
+
+  private int write(ByteBuffer src, long position, String operation) throws IOException {
+    begin();
+    try {
+      return doWrite(src, position, operation);
+    } finally {
+      end();
+    }
+  }
+
+  private int doWrite(ByteBuffer src, long position, String operation) throws IOException {
+    if (!src.hasRemaining()) {
+      return 0;
+    }
+    MemorySegment source;
+    if (src.isDirect()) {
+      source = MemorySegment.ofBuffer(src);
+    } else {
+      source = staging.asSlice(0, Math.min(src.remaining(), STAGING_SIZE));
+      MemorySegment.copy(MemorySegment.ofBuffer(src), 0, source, 0, source.byteSize());
+    }
+    long n;
+    do {
+      n = position < 0 ?
+          LinuxSyscalls.write(fd, source, source.byteSize()) :
+          LinuxSyscalls.pwrite(fd, source, source.byteSize(), position);
+    } while (n == INTERRUPTED);
+    if (n == WOULD_BLOCK) {
+      return 0;
+    }
+    LinuxSyscalls.check(n, operation);
+    src.position(src.position() + (int) n);
+    return (int) n;
+  }
+
+  @Override
+  public long read(ByteBuffer[] dsts) throws IOException {
+    return read(dsts, 0, dsts.length);
+  }
+
+  @Override
+  public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    Objects.checkFromIndexSize(offset, length, dsts.length);
+    begin();
+    try {
+      return doRead(dsts, offset, length);
+    } finally {
+      end();
+    }
+  }
+
+  private long doRead(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    var count = 0;
+    var stagingUsed = 0L;
+    for (int i = offset; i < offset + length && count < IOV_MAX; i++) {
+      var dst = dsts[i];
+      if (dst.isReadOnly()) {
+        throw new ReadOnlyBufferException();
+      }
+      if (!dst.hasRemaining()) {
+        continue;
+      }
+      if (dst.isDirect()) {
+        setIovec(count, MemorySegment.ofBuffer(dst));
+      } else {
+        var size = Math.min(dst.remaining(), STAGING_SIZE - stagingUsed);
+        if (size == 0) {
+          break;
+        }
+        setIovec(count, staging.asSlice(stagingUsed, size));
+        stagingUsed += size;
+      }
+      iovBuffers[count++] = i;
+    }
+    if (count == 0) {
+      return 0;
+    }
+
+    long n;
+    do {
+      n = LinuxSyscalls.readv(fd, iovecs, count);
+    } while (n == INTERRUPTED);
+    if (n == 0) {
+      return -1;
+    }
+    if (n == WOULD_BLOCK) {
+      return 0;
+    }
+    LinuxSyscalls.check(n, "readv");
+
+    var left = n;
+    var stagingOffset = 0L;
+    for (int i = 0; i < count && left > 0; i++) {
+      var dst = dsts[iovBuffers[i]];
+      var size = iovecs.get(JAVA_LONG, i * IOVEC.byteSize() + IOV_LEN_OFFSET);
+      var done = Math.min(size, left);
+      if (!dst.isDirect()) {
+        MemorySegment.copy(staging, stagingOffset, MemorySegment.ofBuffer(dst), 0, done);
+        stagingOffset += size;
+      }
+      dst.position(dst.position() + (int) done);
+      left -= done;
+    }
+    return n;
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+
+  @Override
+  public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    Objects.checkFromIndexSize(offset, length, srcs.length);
+    begin();
+    try {
+      return doWrite(srcs, offset, length);
+    } finally {
+      end();
+    }
+  }
+
+  private long doWrite(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    var count = 0;
+    var stagingUsed = 0L;
+    for (int i = offset; i < offset + length && count < IOV_MAX; i++) {
+      var src = srcs[i];
+      if (!src.hasRemaining()) {
+        continue;
+      }
+      if (src.isDirect()) {
+        setIovec(count, MemorySegment.ofBuffer(src));
+      } else {
+        var size = Math.min(src.remaining(), STAGING_SIZE - stagingUsed);
+        if (size == 0) {
+          break;
+        }
+        var slice = staging.asSlice(stagingUsed, size);
+        MemorySegment.copy(MemorySegment.ofBuffer(src), 0, slice, 0, size);
+        setIovec(count, slice);
+        stagingUsed += size;
+      }
+      iovBuffers[count++] = i;
+    }
+    if (count == 0) {
+      return 0;
+    }
+
+    long n;
+    do {
+      n = LinuxSyscalls.writev(fd, iovecs, count);
+    } while (n == INTERRUPTED);
+    if (n == WOULD_BLOCK) {
+      return 0;
+    }
+    LinuxSyscalls.check(n, "writev");
+
+    var left = n;
+    for (int i = 0; i < count && left > 0; i++) {
+      var src = srcs[iovBuffers[i]];
+      var done = Math.min(iovecs.get(JAVA_LONG, i * IOVEC.byteSize() + IOV_LEN_OFFSET), left);
+      src.position(src.position() + (int) done);
+      left -= done;
+    }
+    return n;
+  }
+
+  private void setIovec(int index, MemorySegment buffer) {
+    var offset = index * IOVEC.byteSize();
+    iovecs.set(ADDRESS, offset + IOV_BASE_OFFSET, buffer);
+    iovecs.set(JAVA_LONG, offset + IOV_LEN_OFFSET, buffer.byteSize());
+  }
+
+  @Override
+  public synchronized long position() throws IOException {
+    begin();
+    try {
+      return LinuxSyscalls.check(LinuxSyscalls.lseek(fd, 0, SEEK_CUR), "lseek");
+    } finally {
+      end();
+    }
+  }
+
+  @Override
+  public synchronized NativeFdChannel position(long newPosition) throws IOException {
+    if (newPosition < 0) {
+      throw new IllegalArgumentException(STR."negative position: \{newPosition}");
+    }
+    begin();
+    try {
+      LinuxSyscalls.check(LinuxSyscalls.lseek(fd, newPosition, SEEK_SET), "lseek");
+    } finally {
+      end();
+    }
+    return this;
+  }
+
+  @Override
+  public synchronized long size() throws IOException {
+    begin();
+    try {
+      var position = LinuxSyscalls.check(LinuxSyscalls.lseek(fd, 0, SEEK_CUR), "lseek");
+      var size = LinuxSyscalls.check(LinuxSyscalls.lseek(fd, 0, SEEK_END), "lseek");
+      LinuxSyscalls.check(LinuxSyscalls.lseek(fd, position, SEEK_SET), "lseek");
+      return size;
+    } finally {
+      end();
+    }
+  }
+
+  @Override
+  public synchronized NativeFdChannel truncate(long size) throws IOException {
+    if (size < 0) {
+      throw new IllegalArgumentException(STR."negative size: \{size}");
+    }
+    begin();
+    try {
+      if (size < size()) {
+        LinuxSyscalls.check(LinuxSyscalls.ftruncate(fd, size), "ftruncate");
+      }
+      if (position() > size) {
+        position(size);
+      }
+    } finally {
+      end();
+    }
+    return this;
+  }
+
+  /**
+   * Marks an operation in flight, the descriptor stays open until the matching {@link #end()}.
+   */
+  private void begin() throws ClosedChannelException {
+    synchronized (stateLock) {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      inFlight++;
+    }
+  }
+
+  private void end() {
+    synchronized (stateLock) {
+      if (--inFlight == 0 && !open && closeFd) {
+        // deferred close, the caller of close() is gone
+        LinuxSyscalls.close(fd);
+      }
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Closes the channel, the descriptor is closed when no operation is in flight,
+   * otherwise by the last one when it returns.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (stateLock) {
+      if (!open) {
+        return;
+      }
+      open = false;
+      if (inFlight > 0 || !closeFd) {
+        return;
+      }
+    }
+    LinuxSyscalls.check(LinuxSyscalls.close(fd), "close");
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Arena allocating secrets in a single region of secure memory, {@code memfd_secret}
+ * or its fallback, see {@link SecureMemory}.
+ * <p>
+ * {@link SecureMemory#allocate(long, Arena)} costs a region, e.g. a {@code memfd_secret},
+ * {@code ftruncate}, {@code mmap} and {@code close} syscalls, and a whole page
+ * per secret. This arena reserves its region once, pages are handed out from
+ * the start of the region and committed as needed, so the resident size grows
+ * page by page with the allocations.
+ * <p>
+ * Small segments, up to {@value #MAX_SLOT_SIZE} bytes, are carved in power of
+ * two size classes, each class fills its own pages, and freed slots are kept
+ * in a stack per class. Larger segments take a run of pages. Storing thousands
+ * of 32 bytes session keys then costs a few syscalls and a few pages.
+ * <p>
+ * Segments can be given back with {@link #release(MemorySegment)}, they are
+ * wiped and reused. Closing the arena invalidates all segments, wipes the used
+ * pages and unmaps the region, live secrets are tracked in {@link SecretMemoryMetrics}.
+ * The arena can be used by any thread.
+ * <p>
+ * Secret and locked memory are accounted in the {@code RLIMIT_MEMLOCK} limit
+ * of the process ({@code ulimit -l}).
+ */
+public final class SecretArena implements Arena {
+  public static final long PAGE_SIZE = 4096;
+  public static final int MIN_SLOT_SIZE = 16;
+  public static final int MAX_SLOT_SIZE = (int) PAGE_SIZE;
+  private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SLOT_SIZE) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE) + 1;
+
+  private final Arena scope = Arena.ofShared();
+  private final SecureMemoryBackend.Region reservation;
+  private final MemorySegment region;
+  private final long[][] freeSlots = new long[SIZE_CLASSES][];
+  private final int[] freeSlotCounts = new int[SIZE_CLASSES];
+  /**
+   * Free page runs, offset to length.
+   */
+  private final TreeMap<Long, Long> freeRuns = new TreeMap<>();
+  /**
+   * Live allocations, offset to byte size, a released segment must match one exactly.
+   */
+  private final HashMap<Long, Long> allocations = new HashMap<>();
+  /**
+   * Size class of the slots of each page, or {@code -1} for pages of a run.
+   */
+  private final byte[] pageClasses;
+  private long top;
+  private long liveBytes;
+  private long liveSegments;
+  private boolean open = true;
+
+  private SecretArena(SecureMemoryBackend.Region reservation) {
+    this.reservation = reservation;
+    this.region = reservation.memory();
+    this.pageClasses = new byte[Math.toIntExact(region.byteSize() / PAGE_SIZE)];
+    for (int i = 0; i < SIZE_CLASSES; i++) {
+      freeSlots[i] = new long[16];
+    }
+  }
+
+  /**
+   * Reserves a region of {@code reservedSize} bytes, rounded up to pages, from the {@link SecureMemory#backend()}.
+   *
+   * @return the arena, or empty if the memory could not be reserved.
+   */
+  public static Optional<SecretArena> create(long reservedSize) {
+    return create(SecureMemory.backend(), reservedSize);
+  }
+
+  public static Optional<SecretArena> create(SecureMemoryBackend backend, long reservedSize) {
+    if (reservedSize <= 0) {
+      throw new IllegalArgumentException("reserved size must be positive, got " + reservedSize);
+    }
+    return backend.reserve(pageAlign(reservedSize)).map(SecretArena::new);
+  }
+
+  public long reservedSize() {
+    return region.byteSize();
+  }
+
+  /**
+   * Bytes of the region handed out so far, the upper bound of the secret memory in use.
+   */
+  public synchronized long committedSize() {
+    return top;
+  }
+
+  @Override
+  public synchronized MemorySegment allocate(long byteSize, long byteAlignment) {
+    ensureOpen();
+    if (byteSize < 0 || byteAlignment <= 0 || Long.bitCount(byteAlignment) != 1) {
+      throw new IllegalArgumentException(STR."invalid size or alignment: \{byteSize}, \{byteAlignment}");
+    }
+    if (byteAlignment > PAGE_SIZE) {
+      throw new IllegalArgumentException(STR."alignment larger than a page: \{byteAlignment}");
+    }
+    // slots are aligned on their size
+    var slotSize = Math.max(byteSize, byteAlignment);
+    long offset;
+    if (slotSize <= MAX_SLOT_SIZE) {
+      offset = allocateSlot(sizeClass(slotSize));
+    } else {
+      offset = allocatePages(pageAlign(byteSize) / PAGE_SIZE);
+      pageClasses[(int) (offset / PAGE_SIZE)] = -1;
+    }
+    allocations.put(offset, byteSize);
+    liveBytes += byteSize;
+    liveSegments++;
+    SecretMemoryMetrics.allocated(byteSize);
+    return region.asSlice(offset, byteSize).reinterpret(scope, null);
+  }
+
+  /**
+   * Zeroes and gives back a segment allocated by this arena.
+   * <p>
+   * The segment must be exactly one returned by {@link #allocate(long, long)}, not
+   * a slice of it, and not already released; otherwise its slot could be handed
+   * out twice.
+   *
+   * Releasing in a closed arena does nothing, its memory is already wiped and unmapped.
+   *
+   * @throws IllegalArgumentException if the segment is not a live allocation of this arena
+   */
+  public synchronized void release(MemorySegment segment) {
+    if (!open) {
+      return;
+    }
+    var offset = segment.address() - region.address();
+    var allocatedSize = offset >= 0 && offset < top ? allocations.get(offset) : null;
+    if (allocatedSize == null || allocatedSize != segment.byteSize()) {
+      throw new IllegalArgumentException("segment not a live allocation of this arena: " + segment);
+    }
+    allocations.remove(offset);
+    LinuxSyscalls.explicitBzero(segment);
+    liveBytes -= segment.byteSize();
+    liveSegments--;
+    SecretMemoryMetrics.released(segment.byteSize(), 1);
+    var sizeClass = pageClasses[(int) (offset / PAGE_SIZE)];
+    if (sizeClass >= 0) {
+      pushSlot(sizeClass, offset);
+    } else {
+      releasePages(offset, pageAlign(segment.byteSize()) / PAGE_SIZE);
+    }
+  }
+
+  @Override
+  public MemorySegment.Scope scope() {
+    return scope.scope();
+  }
+
+  /**
+   * Wipes and unmaps the region.
+   *
+   * @throws IllegalStateException if the arena is already closed, or if a segment is in use
+   *                               by a downcall or another thread, the arena then stays open
+   *                               and close can be retried
+   */
+  @Override
+  public synchronized void close() {
+    ensureOpen();
+    // throws while a segment is accessed, before anything is wiped
+    scope.close();
+    open = false;
+    try {
+      // secrets still allocated are wiped with the rest of the used pages
+      LinuxSyscalls.explicitBzero(region.asSlice(0, top));
+    } finally {
+      reservation.close();
+      SecretMemoryMetrics.released(liveBytes, liveSegments);
+    }
+  }
+
+  private long allocateSlot(int sizeClass) {
+    if (freeSlotCounts[sizeClass] == 0) {
+      // carve a fresh page in slots of this class
+      var slotSize = slotSize(sizeClass);
+      var page = allocatePages(1);
+      pageClasses[(int) (page / PAGE_SIZE)] = (byte) sizeClass;
+      for (long slot = PAGE_SIZE - slotSize; slot >= 0; slot -= slotSize) {
+        pushSlot(sizeClass, page + slot);
+      }
+    }
+    return freeSlots[sizeClass][--freeSlotCounts[sizeClass]];
+  }
+
+  private void pushSlot(int sizeClass, long offset) {
+    if (freeSlotCounts[sizeClass] == freeSlots[sizeClass].length) {
+      freeSlots[sizeClass] = Arrays.copyOf(freeSlots[sizeClass], freeSlots[sizeClass].length * 2);
+    }
+    freeSlots[sizeClass][freeSlotCounts[sizeClass]++] = offset;
+  }
+
+  private long allocatePages(long pages) {
+    var length = pages * PAGE_SIZE;
+    for (var run : freeRuns.entrySet()) {
+      long runOffset = run.getKey();
+      long runLength = run.getValue();
+      if (runLength >= length) {
+        freeRuns.remove(runOffset);
+        if (runLength > length) {
+          freeRuns.put(runOffset + length, runLength - length);
+        }
+        return runOffset;
+      }
+    }
+
+    if (top + length > region.byteSize()) {
+      throw new OutOfMemoryError(STR."secret arena exhausted, reserved \{region.byteSize()} bytes");
+    }
+    var offset = top;
+    reservation.commit(offset, length);
+    top += length;
+    return offset;
+  }
+
+  private void releasePages(long offset, long pages) {
+    var length = pages * PAGE_SIZE;
+    var previous = freeRuns.floorEntry(offset);
+    if (previous != null && previous.getKey() + previous.getValue() == offset) {
+      offset = previous.getKey();
+      length += previous.getValue();
+    }
+    var next = freeRuns.remove(offset + length);
+    if (next != null) {
+      length += next;
+    }
+    freeRuns.put(offset, length);
+  }
+
+  private void ensureOpen() {
+    if (!open) {
+      throw new IllegalStateException("Already closed");
+    }
+  }
+
+  private static int sizeClass(long size) {
+    var slotSize = Math.max(MIN_SLOT_SIZE, Long.highestOneBit(size - 1) << 1);
+    return Long.numberOfTrailingZeros(slotSize) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+  }
+
+  private static long slotSize(int sizeClass) {
+    return (long) MIN_SLOT_SIZE << sizeClass;
+  }
+
+  private static long pageAlign(long size) {
+    return (size + PAGE_SIZE - 1) & -PAGE_SIZE;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters of secret memory, to spot services leaking secrets as keys rotate.
+ * <p>
+ * Mapped bytes are the secret memory mappings, whose pages stay resident
+ * until unmapped. Live bytes and segments are the secrets handed out and
+ * not yet released, by {@link SecureMemory#allocate} or a {@link SecretArena}.
+ */
+public final class SecretMemoryMetrics {
+  private static final AtomicLong MAPPED_BYTES = new AtomicLong();
+  private static final AtomicLong LIVE_BYTES = new AtomicLong();
+  private static final AtomicLong LIVE_SEGMENTS = new AtomicLong();
+
+  private SecretMemoryMetrics() {
+  }
+
+  public static long mappedBytes() {
+    return MAPPED_BYTES.get();
+  }
+
+  public static long liveBytes() {
+    return LIVE_BYTES.get();
+  }
+
+  public static long liveSegments() {
+    return LIVE_SEGMENTS.get();
+  }
+
+  static void mapped(long bytes) {
+    MAPPED_BYTES.addAndGet(bytes);
+  }
+
+  static void unmapped(long bytes) {
+    MAPPED_BYTES.addAndGet(-bytes);
+  }
+
+  static void allocated(long bytes) {
+    LIVE_BYTES.addAndGet(bytes);
+    LIVE_SEGMENTS.incrementAndGet();
+  }
+
+  static void released(long bytes, long segments) {
+    LIVE_BYTES.addAndGet(-bytes);
+    LIVE_SEGMENTS.addAndGet(-segments);
+  }
+
+  public static String summary() {
+    return STR."secret memory: \{mappedBytes()} bytes mapped, \{liveBytes()} bytes live in \{liveSegments()} segments";
+  }
+}
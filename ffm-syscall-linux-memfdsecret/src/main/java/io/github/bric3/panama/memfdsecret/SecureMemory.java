@@ -0,0 +1,71 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Entry point to memory for secrets, backed by the best available {@link SecureMemoryBackend}.
+ * <p>
+ * The backends are probed once, on first use: {@code memfd_secret} if the
+ * kernel supports it (Linux 5.14+ booted with {@code secretmem.enable=1}),
+ * then anonymous memory locked with {@code mlock}. Allocations never probe
+ * the kernel again. The backend can be forced with the
+ * {@code secure.memory.backend} property, {@code memfd_secret} or {@code mlock}.
+ */
+public final class SecureMemory {
+  private SecureMemory() {
+  }
+
+  public static SecureMemoryBackend backend() {
+    return BackendHolder.BACKEND;
+  }
+
+  /**
+   * Allocates a region for a single secret, wiped and unmapped when the arena is closed.
+   *
+   * @throws OutOfMemoryError if the backend cannot reserve the memory.
+   */
+  public static MemorySegment allocate(long length, Arena arena) {
+    var size = (length + SecretArena.PAGE_SIZE - 1) & -SecretArena.PAGE_SIZE;
+    var region = backend().reserve(Math.max(size, SecretArena.PAGE_SIZE))
+                          .orElseThrow(() -> new OutOfMemoryError(STR."cannot reserve \{length} bytes with \{backend().name()}"));
+    region.commit(0, region.memory().byteSize());
+    SecretMemoryMetrics.allocated(length);
+    return region.memory().asSlice(0, length).reinterpret(arena, segment -> {
+      LinuxSyscalls.explicitBzero(region.memory());
+      region.close();
+      SecretMemoryMetrics.released(length, 1);
+    });
+  }
+
+  private static final class BackendHolder {
+    static final SecureMemoryBackend BACKEND = select();
+
+    private static SecureMemoryBackend select() {
+      var forced = System.getProperty("secure.memory.backend");
+      if (forced != null) {
+        return switch (forced) {
+          case "memfd_secret" -> MemfdSecretBackend.INSTANCE;
+          case "mlock" -> LockedMemoryBackend.INSTANCE;
+          default -> throw new IllegalArgumentException("unknown secure memory backend: " + forced);
+        };
+      }
+
+      var errno = MemfdSecretBackend.INSTANCE.probe();
+      if (errno == 0) {
+        return MemfdSecretBackend.INSTANCE;
+      }
+      System.err.println(STR."memfd_secret unavailable (errno: \{errno}), falling back to mlock-ed anonymous memory");
+      return LockedMemoryBackend.INSTANCE;
+    }
+  }
+}
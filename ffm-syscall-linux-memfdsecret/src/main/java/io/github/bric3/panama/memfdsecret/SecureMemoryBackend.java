@@ -0,0 +1,47 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Optional;
+
+/**
+ * Source of memory for secrets, see {@link SecureMemory#backend()} for the one selected at startup.
+ */
+public sealed interface SecureMemoryBackend permits MemfdSecretBackend, LockedMemoryBackend {
+  String name();
+
+  /**
+   * Reserves a region of {@code size} bytes, a multiple of the page size.
+   *
+   * @return the region, or empty if the memory could not be reserved, the caller reports it.
+   */
+  Optional<Region> reserve(long size);
+
+  /**
+   * Reserved address range, pages must be committed before use.
+   */
+  interface Region extends AutoCloseable {
+    MemorySegment memory();
+
+    /**
+     * Makes the pages of the range usable.
+     *
+     * @throws OutOfMemoryError if the pages cannot be committed, e.g. over the {@code RLIMIT_MEMLOCK} limit.
+     */
+    void commit(long offset, long length);
+
+    /**
+     * Unmaps the region, its content must be wiped before.
+     */
+    @Override
+    void close();
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.aead;
+
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+import io.github.bric3.panama.memfdsecret.SecretArena;
+import io.github.bric3.panama.memfdsecret.jca.SecretSegmentKey;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * ChaCha20-Poly1305 (RFC 8439) over native segments, with the libcrypto of the system.
+ * <p>
+ * The key is read directly from its segment, e.g. a {@link SecretSegmentKey}
+ * in secret memory, and payloads are encrypted and decrypted in place, so
+ * neither the key nor the data go through the Java heap. libcrypto keeps its
+ * own expanded copy of the key in the cipher context, which is cleared when
+ * this instance is closed.
+ * <p>
+ * Payloads must be native segments, they are passed as is to
+ * {@code EVP_CipherUpdate}, in slices of at most 1 GiB as the length is an {@code int}.
+ * Each nonce must be used only once with a key.
+ * <p>
+ * Not thread-safe, use an instance per thread.
+ * <p>
+ * The library is {@code libcrypto.so.3} by default, it can be set with the {@code libcrypto.library} property.
+ */
+public final class ChaCha20Poly1305 implements AutoCloseable {
+  public static final int KEY_LENGTH = 32;
+  public static final int NONCE_LENGTH = 12;
+  public static final int TAG_LENGTH = 16;
+
+  private static final int EVP_CTRL_AEAD_GET_TAG = 0x10;
+  private static final int EVP_CTRL_AEAD_SET_TAG = 0x11;
+  private static final int ENCRYPT = 1;
+  private static final int DECRYPT = 0;
+  private static final long MAX_UPDATE_LENGTH = 1 << 30;
+
+  private static final Linker linker = Linker.nativeLinker();
+  private static final SymbolLookup libcrypto = SymbolLookup.libraryLookup(
+          System.getProperty("libcrypto.library", "libcrypto.so.3"),
+          Arena.global()
+  );
+  // const EVP_CIPHER *EVP_chacha20_poly1305(void);
+  private static final MethodHandle EVP_chacha20_poly1305 = linker.downcallHandle(
+          libcrypto.find("EVP_chacha20_poly1305").orElseThrow(),
+          FunctionDescriptor.of(ADDRESS)
+  );
+  // EVP_CIPHER_CTX *EVP_CIPHER_CTX_new(void);
+  private static final MethodHandle EVP_CIPHER_CTX_new = linker.downcallHandle(
+          libcrypto.find("EVP_CIPHER_CTX_new").orElseThrow(),
+          FunctionDescriptor.of(ADDRESS)
+  );
+  // void EVP_CIPHER_CTX_free(EVP_CIPHER_CTX *ctx);
+  private static final MethodHandle EVP_CIPHER_CTX_free = linker.downcallHandle(
+          libcrypto.find("EVP_CIPHER_CTX_free").orElseThrow(),
+          FunctionDescriptor.ofVoid(ADDRESS)
+  );
+  // int EVP_CipherInit_ex(EVP_CIPHER_CTX *ctx, const EVP_CIPHER *type, ENGINE *impl,
+  //                       const unsigned char *key, const unsigned char *iv, int enc);
+  private static final MethodHandle EVP_CipherInit_ex = linker.downcallHandle(
+          libcrypto.find("EVP_CipherInit_ex").orElseThrow(),
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // ctx
+                  ADDRESS, // type
+                  ADDRESS, // impl
+                  ADDRESS, // key
+                  ADDRESS, // iv
+                  JAVA_INT // enc
+          )
+  );
+  // int EVP_CipherUpdate(EVP_CIPHER_CTX *ctx, unsigned char *out, int *outl, const unsigned char *in, int inl);
+  private static final MethodHandle EVP_CipherUpdate = linker.downcallHandle(
+          libcrypto.find("EVP_CipherUpdate").orElseThrow(),
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // ctx
+                  ADDRESS, // out
+                  ADDRESS, // outl
+                  ADDRESS, // in
+                  JAVA_INT // inl
+          )
+  );
+  // int EVP_CipherFinal_ex(EVP_CIPHER_CTX *ctx, unsigned char *outm, int *outl);
+  private static final MethodHandle EVP_CipherFinal_ex = linker.downcallHandle(
+          libcrypto.find("EVP_CipherFinal_ex").orElseThrow(),
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // ctx
+                  ADDRESS, // outm
+                  ADDRESS // outl
+          )
+  );
+  // int EVP_CIPHER_CTX_ctrl(EVP_CIPHER_CTX *ctx, int type, int arg, void *ptr);
+  private static final MethodHandle EVP_CIPHER_CTX_ctrl = linker.downcallHandle(
+          libcrypto.find("EVP_CIPHER_CTX_ctrl").orElseThrow(),
+          FunctionDescriptor.of(
+                  JAVA_INT,
+                  ADDRESS, // ctx
+                  JAVA_INT, // type
+                  JAVA_INT, // arg
+                  ADDRESS // ptr
+          )
+  );
+
+  private final Arena arena = Arena.ofConfined();
+  private final MemorySegment encryptContext;
+  private final MemorySegment decryptContext;
+  private final MemorySegment outLength = arena.allocate(JAVA_INT);
+  private final MemorySegment finalBlock = arena.allocate(64);
+
+  private ChaCha20Poly1305(MemorySegment key) {
+    if (key.byteSize() != KEY_LENGTH || !key.isNative()) {
+      throw new IllegalArgumentException(STR."expected a native key of \{KEY_LENGTH} bytes, got \{key}");
+    }
+    try {
+      var cipher = (MemorySegment) EVP_chacha20_poly1305.invokeExact();
+      encryptContext = (MemorySegment) EVP_CIPHER_CTX_new.invokeExact();
+      decryptContext = (MemorySegment) EVP_CIPHER_CTX_new.invokeExact();
+      if (encryptContext.equals(MemorySegment.NULL) || decryptContext.equals(MemorySegment.NULL)) {
+        throw new OutOfMemoryError("EVP_CIPHER_CTX_new failed");
+      }
+      // the key is expanded once, each message then only sets the nonce
+      check((int) EVP_CipherInit_ex.invokeExact(encryptContext, cipher, MemorySegment.NULL, key, MemorySegment.NULL, ENCRYPT), "EVP_CipherInit_ex");
+      check((int) EVP_CipherInit_ex.invokeExact(decryptContext, cipher, MemorySegment.NULL, key, MemorySegment.NULL, DECRYPT), "EVP_CipherInit_ex");
+    } catch (RuntimeException | Error e) {
+      close();
+      throw e;
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  public static ChaCha20Poly1305 create(MemorySegment key) {
+    return new ChaCha20Poly1305(key);
+  }
+
+  public static ChaCha20Poly1305 create(SecretSegmentKey key) {
+    return new ChaCha20Poly1305(key.segment());
+  }
+
+  /**
+   * Encrypts {@code data} in place, and writes the authentication tag.
+   *
+   * @param aad additional authenticated data, not encrypted, may be empty
+   */
+  public void encrypt(MemorySegment nonce, MemorySegment aad, MemorySegment data, MemorySegment tag) {
+    encrypt(nonce, aad, data, data, tag);
+  }
+
+  /**
+   * Encrypts {@code plaintext} in {@code ciphertext}, of the same size, and writes the authentication tag.
+   */
+  public void encrypt(MemorySegment nonce, MemorySegment aad, MemorySegment plaintext, MemorySegment ciphertext, MemorySegment tag) {
+    checkArguments(nonce, aad, plaintext, ciphertext, tag);
+    try {
+      process(encryptContext, ENCRYPT, nonce, aad, plaintext, ciphertext);
+      check((int) EVP_CipherFinal_ex.invokeExact(encryptContext, finalBlock, outLength), "EVP_CipherFinal_ex");
+      check((int) EVP_CIPHER_CTX_ctrl.invokeExact(encryptContext, EVP_CTRL_AEAD_GET_TAG, TAG_LENGTH, tag), "EVP_CIPHER_CTX_ctrl");
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  /**
+   * Decrypts {@code data} in place.
+   *
+   * @throws AEADBadTagException if the tag does not match, the data is then wiped.
+   */
+  public void decrypt(MemorySegment nonce, MemorySegment aad, MemorySegment data, MemorySegment tag) throws AEADBadTagException {
+    decrypt(nonce, aad, data, data, tag);
+  }
+
+  /**
+   * Decrypts {@code ciphertext} in {@code plaintext}, of the same size.
+   *
+   * @throws AEADBadTagException if the tag does not match, the plaintext is then wiped.
+   */
+  public void decrypt(MemorySegment nonce, MemorySegment aad, MemorySegment ciphertext, MemorySegment plaintext, MemorySegment tag) throws AEADBadTagException {
+    checkArguments(nonce, aad, ciphertext, plaintext, tag);
+    boolean verified;
+    try {
+      process(decryptContext, DECRYPT, nonce, aad, ciphertext, plaintext);
+      check((int) EVP_CIPHER_CTX_ctrl.invokeExact(decryptContext, EVP_CTRL_AEAD_SET_TAG, TAG_LENGTH, tag), "EVP_CIPHER_CTX_ctrl");
+      verified = (int) EVP_CipherFinal_ex.invokeExact(decryptContext, finalBlock, outLength) > 0;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+    if (!verified) {
+      // never leave unauthenticated plaintext behind
+      LinuxSyscalls.explicitBzero(plaintext);
+      throw new AEADBadTagException("Tag mismatch");
+    }
+  }
+
+  private void process(MemorySegment context, int mode, MemorySegment nonce, MemorySegment aad, MemorySegment in, MemorySegment out) throws Throwable {
+    check((int) EVP_CipherInit_ex.invokeExact(context, MemorySegment.NULL, MemorySegment.NULL, MemorySegment.NULL, nonce, mode), "EVP_CipherInit_ex");
+    for (long offset = 0; offset < aad.byteSize(); offset += MAX_UPDATE_LENGTH) {
+      var length = (int) Math.min(MAX_UPDATE_LENGTH, aad.byteSize() - offset);
+      // a null output feeds the additional authenticated data
+      check((int) EVP_CipherUpdate.invokeExact(context, MemorySegment.NULL, outLength, aad.asSlice(offset), length), "EVP_CipherUpdate");
+    }
+    for (long offset = 0; offset < in.byteSize(); offset += MAX_UPDATE_LENGTH) {
+      var length = (int) Math.min(MAX_UPDATE_LENGTH, in.byteSize() - offset);
+      check((int) EVP_CipherUpdate.invokeExact(context, out.asSlice(offset), outLength, in.asSlice(offset), length), "EVP_CipherUpdate");
+    }
+  }
+
+  @Override
+  public void close() {
+    if (!arena.scope().isAlive()) {
+      return;
+    }
+    try {
+      // frees and cleanses the expanded key
+      if (encryptContext != null) {
+        EVP_CIPHER_CTX_free.invokeExact(encryptContext);
+      }
+      if (decryptContext != null) {
+        EVP_CIPHER_CTX_free.invokeExact(decryptContext);
+      }
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    } finally {
+      arena.close();
+    }
+  }
+
+  private static void checkArguments(MemorySegment nonce, MemorySegment aad, MemorySegment in, MemorySegment out, MemorySegment tag) {
+    if (nonce.byteSize() != NONCE_LENGTH || tag.byteSize() != TAG_LENGTH) {
+      throw new IllegalArgumentException(STR."expected a nonce of \{NONCE_LENGTH} bytes and a tag of \{TAG_LENGTH} bytes");
+    }
+    if (in.byteSize() != out.byteSize()) {
+      throw new IllegalArgumentException(STR."input and output sizes differ: \{in.byteSize()} != \{out.byteSize()}");
+    }
+    if (!nonce.isNative() || !aad.isNative() || !in.isNative() || !out.isNative() || !tag.isNative()) {
+      throw new IllegalArgumentException("segments must be native");
+    }
+  }
+
+  private static void check(int result, String function) {
+    if (result <= 0) {
+      throw new IllegalStateException(function + " failed");
+    }
+  }
+
+  /**
+   * Encrypts and decrypts a buffer in place, with a key in secret memory.
+   * <p>
+   * The ciphertext and tag are first checked against the ChaCha20-Poly1305
+   * cipher of the JDK, then the buffer must be intact after each round trip.
+   * <pre><code>
+   * java --enable-native-access=ALL-UNNAMED ChaCha20Poly1305.java [SIZE_MB]
+   * </code></pre>
+   */
+  public static void main(String[] args) throws GeneralSecurityException {
+    var size = (args.length > 0 ? Long.parseLong(args[0]) : 64) * 1024 * 1024;
+    try (var secretArena = SecretArena.create(64 * 1024).orElseThrow();
+         var arena = Arena.ofConfined()) {
+      var key = randomBytes(secretArena.allocate(KEY_LENGTH));
+      var nonce = randomBytes(arena.allocate(NONCE_LENGTH));
+      var aad = randomBytes(arena.allocate(16));
+      var tag = arena.allocate(TAG_LENGTH);
+      var plaintext = arena.allocate(size, 64);
+      var random = new SplittableRandom();
+      for (long i = 0; i < size / JAVA_LONG.byteSize(); i++) {
+        plaintext.setAtIndex(JAVA_LONG, i, random.nextLong());
+      }
+      var data = arena.allocate(size, 64);
+      data.copyFrom(plaintext);
+
+      try (var aead = create(key)) {
+        aead.encrypt(nonce, aad, data, tag);
+        if (!matchesJdkCipher(key, nonce, aad, plaintext, data, tag)) {
+          System.err.println("ciphertext or tag differ from the JDK ChaCha20-Poly1305 cipher");
+          System.exit(1);
+        }
+        aead.decrypt(nonce, aad, data, tag);
+        System.out.println("ciphertext and tag match the JDK ChaCha20-Poly1305 cipher");
+
+        for (int i = 0; i < 5; i++) {
+          var start = System.nanoTime();
+          aead.encrypt(nonce, aad, data, tag);
+          var elapsed = System.nanoTime() - start;
+          aead.decrypt(nonce, aad, data, tag);
+          System.out.println(STR."encrypted \{size >> 20} MiB in place at \{(size * 1_000_000_000.0 / elapsed) / (1 << 30)} GiB/s");
+          if (data.mismatch(plaintext) != -1) {
+            System.err.println(STR."round trip altered the buffer at offset \{data.mismatch(plaintext)}");
+            System.exit(1);
+          }
+        }
+      }
+      System.out.println("round trip ok");
+    }
+  }
+
+  private static MemorySegment randomBytes(MemorySegment segment) {
+    var bytes = new byte[(int) segment.byteSize()];
+    new SecureRandom().nextBytes(bytes);
+    segment.copyFrom(MemorySegment.ofArray(bytes));
+    Arrays.fill(bytes, (byte) 0);
+    return segment;
+  }
+
+  private static boolean matchesJdkCipher(
+          MemorySegment key,
+          MemorySegment nonce,
+          MemorySegment aad,
+          MemorySegment plaintext,
+          MemorySegment ciphertext,
+          MemorySegment tag
+  ) throws GeneralSecurityException {
+    var keyBytes = key.toArray(JAVA_BYTE);
+    try {
+      var cipher = Cipher.getInstance("ChaCha20-Poly1305");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "ChaCha20"), new IvParameterSpec(nonce.toArray(JAVA_BYTE)));
+      cipher.updateAAD(aad.toArray(JAVA_BYTE));
+      // ciphertext followed by the tag
+      var expected = MemorySegment.ofArray(cipher.doFinal(plaintext.toArray(JAVA_BYTE)));
+      return MemorySegment.mismatch(expected, 0, ciphertext.byteSize(), ciphertext, 0, ciphertext.byteSize()) == -1
+             && MemorySegment.mismatch(expected, ciphertext.byteSize(), expected.byteSize(), tag, 0, TAG_LENGTH) == -1;
+    } finally {
+      Arrays.fill(keyBytes, (byte) 0);
+    }
+  }
+}
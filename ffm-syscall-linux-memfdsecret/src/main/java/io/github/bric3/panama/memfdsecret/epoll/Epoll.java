@@ -0,0 +1,146 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.epoll;
+
+import epoll.epoll_h;
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.MethodHandle;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_LONG_UNALIGNED;
+
+/**
+ * epoll, eventfd and timerfd functions of the jextract generated {@code epoll_h}
+ * bindings, linked again to capture errno.
+ * <p>
+ * Like {@link LinuxSyscalls}, methods return the result or {@code -errno}.
+ */
+final class Epoll {
+  /**
+   * {@code struct epoll_event}, declared with {@code __EPOLL_PACKED} on x86_64 only,
+   * where the 64 bits data directly follows the 32 bits events.
+   */
+  static final StructLayout EPOLL_EVENT = switch (System.getProperty("os.arch")) {
+    case "amd64", "x86_64" -> MemoryLayout.structLayout(
+            JAVA_INT.withName("events"),
+            JAVA_LONG_UNALIGNED.withName("data")
+    ).withName("epoll_event");
+    default -> MemoryLayout.structLayout(
+            JAVA_INT.withName("events"),
+            MemoryLayout.paddingLayout(4),
+            JAVA_LONG.withName("data")
+    ).withName("epoll_event");
+  };
+  static final long EVENTS_OFFSET = EPOLL_EVENT.byteOffset(PathElement.groupElement("events"));
+  static final long DATA_OFFSET = EPOLL_EVENT.byteOffset(PathElement.groupElement("data"));
+
+  static final StructLayout TIMESPEC = MemoryLayout.structLayout(
+          JAVA_LONG.withName("tv_sec"),
+          JAVA_LONG.withName("tv_nsec")
+  ).withName("timespec");
+  static final StructLayout ITIMERSPEC = MemoryLayout.structLayout(
+          TIMESPEC.withName("it_interval"),
+          TIMESPEC.withName("it_value")
+  ).withName("itimerspec");
+
+  // int epoll_create1(int flags);
+  private static final MethodHandle epoll_create1 = LinuxSyscalls.downcall(
+          epoll_h.epoll_create1$address(),
+          epoll_h.epoll_create1$descriptor()
+  );
+  // int epoll_ctl(int epfd, int op, int fd, struct epoll_event *event);
+  private static final MethodHandle epoll_ctl = LinuxSyscalls.downcall(
+          epoll_h.epoll_ctl$address(),
+          epoll_h.epoll_ctl$descriptor()
+  );
+  // int epoll_wait(int epfd, struct epoll_event *events, int maxevents, int timeout);
+  private static final MethodHandle epoll_wait = LinuxSyscalls.downcall(
+          epoll_h.epoll_wait$address(),
+          epoll_h.epoll_wait$descriptor()
+  );
+  // int eventfd(unsigned int initval, int flags);
+  private static final MethodHandle eventfd = LinuxSyscalls.downcall(
+          epoll_h.eventfd$address(),
+          epoll_h.eventfd$descriptor()
+  );
+  // int timerfd_create(int clockid, int flags);
+  private static final MethodHandle timerfd_create = LinuxSyscalls.downcall(
+          epoll_h.timerfd_create$address(),
+          epoll_h.timerfd_create$descriptor()
+  );
+  // int timerfd_settime(int fd, int flags, const struct itimerspec *new_value, struct itimerspec *old_value);
+  private static final MethodHandle timerfd_settime = LinuxSyscalls.downcall(
+          epoll_h.timerfd_settime$address(),
+          epoll_h.timerfd_settime$descriptor()
+  );
+
+  private Epoll() {
+  }
+
+  static int create1(int flags) {
+    try {
+      var state = LinuxSyscalls.capturedState();
+      return LinuxSyscalls.result((int) epoll_create1.invokeExact(state, flags), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  static int ctl(int epfd, int op, int fd, MemorySegment event) {
+    try {
+      var state = LinuxSyscalls.capturedState();
+      return LinuxSyscalls.result((int) epoll_ctl.invokeExact(state, epfd, op, fd, event), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  static int wait(int epfd, MemorySegment events, int maxEvents, int timeout) {
+    try {
+      var state = LinuxSyscalls.capturedState();
+      return LinuxSyscalls.result((int) epoll_wait.invokeExact(state, epfd, events, maxEvents, timeout), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  static int eventfd(int initval, int flags) {
+    try {
+      var state = LinuxSyscalls.capturedState();
+      return LinuxSyscalls.result((int) eventfd.invokeExact(state, initval, flags), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  static int timerfdCreate(int clockId, int flags) {
+    try {
+      var state = LinuxSyscalls.capturedState();
+      return LinuxSyscalls.result((int) timerfd_create.invokeExact(state, clockId, flags), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+
+  static int timerfdSettime(int fd, int flags, MemorySegment newValue, MemorySegment oldValue) {
+    try {
+      var state = LinuxSyscalls.capturedState();
+      return LinuxSyscalls.result((int) timerfd_settime.invokeExact(state, fd, flags, newValue, oldValue), state);
+    } catch (Throwable e) {
+      throw new AssertionError("Should not reach here", e);
+    }
+  }
+}
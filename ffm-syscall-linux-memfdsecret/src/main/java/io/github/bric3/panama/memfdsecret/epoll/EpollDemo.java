@@ -0,0 +1,69 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.epoll;
+
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MFD_CLOEXEC;
+
+/**
+ * Virtual threads parked on a timerfd, an eventfd and a memfd.
+ *
+ * <pre><code>
+ * java --enable-preview --enable-native-access=ALL-UNNAMED -cp ... io.github.bric3.panama.memfdsecret.epoll.EpollDemo
+ * </code></pre>
+ */
+public class EpollDemo {
+  public static void main(String[] args) throws Exception {
+    var memfd = LinuxSyscalls.check(LinuxSyscalls.memfdCreate("epoll-demo", MFD_CLOEXEC), "memfd_create");
+    try (var selector = EpollSelector.open();
+         var timer = TimerFd.create();
+         var events = EventFd.create()) {
+      timer.arm(Duration.ofMillis(50), Duration.ofMillis(50));
+
+      try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        executor.submit(() -> {
+          for (int tick = 0; tick < 5; tick++) {
+            var expirations = timer.await(selector);
+            System.out.println(STR."tick \{tick}, \{expirations} expiration(s)");
+          }
+          timer.disarm();
+          return null;
+        });
+        executor.submit(() -> {
+          var total = 0L;
+          while (total < 10) {
+            total += events.await(selector);
+          }
+          System.out.println(STR."eventfd counted \{total}");
+          return null;
+        });
+        executor.submit(() -> {
+          for (int i = 0; i < 10; i++) {
+            Thread.sleep(20);
+            events.signal(1);
+          }
+          return null;
+        });
+        executor.submit(() -> {
+          // regular files are not pollable, always ready
+          var ready = selector.await(memfd, EpollSelector.EPOLLIN | EpollSelector.EPOLLOUT);
+          System.out.println(STR."memfd ready for 0x\{Integer.toHexString(ready)}");
+          return null;
+        });
+      }
+    } finally {
+      LinuxSyscalls.close(memfd);
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.epoll;
+
+import epoll.epoll_h;
+import io.github.bric3.panama.memfdsecret.Errno;
+import io.github.bric3.panama.memfdsecret.ErrnoException;
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.ClosedSelectorException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.github.bric3.panama.memfdsecret.epoll.Epoll.DATA_OFFSET;
+import static io.github.bric3.panama.memfdsecret.epoll.Epoll.EPOLL_EVENT;
+import static io.github.bric3.panama.memfdsecret.epoll.Epoll.EVENTS_OFFSET;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG_UNALIGNED;
+
+/**
+ * Parks threads, virtual threads in particular, until a raw file descriptor is ready.
+ * <p>
+ * NIO {@link java.nio.channels.Selector} only accepts selectable channels, this
+ * selector takes any descriptor epoll supports: eventfds, timerfds, pipes,
+ * sockets, etc. A thread calls {@link #await(int, int)}, which arms the
+ * descriptor in the epoll set with {@code EPOLLONESHOT} and parks. A single
+ * poller thread waits in {@code epoll_wait}, and unparks the thread waiting on
+ * each ready descriptor. The poller is a platform thread, as a virtual thread
+ * blocked in a downcall would pin its carrier. Its events array is allocated
+ * once, the wait loop does not allocate.
+ * <p>
+ * Regular files, including memfds, are always ready, epoll refuses them with
+ * {@code EPERM}, {@link #await(int, int)} then returns immediately.
+ * <p>
+ * Descriptors are indexed up to {@code epoll.max.fds} (65536 by default), a
+ * descriptor can only be awaited by one thread at a time. Call {@link #cancel(int)}
+ * before closing an awaited descriptor.
+ * <p>
+ * If {@code epoll_wait} fails, the poller stops, and waiting threads as well as
+ * later calls to {@link #await(int, int)} get an {@link IOException} caused by
+ * the failure. The selector must still be closed to release its descriptors.
+ *
+ * <pre><code>
+ * try (var selector = EpollSelector.open()) {
+ *   Thread.startVirtualThread(() -> {
+ *     selector.await(fd, EpollSelector.EPOLLIN);
+ *     ...
+ *   });
+ * }
+ * </code></pre>
+ */
+public final class EpollSelector implements AutoCloseable {
+  public static final int EPOLLIN = epoll_h.EPOLLIN();
+  public static final int EPOLLOUT = epoll_h.EPOLLOUT();
+  public static final int EPOLLERR = epoll_h.EPOLLERR();
+  public static final int EPOLLHUP = epoll_h.EPOLLHUP();
+  public static final int EPOLLRDHUP = epoll_h.EPOLLRDHUP();
+
+  static final int MAX_EVENTS = 256;
+  static final int MAX_FDS = Integer.getInteger("epoll.max.fds", 65536);
+
+  private static final int EPOLLONESHOT = epoll_h.EPOLLONESHOT();
+  private static final int INTERRUPTED = -Errno.EINTR.value();
+  private static final int NOT_REGISTERED = -Errno.ENOENT.value();
+  private static final int NOT_POLLABLE = -Errno.EPERM.value();
+
+  // epoll_ctl copies the event, one per thread is enough
+  private static final ThreadLocal<MemorySegment> CTL_EVENT = ThreadLocal.withInitial(
+          () -> Arena.ofAuto().allocate(EPOLL_EVENT)
+  );
+
+  private final int epfd;
+  private final EventFd wakeup;
+  private final MemorySegment events;
+  private final AtomicReferenceArray<Thread> waiters = new AtomicReferenceArray<>(MAX_FDS);
+  private final AtomicIntegerArray readyEvents = new AtomicIntegerArray(MAX_FDS);
+  private final Thread poller;
+  private volatile boolean closed;
+  private volatile ErrnoException pollerFailure;
+
+  private EpollSelector(int epfd, EventFd wakeup) throws ErrnoException {
+    this.epfd = epfd;
+    this.wakeup = wakeup;
+    this.events = Arena.ofAuto().allocate(EPOLL_EVENT, MAX_EVENTS);
+
+    // level triggered, until drained by the poller
+    var event = CTL_EVENT.get();
+    event.set(JAVA_INT, EVENTS_OFFSET, EPOLLIN);
+    event.set(JAVA_LONG_UNALIGNED, DATA_OFFSET, wakeup.fd());
+    LinuxSyscalls.check(Epoll.ctl(epfd, epoll_h.EPOLL_CTL_ADD(), wakeup.fd(), event), "epoll_ctl");
+
+    this.poller = Thread.ofPlatform()
+                        .name(STR."epoll-poller-\{epfd}")
+                        .daemon()
+                        .start(this::pollLoop);
+  }
+
+  public static EpollSelector open() throws ErrnoException {
+    var epfd = LinuxSyscalls.check(Epoll.create1(epoll_h.EPOLL_CLOEXEC()), "epoll_create1");
+    EventFd wakeup = null;
+    try {
+      wakeup = EventFd.create();
+      return new EpollSelector(epfd, wakeup);
+    } catch (ErrnoException | RuntimeException e) {
+      if (wakeup != null) {
+        wakeup.close();
+      }
+      LinuxSyscalls.close(epfd);
+      throw e;
+    }
+  }
+
+  /**
+   * Parks the calling thread until the descriptor is ready for one of the events.
+   *
+   * @param events {@link #EPOLLIN}, {@link #EPOLLOUT}, ...
+   * @return the ready events, {@link #EPOLLERR} and {@link #EPOLLHUP} are always reported
+   * @throws InterruptedIOException if the thread is interrupted, its interrupt status is kept
+   * @throws ClosedSelectorException if the selector is closed
+   * @throws IOException if the poller stopped on an {@code epoll_wait} failure, the cause
+   */
+  public int await(int fd, int events) throws IOException {
+    Objects.checkIndex(fd, MAX_FDS);
+    ensureOpen();
+    var thread = Thread.currentThread();
+    if (!waiters.compareAndSet(fd, null, thread)) {
+      throw new IllegalStateException(STR."fd \{fd} is already awaited");
+    }
+    try {
+      readyEvents.set(fd, 0);
+      if (!arm(fd, events)) {
+        return events;
+      }
+      int ready;
+      while ((ready = readyEvents.getAndSet(fd, 0)) == 0) {
+        ensureOpen();
+        if (thread.isInterrupted()) {
+          throw new InterruptedIOException(STR."interrupted while awaiting fd \{fd}");
+        }
+        LockSupport.park(this);
+      }
+      return ready;
+    } finally {
+      waiters.compareAndSet(fd, thread, null);
+    }
+  }
+
+  /**
+   * Arms the descriptor for a single notification, returns {@code false} for regular files.
+   */
+  private boolean arm(int fd, int events) throws ErrnoException {
+    var event = CTL_EVENT.get();
+    event.set(JAVA_INT, EVENTS_OFFSET, events | EPOLLONESHOT);
+    event.set(JAVA_LONG_UNALIGNED, DATA_OFFSET, fd);
+    // a one shot descriptor stays in the set once fired, re-arming is the common case
+    var result = Epoll.ctl(epfd, epoll_h.EPOLL_CTL_MOD(), fd, event);
+    if (result == NOT_REGISTERED) {
+      result = Epoll.ctl(epfd, epoll_h.EPOLL_CTL_ADD(), fd, event);
+    }
+    if (result == NOT_POLLABLE) {
+      return false;
+    }
+    LinuxSyscalls.check(result, "epoll_ctl");
+    return true;
+  }
+
+  /**
+   * Removes the descriptor from the epoll set, to call before it is closed.
+   */
+  public void cancel(int fd) throws ErrnoException {
+    var result = Epoll.ctl(epfd, epoll_h.EPOLL_CTL_DEL(), fd, MemorySegment.NULL);
+    if (result != NOT_REGISTERED && result != NOT_POLLABLE) {
+      LinuxSyscalls.check(result, "epoll_ctl");
+    }
+  }
+
+  private void pollLoop() {
+    var stride = EPOLL_EVENT.byteSize();
+    while (!closed) {
+      var count = Epoll.wait(epfd, events, MAX_EVENTS, -1);
+      if (count == INTERRUPTED) {
+        continue;
+      }
+      if (count < 0) {
+        pollerFailure = new ErrnoException("epoll_wait", -count);
+        break;
+      }
+      for (int i = 0; i < count; i++) {
+        var ready = events.get(JAVA_INT, i * stride + EVENTS_OFFSET);
+        var fd = (int) events.get(JAVA_LONG_UNALIGNED, i * stride + DATA_OFFSET);
+        if (fd == wakeup.fd()) {
+          wakeup.read();
+          continue;
+        }
+        readyEvents.set(fd, ready);
+        // the waiter frees its slot once it read the events
+        var waiter = waiters.get(fd);
+        if (waiter != null) {
+          LockSupport.unpark(waiter);
+        }
+      }
+    }
+    // waiters see the selector closed or failed
+    for (int fd = 0; fd < MAX_FDS; fd++) {
+      var waiter = waiters.get(fd);
+      if (waiter != null) {
+        LockSupport.unpark(waiter);
+      }
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new ClosedSelectorException();
+    }
+    var failure = pollerFailure;
+    if (failure != null) {
+      throw new IOException("epoll poller stopped", failure);
+    }
+  }
+
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Stops the poller, threads still waiting get a {@link ClosedSelectorException}.
+   * <p>
+   * The descriptors are released, also when the poller already stopped on a failure.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    wakeup.signal(1);
+    try {
+      poller.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    LinuxSyscalls.close(epfd);
+    wakeup.close();
+  }
+}
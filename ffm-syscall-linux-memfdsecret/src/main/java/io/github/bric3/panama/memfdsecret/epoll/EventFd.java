@@ -0,0 +1,96 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.epoll;
+
+import epoll.epoll_h;
+import io.github.bric3.panama.memfdsecret.Errno;
+import io.github.bric3.panama.memfdsecret.ErrnoException;
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Non-blocking eventfd, a 64 bits counter signaled by {@link #signal(long)}
+ * and consumed by {@link #read()} or {@link #await(EpollSelector)}.
+ */
+public final class EventFd implements AutoCloseable {
+  private static final long WOULD_BLOCK = -Errno.EAGAIN.value();
+
+  private final int fd;
+  private final MemorySegment readBuffer;
+  private final MemorySegment writeBuffer;
+
+  private EventFd(int fd) {
+    this.fd = fd;
+    var arena = Arena.ofAuto();
+    this.readBuffer = arena.allocate(JAVA_LONG);
+    this.writeBuffer = arena.allocate(JAVA_LONG);
+  }
+
+  public static EventFd create() throws ErrnoException {
+    return create(0);
+  }
+
+  /**
+   * @param flags additional flags, e.g. {@code EFD_SEMAPHORE}
+   */
+  public static EventFd create(int flags) throws ErrnoException {
+    var fd = Epoll.eventfd(0, epoll_h.EFD_CLOEXEC() | epoll_h.EFD_NONBLOCK() | flags);
+    return new EventFd(LinuxSyscalls.check(fd, "eventfd"));
+  }
+
+  public int fd() {
+    return fd;
+  }
+
+  /**
+   * Adds to the counter, waking up readers.
+   */
+  public synchronized void signal(long value) throws ErrnoException {
+    writeBuffer.set(JAVA_LONG, 0, value);
+    LinuxSyscalls.check(LinuxSyscalls.write(fd, writeBuffer, JAVA_LONG.byteSize()), "write(eventfd)");
+  }
+
+  /**
+   * Reads and resets the counter.
+   *
+   * @return the counter, or 0 if not signaled
+   */
+  public synchronized long read() {
+    var result = LinuxSyscalls.read(fd, readBuffer, JAVA_LONG.byteSize());
+    if (result == WOULD_BLOCK) {
+      return 0;
+    }
+    if (result < 0) {
+      throw new IllegalStateException(STR."read(eventfd) failed: \{Errno.describe((int) -result)}");
+    }
+    return readBuffer.get(JAVA_LONG, 0);
+  }
+
+  /**
+   * Parks until signaled, then reads and resets the counter.
+   */
+  public long await(EpollSelector selector) throws IOException {
+    long value;
+    while ((value = read()) == 0) {
+      selector.await(fd, EpollSelector.EPOLLIN);
+    }
+    return value;
+  }
+
+  @Override
+  public void close() {
+    LinuxSyscalls.close(fd);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.epoll;
+
+import epoll.epoll_h;
+import io.github.bric3.panama.memfdsecret.Errno;
+import io.github.bric3.panama.memfdsecret.ErrnoException;
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.time.Duration;
+
+import static io.github.bric3.panama.memfdsecret.epoll.Epoll.ITIMERSPEC;
+import static io.github.bric3.panama.memfdsecret.epoll.Epoll.TIMESPEC;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Non-blocking timerfd on {@code CLOCK_MONOTONIC}, readable once expired.
+ * <p>
+ * Awaiting a timer on an {@link EpollSelector} is also how to bound another
+ * wait: a virtual thread can await the timer while another awaits the descriptor.
+ */
+public final class TimerFd implements AutoCloseable {
+  private static final long WOULD_BLOCK = -Errno.EAGAIN.value();
+
+  private final int fd;
+  private final MemorySegment spec;
+  private final MemorySegment expirations;
+
+  private TimerFd(int fd) {
+    this.fd = fd;
+    var arena = Arena.ofAuto();
+    this.spec = arena.allocate(ITIMERSPEC);
+    this.expirations = arena.allocate(JAVA_LONG);
+  }
+
+  public static TimerFd create() throws ErrnoException {
+    var fd = Epoll.timerfdCreate(epoll_h.CLOCK_MONOTONIC(), epoll_h.TFD_CLOEXEC() | epoll_h.TFD_NONBLOCK());
+    return new TimerFd(LinuxSyscalls.check(fd, "timerfd_create"));
+  }
+
+  public int fd() {
+    return fd;
+  }
+
+  /**
+   * @param initial  delay before the first expiration, must not be zero
+   * @param interval delay between expirations, zero for a single expiration
+   */
+  public synchronized void arm(Duration initial, Duration interval) throws ErrnoException {
+    if (initial.isZero() || initial.isNegative()) {
+      throw new IllegalArgumentException(STR."initial delay must be positive: \{initial}");
+    }
+    settime(initial, interval);
+  }
+
+  public synchronized void disarm() throws ErrnoException {
+    settime(Duration.ZERO, Duration.ZERO);
+  }
+
+  private void settime(Duration value, Duration interval) throws ErrnoException {
+    // it_interval then it_value
+    spec.set(JAVA_LONG, 0, interval.getSeconds());
+    spec.set(JAVA_LONG, JAVA_LONG.byteSize(), interval.getNano());
+    spec.set(JAVA_LONG, TIMESPEC.byteSize(), value.getSeconds());
+    spec.set(JAVA_LONG, TIMESPEC.byteSize() + JAVA_LONG.byteSize(), value.getNano());
+    LinuxSyscalls.check(Epoll.timerfdSettime(fd, 0, spec, MemorySegment.NULL), "timerfd_settime");
+  }
+
+  /**
+   * Reads and resets the expiration count.
+   *
+   * @return the expirations since the last read, or 0
+   */
+  public synchronized long expirations() {
+    var result = LinuxSyscalls.read(fd, expirations, JAVA_LONG.byteSize());
+    if (result == WOULD_BLOCK) {
+      return 0;
+    }
+    if (result < 0) {
+      throw new IllegalStateException(STR."read(timerfd) failed: \{Errno.describe((int) -result)}");
+    }
+    return expirations.get(JAVA_LONG, 0);
+  }
+
+  /**
+   * Parks until the timer expires.
+   *
+   * @return the expirations since the last read
+   */
+  public long await(EpollSelector selector) throws IOException {
+    long count;
+    while ((count = expirations()) == 0) {
+      selector.await(fd, EpollSelector.EPOLLIN);
+    }
+    return count;
+  }
+
+  @Override
+  public void close() {
+    LinuxSyscalls.close(fd);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.ipc;
+
+import java.lang.foreign.Arena;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Round trip latency between two JVMs over {@link SharedRingBuffer}s.
+ * <p>
+ * This JVM creates a ping and a pong buffer, then starts a child JVM attached to
+ * both through {@code /proc/<pid>/fd/<fd>}, the child echoes every ping. Both
+ * sides busy spin, so each needs a core.
+ *
+ * <pre><code>
+ * java --enable-preview --enable-native-access=ALL-UNNAMED -cp ... io.github.bric3.panama.memfdsecret.ipc.RingBufferPingPong [round trips]
+ * </code></pre>
+ */
+public class RingBufferPingPong {
+  private static final int CAPACITY = 64 * 1024;
+  private static final long STOP = -1;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 3 && args[0].equals("echo")) {
+      echo(Path.of(args[1]), Path.of(args[2]));
+      return;
+    }
+    var roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+    try (var ping = SharedRingBuffer.create("ping", CAPACITY, false);
+         var pong = SharedRingBuffer.create("pong", CAPACITY, false);
+         var arena = Arena.ofConfined()) {
+      var child = startEcho(ping.procPath(), pong.procPath());
+
+      var message = arena.allocate(JAVA_LONG);
+      var received = new long[1];
+      SharedRingBuffer.MessageHandler onPong = m -> received[0] = m.get(JAVA_LONG, 0);
+      var rtts = new long[roundTrips];
+      for (int i = 0; i < roundTrips; i++) {
+        message.set(JAVA_LONG, 0, i);
+        var start = System.nanoTime();
+        while (!ping.offer(message)) {
+          Thread.onSpinWait();
+        }
+        while (pong.poll(onPong, 1) == 0) {
+          Thread.onSpinWait();
+        }
+        rtts[i] = System.nanoTime() - start;
+        if (received[0] != i) {
+          throw new IllegalStateException(STR."expected \{i}, got \{received[0]}");
+        }
+      }
+      message.set(JAVA_LONG, 0, STOP);
+      while (!ping.offer(message)) {
+        Thread.onSpinWait();
+      }
+      child.waitFor();
+
+      // the first half warms up both JVMs
+      var measured = Arrays.copyOfRange(rtts, roundTrips / 2, roundTrips);
+      Arrays.sort(measured);
+      System.out.println(STR."\{roundTrips} round trips, rtt p50 \{percentile(measured, 0.5)} ns, p99 \{percentile(measured, 0.99)} ns, p99.9 \{percentile(measured, 0.999)} ns");
+    }
+  }
+
+  private static void echo(Path pingPath, Path pongPath) throws Exception {
+    try (var ping = SharedRingBuffer.attach(pingPath);
+         var pong = SharedRingBuffer.attach(pongPath)) {
+      var stopped = new boolean[1];
+      SharedRingBuffer.MessageHandler onPing = m -> {
+        if (m.get(JAVA_LONG, 0) == STOP) {
+          stopped[0] = true;
+          return;
+        }
+        while (!pong.offer(m)) {
+          Thread.onSpinWait();
+        }
+      };
+      while (!stopped[0]) {
+        if (ping.poll(onPing, 16) == 0) {
+          Thread.onSpinWait();
+        }
+      }
+    }
+  }
+
+  private static Process startEcho(Path ping, Path pong) throws Exception {
+    var command = new ArrayList<String>();
+    command.add(ProcessHandle.current().info().command().orElseThrow());
+    command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+    command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), RingBufferPingPong.class.getName()));
+    command.addAll(Arrays.asList("echo", ping.toString(), pong.toString()));
+    return new ProcessBuilder(command).inheritIO().start();
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)];
+  }
+}
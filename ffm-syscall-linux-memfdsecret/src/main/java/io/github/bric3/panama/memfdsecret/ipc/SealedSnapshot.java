@@ -0,0 +1,182 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.ipc;
+
+import io.github.bric3.panama.memfdsecret.ErrnoException;
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.F_ADD_SEALS;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.F_GET_SEALS;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.F_SEAL_GROW;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.F_SEAL_SEAL;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.F_SEAL_SHRINK;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.F_SEAL_WRITE;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_SHARED;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MFD_ALLOW_SEALING;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MFD_CLOEXEC;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.O_CLOEXEC;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.O_RDONLY;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_READ;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_WRITE;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.SEEK_END;
+
+/**
+ * Immutable buffer in a sealed memfd, shared without copies by threads and processes.
+ * <p>
+ * The content is written once in a writable mapping, which is then unmapped,
+ * the kernel refuses {@code F_SEAL_WRITE} while a writable shared mapping exists.
+ * The memfd is then sealed against writes, resizing and further sealing. From
+ * there the kernel guarantees the content cannot change, every consumer maps
+ * the same physical pages read-only with {@link #map(Arena)}, instead of
+ * holding its own copy, and a consumer cannot make its mapping writable.
+ * <p>
+ * Other processes {@link #attach(Path)} through {@link #procPath()}, attaching
+ * checks the seals, so a consumer does not have to trust the producer.
+ *
+ * <pre><code>
+ * try (var snapshot = SealedSnapshot.copyOf("reference-data", Path.of("ref.bin"))) {
+ *   publish(snapshot.procPath());
+ *   var view = snapshot.map(arena); // read-only, no copy
+ * }
+ * </code></pre>
+ */
+public final class SealedSnapshot implements AutoCloseable {
+  /**
+   * Seals of a snapshot, the content and size are frozen, and the seals themselves too.
+   */
+  public static final int SEALS = F_SEAL_WRITE | F_SEAL_SHRINK | F_SEAL_GROW | F_SEAL_SEAL;
+
+  @FunctionalInterface
+  public interface ContentWriter {
+    /**
+     * Fills the content, the segment is unmapped when this method returns.
+     */
+    void write(MemorySegment content) throws IOException;
+  }
+
+  private final int fd;
+  private final long size;
+  private final int seals;
+
+  private SealedSnapshot(int fd, long size, int seals) {
+    this.fd = fd;
+    this.size = size;
+    this.seals = seals;
+  }
+
+  /**
+   * Creates a snapshot of the given size, filled by the writer.
+   */
+  public static SealedSnapshot create(String name, long size, ContentWriter writer) throws IOException {
+    if (size <= 0) {
+      throw new IllegalArgumentException(STR."size must be positive: \{size}");
+    }
+    var fd = LinuxSyscalls.check(LinuxSyscalls.memfdCreate(name, MFD_CLOEXEC | MFD_ALLOW_SEALING), "memfd_create");
+    try {
+      LinuxSyscalls.check(LinuxSyscalls.ftruncate(fd, size), "ftruncate");
+      var address = LinuxSyscalls.check(
+              LinuxSyscalls.mmap(MemorySegment.NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0),
+              "mmap"
+      );
+      // closing the arena unmaps the writable mapping, and invalidates the segment given to the writer
+      try (var writing = Arena.ofConfined()) {
+        writer.write(MemorySegment.ofAddress(address).reinterpret(size, writing, segment -> LinuxSyscalls.munmap(segment, size)));
+      }
+
+      LinuxSyscalls.check(LinuxSyscalls.fcntl(fd, F_ADD_SEALS, SEALS), "fcntl(F_ADD_SEALS)");
+      var seals = LinuxSyscalls.check(LinuxSyscalls.fcntl(fd, F_GET_SEALS, 0), "fcntl(F_GET_SEALS)");
+      return new SealedSnapshot(fd, size, seals);
+    } catch (IOException | RuntimeException e) {
+      LinuxSyscalls.close(fd);
+      throw e;
+    }
+  }
+
+  public static SealedSnapshot copyOf(String name, MemorySegment content) throws IOException {
+    return create(name, content.byteSize(), segment -> segment.copyFrom(content));
+  }
+
+  /**
+   * Snapshot of the file content, the file is read once through a mapping.
+   */
+  public static SealedSnapshot copyOf(String name, Path file) throws IOException {
+    try (var channel = FileChannel.open(file);
+         var arena = Arena.ofConfined()) {
+      return copyOf(name, channel.map(MapMode.READ_ONLY, 0, channel.size(), arena));
+    }
+  }
+
+  /**
+   * Opens the snapshot published by another process, e.g. {@code /proc/<pid>/fd/<fd>}.
+   *
+   * @throws IOException if the file is not sealed against writes and shrinking
+   */
+  public static SealedSnapshot attach(Path path) throws IOException {
+    var fd = LinuxSyscalls.check(LinuxSyscalls.open(path.toString(), O_RDONLY | O_CLOEXEC), STR."open(\{path})");
+    try {
+      var seals = LinuxSyscalls.fcntl(fd, F_GET_SEALS, 0);
+      var required = F_SEAL_WRITE | F_SEAL_SHRINK;
+      if (seals < 0 || (seals & required) != required) {
+        throw new IOException(STR."not a sealed snapshot: \{path}");
+      }
+      // from the descriptor, the path could name another file by now
+      var size = LinuxSyscalls.check(LinuxSyscalls.lseek(fd, 0, SEEK_END), "lseek");
+      return new SealedSnapshot(fd, size, seals);
+    } catch (IOException | RuntimeException e) {
+      LinuxSyscalls.close(fd);
+      throw e;
+    }
+  }
+
+  public long size() {
+    return size;
+  }
+
+  public int seals() {
+    return seals;
+  }
+
+  /**
+   * The path other processes can attach to, while this snapshot is open.
+   */
+  public Path procPath() {
+    return Path.of(STR."/proc/\{ProcessHandle.current().pid()}/fd/\{fd}");
+  }
+
+  /**
+   * Maps the content read-only, the mapping is released when the arena is closed.
+   * <p>
+   * Mappings stay valid after this snapshot is closed.
+   */
+  public MemorySegment map(Arena arena) throws ErrnoException {
+    var address = LinuxSyscalls.check(
+            LinuxSyscalls.mmap(MemorySegment.NULL, size, PROT_READ, MAP_SHARED, fd, 0),
+            "mmap"
+    );
+    return MemorySegment.ofAddress(address)
+                        .reinterpret(size, arena, segment -> LinuxSyscalls.munmap(segment, size))
+                        .asReadOnly();
+  }
+
+  /**
+   * Closes the memfd, the memory is freed once the last mapping and descriptor are gone.
+   */
+  @Override
+  public void close() {
+    LinuxSyscalls.close(fd);
+  }
+}
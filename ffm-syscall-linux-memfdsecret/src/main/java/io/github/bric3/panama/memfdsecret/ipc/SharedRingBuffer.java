@@ -0,0 +1,298 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.ipc;
+
+import io.github.bric3.panama.memfdsecret.ErrnoException;
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_SHARED;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MFD_CLOEXEC;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_READ;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_WRITE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Lock-free ring buffer of messages in a {@code memfd_create} shared mapping, for
+ * inter-process communication without sockets.
+ * <p>
+ * The creator owns the memfd, other processes attach by opening
+ * {@code /proc/<pid>/fd/<fd>} ({@link #procPath()}), which the kernel resolves
+ * to the same anonymous file, then both sides work on the same physical pages.
+ * A message is written once in the mapping, and read in place by the consumer.
+ * <p>
+ * Layout, the head and tail positions are on their own cache line so that the
+ * consumer and the producers do not invalidate each other's line:
+ * <pre>
+ * [magic, capacity, flags][tail][head][records ... capacity bytes]
+ * record: [int length][int type][payload], aligned on 8 bytes
+ * </pre>
+ * A producer claims space by moving the tail, with a CAS when the buffer is
+ * created for several producers, then writes the payload and finally stores the
+ * record length with release semantics, this store commits the record. The
+ * consumer reads the length with acquire semantics, a zero length means the next
+ * record is not committed yet. Consumed records are zeroed before the head is
+ * moved, so that the space is seen empty when the producers wrap around. A
+ * record never wraps, when it doesn't fit before the end of the buffer, the
+ * remainder is filled with a padding record skipped by the consumer.
+ * <p>
+ * There must be a single consumer. The buffer can be used concurrently by
+ * producer threads of several processes if it is created with {@code multiProducer}.
+ */
+public final class SharedRingBuffer implements AutoCloseable {
+  static final long MAGIC = 0x3142_5244_464d_454dL; // "MEMFDRB1"
+  static final int MULTI_PRODUCER = 1;
+
+  static final int MESSAGE = 1;
+  static final int PADDING = 2;
+
+  static final StructLayout HEADER_LAYOUT = MemoryLayout.structLayout(
+          JAVA_LONG.withName("magic"),
+          JAVA_INT.withName("capacity"),
+          JAVA_INT.withName("flags"),
+          MemoryLayout.paddingLayout(48),
+          JAVA_LONG.withName("tail"),
+          MemoryLayout.paddingLayout(56),
+          JAVA_LONG.withName("head"),
+          MemoryLayout.paddingLayout(56),
+          // keeps the first record off the head cache line
+          MemoryLayout.paddingLayout(64)
+  ).withName("ring_header");
+  static final StructLayout RECORD_LAYOUT = MemoryLayout.structLayout(
+          JAVA_INT.withName("length"),
+          JAVA_INT.withName("type")
+  ).withName("ring_record");
+  static final int RECORD_HEADER_SIZE = (int) RECORD_LAYOUT.byteSize();
+
+  private static final VarHandle MAGIC_HANDLE = HEADER_LAYOUT.varHandle(PathElement.groupElement("magic"));
+  private static final VarHandle TAIL = HEADER_LAYOUT.varHandle(PathElement.groupElement("tail"));
+  private static final VarHandle HEAD = HEADER_LAYOUT.varHandle(PathElement.groupElement("head"));
+  private static final VarHandle LENGTH = RECORD_LAYOUT.varHandle(PathElement.groupElement("length"));
+  private static final VarHandle TYPE = RECORD_LAYOUT.varHandle(PathElement.groupElement("type"));
+
+  @FunctionalInterface
+  public interface MessageHandler {
+    /**
+     * The message is a view in the shared mapping, only valid during this call.
+     */
+    void onMessage(MemorySegment message);
+  }
+
+  private final Arena arena;
+  private final int fd;
+  private final MemorySegment header;
+  private final MemorySegment records;
+  private final int capacity;
+  private final int mask;
+  private final boolean multiProducer;
+
+  private SharedRingBuffer(Arena arena, int fd, MemorySegment mapping) {
+    this.arena = arena;
+    this.fd = fd;
+    this.header = mapping.asSlice(0, HEADER_LAYOUT);
+    this.capacity = header.get(JAVA_INT, HEADER_LAYOUT.byteOffset(PathElement.groupElement("capacity")));
+    this.records = mapping.asSlice(HEADER_LAYOUT.byteSize(), capacity);
+    this.mask = capacity - 1;
+    this.multiProducer = (header.get(JAVA_INT, HEADER_LAYOUT.byteOffset(PathElement.groupElement("flags"))) & MULTI_PRODUCER) != 0;
+  }
+
+  /**
+   * Creates a ring buffer in a new memfd.
+   *
+   * @param name          name of the memfd, visible in {@code /proc/<pid>/fd}
+   * @param capacity      size of the record area, a power of two
+   * @param multiProducer whether several threads or processes may offer concurrently
+   */
+  public static SharedRingBuffer create(String name, int capacity, boolean multiProducer) throws ErrnoException {
+    if (Integer.bitCount(capacity) != 1 || capacity < 4096) {
+      throw new IllegalArgumentException(STR."capacity must be a power of two of at least 4096: \{capacity}");
+    }
+    var size = HEADER_LAYOUT.byteSize() + capacity;
+    // close on exec, children attach through /proc instead of inheriting the fd
+    var fd = LinuxSyscalls.check(LinuxSyscalls.memfdCreate(name, MFD_CLOEXEC), "memfd_create");
+    try {
+      LinuxSyscalls.check(LinuxSyscalls.ftruncate(fd, size), "ftruncate");
+      var address = LinuxSyscalls.check(
+              LinuxSyscalls.mmap(MemorySegment.NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0),
+              "mmap"
+      );
+      var arena = Arena.ofShared();
+      var mapping = MemorySegment.ofAddress(address).reinterpret(
+              size,
+              arena,
+              segment -> LinuxSyscalls.munmap(segment, size)
+      );
+      // the file is zero filled, head and tail start at 0
+      mapping.set(JAVA_INT, HEADER_LAYOUT.byteOffset(PathElement.groupElement("capacity")), capacity);
+      mapping.set(JAVA_INT, HEADER_LAYOUT.byteOffset(PathElement.groupElement("flags")), multiProducer ? MULTI_PRODUCER : 0);
+      MAGIC_HANDLE.setRelease(mapping, 0L, MAGIC);
+      return new SharedRingBuffer(arena, fd, mapping);
+    } catch (ErrnoException e) {
+      LinuxSyscalls.close(fd);
+      throw e;
+    }
+  }
+
+  /**
+   * Maps the ring buffer created by another process, e.g. {@code /proc/<pid>/fd/<fd>}.
+   */
+  public static SharedRingBuffer attach(Path path) throws IOException {
+    var arena = Arena.ofShared();
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      var mapping = channel.map(MapMode.READ_WRITE, 0, channel.size(), arena);
+      if ((long) MAGIC_HANDLE.getAcquire(mapping, 0L) != MAGIC) {
+        throw new IOException(STR."not a ring buffer: \{path}");
+      }
+      return new SharedRingBuffer(arena, -1, mapping);
+    } catch (IOException | RuntimeException e) {
+      arena.close();
+      throw e;
+    }
+  }
+
+  public static SharedRingBuffer attach(long pid, int fd) throws IOException {
+    return attach(Path.of(STR."/proc/\{pid}/fd/\{fd}"));
+  }
+
+  /**
+   * The path other processes can attach to, while this buffer is open.
+   */
+  public Path procPath() {
+    if (fd < 0) {
+      throw new IllegalStateException("attached ring buffer");
+    }
+    return Path.of(STR."/proc/\{ProcessHandle.current().pid()}/fd/\{fd}");
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Largest message, an eighth of the capacity so a padding record cannot starve producers.
+   */
+  public int maxMessageLength() {
+    return capacity / 8 - RECORD_HEADER_SIZE;
+  }
+
+  /**
+   * Appends a copy of the message, returns {@code false} if the buffer is full.
+   */
+  public boolean offer(MemorySegment message) {
+    var length = message.byteSize();
+    if (length > maxMessageLength()) {
+      throw new IllegalArgumentException(STR."message of \{length} bytes exceeds \{maxMessageLength()}");
+    }
+    var recordLength = RECORD_HEADER_SIZE + (int) length;
+    var index = claim(align(recordLength));
+    if (index < 0) {
+      return false;
+    }
+    MemorySegment.copy(message, 0, records, index + RECORD_HEADER_SIZE, length);
+    TYPE.set(records, index, MESSAGE);
+    LENGTH.setRelease(records, index, recordLength);
+    return true;
+  }
+
+  /**
+   * Reserves the space of an aligned record, returns its index or {@code -1} when full.
+   */
+  private long claim(int alignedLength) {
+    while (true) {
+      var head = (long) HEAD.getAcquire(header, 0L);
+      var tail = (long) TAIL.getVolatile(header, 0L);
+      var index = tail & mask;
+      var toEnd = capacity - index;
+      var required = alignedLength <= toEnd ? alignedLength : toEnd + alignedLength;
+      if (tail + required - head > capacity) {
+        return -1;
+      }
+      if (multiProducer) {
+        if (!TAIL.compareAndSet(header, 0L, tail, tail + required)) {
+          continue;
+        }
+      } else {
+        TAIL.setOpaque(header, 0L, tail + required);
+      }
+      if (required == alignedLength) {
+        return index;
+      }
+      TYPE.set(records, index, PADDING);
+      LENGTH.setRelease(records, index, (int) toEnd);
+      return 0;
+    }
+  }
+
+  /**
+   * Hands at most {@code limit} messages to the handler, returns the number of messages.
+   * <p>
+   * Must only be called by the consumer.
+   */
+  public int poll(MessageHandler handler, int limit) {
+    var head = (long) HEAD.get(header, 0L);
+    var initialHead = head;
+    var count = 0;
+    try {
+      while (count < limit) {
+        var index = head & mask;
+        var recordLength = (int) LENGTH.getAcquire(records, index);
+        if (recordLength == 0) {
+          break;
+        }
+        var alignedLength = align(recordLength);
+        if ((int) TYPE.get(records, index) == MESSAGE) {
+          count++;
+          handler.onMessage(records.asSlice(index + RECORD_HEADER_SIZE, recordLength - RECORD_HEADER_SIZE));
+        }
+        records.asSlice(index, alignedLength).fill((byte) 0);
+        head += alignedLength;
+      }
+    } finally {
+      if (head != initialHead) {
+        HEAD.setRelease(header, 0L, head);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Bytes of records not consumed yet, an estimate when producers are active.
+   */
+  public long size() {
+    return (long) TAIL.getVolatile(header, 0L) - (long) HEAD.getVolatile(header, 0L);
+  }
+
+  private static int align(int length) {
+    return (length + 7) & ~7;
+  }
+
+  /**
+   * Unmaps the buffer, and closes the memfd if this process created it.
+   */
+  @Override
+  public void close() {
+    arena.close();
+    if (fd >= 0) {
+      LinuxSyscalls.close(fd);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.jca;
+
+import io.github.bric3.panama.memfdsecret.SecretArena;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.Cleaner;
+import java.security.Key;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory key store of secret keys, the material is held in the secret memory region of the store.
+ * <p>
+ * There is nothing to load nor to store, by design the keys never leave
+ * the process memory, {@code load} must be called with a {@code null} stream.
+ * Passwords are ignored. Deleting or replacing an entry destroys its key.
+ * Only secret keys are supported, no private keys nor certificates.
+ * <p>
+ * {@code getKey} returns a {@link SecretSegmentKey#view() view} of the stored key,
+ * destroying it leaves the entry intact. The store owns its secret memory region,
+ * it is wiped and unmapped once neither the store nor any key obtained from it
+ * is reachable, a key stays usable after the store is dropped.
+ */
+public final class SecretMemoryKeyStore extends KeyStoreSpi {
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  private final Map<String, Entry> entries = Collections.synchronizedMap(new LinkedHashMap<>());
+  private SecretArena arena;
+  // referenced by the store and its keys, the arena is closed once it is unreachable
+  private Object arenaLifetime;
+
+  private record Entry(SecretSegmentKey key, Date creationDate) {}
+
+  @Override
+  public void engineLoad(InputStream stream, char[] password) throws IOException {
+    if (stream != null) {
+      throw new IOException("A secret memory key store cannot be loaded from a stream");
+    }
+    if (arena == null) {
+      var storeArena = SecretMemoryProvider.newArena();
+      arenaLifetime = new Object();
+      CLEANER.register(arenaLifetime, storeArena::close);
+      arena = storeArena;
+    }
+  }
+
+  @Override
+  public void engineStore(OutputStream stream, char[] password) throws IOException {
+    throw new IOException("A secret memory key store cannot be stored");
+  }
+
+  @Override
+  public Key engineGetKey(String alias, char[] password) {
+    var entry = entries.get(alias);
+    return entry == null ? null : entry.key.view();
+  }
+
+  @Override
+  public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) throws KeyStoreException {
+    if (!(key instanceof SecretKey)) {
+      throw new KeyStoreException("Only secret keys are supported, got " + key.getAlgorithm());
+    }
+    SecretSegmentKey secretKey;
+    if (key instanceof SecretSegmentKey segmentKey) {
+      secretKey = SecretSegmentKey.copyOf(segmentKey.getAlgorithm(), segmentKey.segment(), arena, arenaLifetime);
+    } else {
+      var encoded = key.getEncoded();
+      if (encoded == null) {
+        throw new KeyStoreException("Key material is not available: " + key.getAlgorithm());
+      }
+      try {
+        secretKey = SecretSegmentKey.copyOf(key.getAlgorithm(), MemorySegment.ofArray(encoded), arena, arenaLifetime);
+      } finally {
+        Arrays.fill(encoded, (byte) 0);
+      }
+    }
+    var previous = entries.put(alias, new Entry(secretKey, new Date()));
+    if (previous != null) {
+      previous.key.destroy();
+    }
+  }
+
+  @Override
+  public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) throws KeyStoreException {
+    throw new KeyStoreException("Encoded keys are not supported, use a SecretKey");
+  }
+
+  @Override
+  public void engineSetCertificateEntry(String alias, Certificate cert) throws KeyStoreException {
+    throw new KeyStoreException("Certificates are not supported");
+  }
+
+  @Override
+  public void engineDeleteEntry(String alias) {
+    var previous = entries.remove(alias);
+    if (previous != null) {
+      previous.key.destroy();
+    }
+  }
+
+  @Override
+  public Certificate[] engineGetCertificateChain(String alias) {
+    return null;
+  }
+
+  @Override
+  public Certificate engineGetCertificate(String alias) {
+    return null;
+  }
+
+  @Override
+  public Date engineGetCreationDate(String alias) {
+    var entry = entries.get(alias);
+    return entry == null ? null : new Date(entry.creationDate.getTime());
+  }
+
+  @Override
+  public Enumeration<String> engineAliases() {
+    synchronized (entries) {
+      return Collections.enumeration(entries.keySet().stream().toList());
+    }
+  }
+
+  @Override
+  public boolean engineContainsAlias(String alias) {
+    return entries.containsKey(alias);
+  }
+
+  @Override
+  public int engineSize() {
+    return entries.size();
+  }
+
+  @Override
+  public boolean engineIsKeyEntry(String alias) {
+    return entries.containsKey(alias);
+  }
+
+  @Override
+  public boolean engineIsCertificateEntry(String alias) {
+    return false;
+  }
+
+  @Override
+  public String engineGetCertificateAlias(Certificate cert) {
+    return null;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.jca;
+
+import io.github.bric3.panama.memfdsecret.SecretArena;
+
+import java.security.Provider;
+import java.util.List;
+
+/**
+ * JCA provider of secret keys stored in secret memory, see {@link io.github.bric3.panama.memfdsecret.SecureMemory}.
+ * <ul>
+ *   <li>{@code KeyStore} {@value #KEYSTORE_TYPE}, an in-memory key store of {@link SecretSegmentKey}s,
+ *   keys added as other {@link javax.crypto.SecretKey}s are copied in secret memory.</li>
+ *   <li>{@code SecretKeyFactory} for the usual symmetric algorithms, turning a
+ *   {@link javax.crypto.spec.SecretKeySpec} in a {@link SecretSegmentKey}.</li>
+ * </ul>
+ *
+ * <pre><code>
+ * Security.addProvider(new SecretMemoryProvider());
+ * var keyStore = KeyStore.getInstance("SECRETMEM");
+ * keyStore.load(null, null);
+ * keyStore.setKeyEntry("session", key, null, null);
+ * var secretKey = (SecretSegmentKey) keyStore.getKey("session", null);
+ * </code></pre>
+ * <p>
+ * The size of the secret memory region of each key store, and of the region
+ * shared by the key factories, is set by the {@code secretmem.arena.size}
+ * property, 1 MiB by default.
+ */
+public final class SecretMemoryProvider extends Provider {
+  public static final String NAME = "SecretMemory";
+  public static final String KEYSTORE_TYPE = "SECRETMEM";
+  static final long ARENA_SIZE = Long.getLong("secretmem.arena.size", 1024 * 1024);
+
+  private static final List<String> KEY_ALGORITHMS = List.of("AES", "ChaCha20", "HmacSHA256", "HmacSHA384", "HmacSHA512");
+
+  public SecretMemoryProvider() {
+    super(NAME, "1.0", "Secret keys in memfd_secret memory");
+    putService(new Service(this, "KeyStore", KEYSTORE_TYPE, SecretMemoryKeyStore.class.getName(), null, null));
+    for (var algorithm : KEY_ALGORITHMS) {
+      putService(new Service(this, "SecretKeyFactory", algorithm, SecretSegmentKeyFactory.class.getName(), null, null));
+    }
+  }
+
+  static SecretArena newArena() {
+    return SecretArena.create(ARENA_SIZE).orElseThrow(
+            () -> new IllegalStateException("Cannot reserve secret memory, see the standard error")
+    );
+  }
+}
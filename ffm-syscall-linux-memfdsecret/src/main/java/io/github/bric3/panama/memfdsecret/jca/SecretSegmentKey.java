@@ -0,0 +1,149 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.jca;
+
+import io.github.bric3.panama.memfdsecret.SecretArena;
+
+import javax.crypto.SecretKey;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Secret key whose material lives in a {@link SecretArena}, never in the Java heap.
+ * <p>
+ * Native code, e.g. a libcrypto binding, reads the material through
+ * {@link #segment()}. {@link #getEncoded()} is only there for JCA providers
+ * that require the key bytes, each call returns a new heap copy the caller
+ * should wipe.
+ * <p>
+ * {@link #destroy()} wipes the material and gives the memory back to the arena,
+ * except for a {@link #view()} which only stops reading the material of its key.
+ * These keys cannot be serialized.
+ */
+public final class SecretSegmentKey implements SecretKey {
+  private final String algorithm;
+  private final SecretArena arena;
+  /**
+   * The key owning the material, {@code null} unless this key is a view.
+   */
+  private final SecretSegmentKey owner;
+  /**
+   * Object whose reachability keeps the arena open, {@code null} if the arena is closed explicitly.
+   */
+  private final Object arenaLifetime;
+  private MemorySegment material;
+  private boolean destroyed;
+
+  SecretSegmentKey(String algorithm, SecretArena arena, MemorySegment material) {
+    this(algorithm, arena, material, null, null);
+  }
+
+  private SecretSegmentKey(String algorithm, SecretArena arena, MemorySegment material, SecretSegmentKey owner, Object arenaLifetime) {
+    this.algorithm = algorithm;
+    this.arena = arena;
+    this.material = material;
+    this.owner = owner;
+    this.arenaLifetime = arenaLifetime;
+  }
+
+  /**
+   * Copies the material in a new segment of the arena.
+   */
+  public static SecretSegmentKey copyOf(String algorithm, MemorySegment material, SecretArena arena) {
+    return copyOf(algorithm, material, arena, null);
+  }
+
+  /**
+   * Copies the material in a new segment of an arena closed by a cleaner once
+   * {@code arenaLifetime} is unreachable, the key and its views keep it reachable.
+   */
+  static SecretSegmentKey copyOf(String algorithm, MemorySegment material, SecretArena arena, Object arenaLifetime) {
+    if (material.byteSize() == 0) {
+      throw new IllegalArgumentException("empty key material");
+    }
+    var segment = arena.allocate(material.byteSize());
+    MemorySegment.copy(material, 0, segment, 0, material.byteSize());
+    return new SecretSegmentKey(algorithm, arena, segment, null, arenaLifetime);
+  }
+
+  /**
+   * Key reading the material of this key, without owning it.
+   * <p>
+   * Destroying the view leaves this key intact, destroying this key or closing
+   * its arena destroys the view too.
+   */
+  public SecretSegmentKey view() {
+    return new SecretSegmentKey(algorithm, arena, null, owner == null ? this : owner, arenaLifetime);
+  }
+
+  /**
+   * Read-only view of the key material.
+   *
+   * @throws IllegalStateException if the key is destroyed.
+   */
+  public synchronized MemorySegment segment() {
+    if (isDestroyed()) {
+      throw new IllegalStateException("Key destroyed");
+    }
+    return owner == null ? material.asReadOnly() : owner.segment();
+  }
+
+  public synchronized int length() {
+    return (int) segment().byteSize();
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  @Override
+  public String getFormat() {
+    return "RAW";
+  }
+
+  /**
+   * Copies the key material in the Java heap, prefer {@link #segment()}.
+   */
+  @Override
+  public byte[] getEncoded() {
+    return segment().toArray(ValueLayout.JAVA_BYTE);
+  }
+
+  @Override
+  public synchronized void destroy() {
+    if (destroyed) {
+      return;
+    }
+    destroyed = true;
+    if (owner == null) {
+      arena.release(material);
+      material = null;
+    }
+  }
+
+  @Override
+  public synchronized boolean isDestroyed() {
+    return destroyed
+           || !arena.scope().isAlive()
+           || owner != null && owner.isDestroyed();
+  }
+
+  @Override
+  public String toString() {
+    return STR."SecretSegmentKey[\{algorithm}, \{isDestroyed() ? "destroyed" : length() + " bytes"}]";
+  }
+
+  private void writeObject(ObjectOutputStream out) throws NotSerializableException {
+    throw new NotSerializableException(SecretSegmentKey.class.getName());
+  }
+}
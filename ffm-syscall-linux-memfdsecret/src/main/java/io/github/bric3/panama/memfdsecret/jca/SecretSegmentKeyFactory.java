@@ -0,0 +1,74 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.jca;
+
+import io.github.bric3.panama.memfdsecret.SecretArena;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactorySpi;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.foreign.MemorySegment;
+import java.security.InvalidKeyException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+/**
+ * Moves {@link SecretKeySpec} material in secret memory.
+ * <p>
+ * The key spec keeps its own heap copy, callers should drop it as soon as
+ * possible. Keys live in a region shared by all the factories of the process.
+ */
+public final class SecretSegmentKeyFactory extends SecretKeyFactorySpi {
+  @Override
+  protected SecretKey engineGenerateSecret(KeySpec keySpec) throws InvalidKeySpecException {
+    if (!(keySpec instanceof SecretKeySpec spec)) {
+      throw new InvalidKeySpecException("Expected a SecretKeySpec, got " + keySpec);
+    }
+    return copy(spec.getAlgorithm(), spec.getEncoded());
+  }
+
+  @Override
+  protected KeySpec engineGetKeySpec(SecretKey key, Class<?> keySpec) throws InvalidKeySpecException {
+    if (!keySpec.isAssignableFrom(SecretKeySpec.class)) {
+      throw new InvalidKeySpecException("Unsupported key spec " + keySpec);
+    }
+    var encoded = key.getEncoded();
+    try {
+      return new SecretKeySpec(encoded, key.getAlgorithm());
+    } finally {
+      Arrays.fill(encoded, (byte) 0);
+    }
+  }
+
+  @Override
+  protected SecretKey engineTranslateKey(SecretKey key) throws InvalidKeyException {
+    if (key instanceof SecretSegmentKey) {
+      return key;
+    }
+    var encoded = key.getEncoded();
+    if (encoded == null) {
+      throw new InvalidKeyException("Key material is not available: " + key.getAlgorithm());
+    }
+    return copy(key.getAlgorithm(), encoded);
+  }
+
+  private static SecretSegmentKey copy(String algorithm, byte[] encoded) {
+    try {
+      return SecretSegmentKey.copyOf(algorithm, MemorySegment.ofArray(encoded), SharedArena.ARENA);
+    } finally {
+      Arrays.fill(encoded, (byte) 0);
+    }
+  }
+
+  private static final class SharedArena {
+    static final SecretArena ARENA = SecretMemoryProvider.newArena();
+  }
+}
@@ -0,0 +1,419 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.uring;
+
+import io.github.bric3.panama.memfdsecret.Errno;
+import io.github.bric3.panama.memfdsecret.ErrnoException;
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.VarHandle;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.IOVEC;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_POPULATE;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.MAP_SHARED;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_READ;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.PROT_WRITE;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * Asynchronous I/O with io_uring, driven by the raw {@code syscall} downcall.
+ * <p>
+ * The submission and completion queues are rings shared with the kernel,
+ * mapped once at creation. Preparing a read or a write only fills a 64 bytes
+ * submission entry in the mapping; {@link #submit()} publishes all the prepared
+ * entries with a single {@code io_uring_enter}, and completions are read
+ * from the completion ring without any syscall. A batch of thousands of reads
+ * thus costs one syscall, instead of one {@code pread} each.
+ * <p>
+ * Buffers registered with {@link #registerBuffers(MemorySegment...)} are pinned
+ * and mapped by the kernel once, reads and writes on them
+ * ({@link #prepareReadFixed}, {@link #prepareWriteFixed}) skip the per request
+ * page mapping.
+ * <p>
+ * An instance is not thread-safe, it is meant to be driven by one thread.
+ * Buffers must stay alive until their completion is received.
+ *
+ * <pre><code>
+ * try (var ring = IoUring.create(256)) {
+ *   ring.prepareRead(fd, buffer, 0, 42);
+ *   ring.submitAndWait(1);
+ *   ring.complete((userData, result, flags) -> ...);
+ * }
+ * </code></pre>
+ */
+public final class IoUring implements AutoCloseable {
+  // include/uapi/asm-generic/unistd.h, same numbers on x86_64
+  static final long SYS_IO_URING_SETUP = 425;
+  static final long SYS_IO_URING_ENTER = 426;
+  static final long SYS_IO_URING_REGISTER = 427;
+
+  static final long IORING_OFF_SQ_RING = 0;
+  static final long IORING_OFF_CQ_RING = 0x8000000;
+  static final long IORING_OFF_SQES = 0x10000000;
+  static final int IORING_FEAT_SINGLE_MMAP = 1;
+  static final int IORING_ENTER_GETEVENTS = 1;
+  static final int IORING_REGISTER_BUFFERS = 0;
+
+  static final byte IORING_OP_READ_FIXED = 4;
+  static final byte IORING_OP_WRITE_FIXED = 5;
+  static final byte IORING_OP_READ = 22;
+  static final byte IORING_OP_WRITE = 23;
+
+  static final StructLayout SQRING_OFFSETS = MemoryLayout.structLayout(
+          JAVA_INT.withName("head"),
+          JAVA_INT.withName("tail"),
+          JAVA_INT.withName("ring_mask"),
+          JAVA_INT.withName("ring_entries"),
+          JAVA_INT.withName("flags"),
+          JAVA_INT.withName("dropped"),
+          JAVA_INT.withName("array"),
+          JAVA_INT.withName("resv1"),
+          JAVA_LONG.withName("user_addr")
+  ).withName("io_sqring_offsets");
+  static final StructLayout CQRING_OFFSETS = MemoryLayout.structLayout(
+          JAVA_INT.withName("head"),
+          JAVA_INT.withName("tail"),
+          JAVA_INT.withName("ring_mask"),
+          JAVA_INT.withName("ring_entries"),
+          JAVA_INT.withName("overflow"),
+          JAVA_INT.withName("cqes"),
+          JAVA_INT.withName("flags"),
+          JAVA_INT.withName("resv1"),
+          JAVA_LONG.withName("user_addr")
+  ).withName("io_cqring_offsets");
+  static final StructLayout PARAMS = MemoryLayout.structLayout(
+          JAVA_INT.withName("sq_entries"),
+          JAVA_INT.withName("cq_entries"),
+          JAVA_INT.withName("flags"),
+          JAVA_INT.withName("sq_thread_cpu"),
+          JAVA_INT.withName("sq_thread_idle"),
+          JAVA_INT.withName("features"),
+          JAVA_INT.withName("wq_fd"),
+          MemoryLayout.sequenceLayout(3, JAVA_INT).withName("resv"),
+          SQRING_OFFSETS.withName("sq_off"),
+          CQRING_OFFSETS.withName("cq_off")
+  ).withName("io_uring_params");
+  static final StructLayout SQE = MemoryLayout.structLayout(
+          JAVA_BYTE.withName("opcode"),
+          JAVA_BYTE.withName("flags"),
+          JAVA_SHORT.withName("ioprio"),
+          JAVA_INT.withName("fd"),
+          JAVA_LONG.withName("off"),
+          JAVA_LONG.withName("addr"),
+          JAVA_INT.withName("len"),
+          JAVA_INT.withName("rw_flags"),
+          JAVA_LONG.withName("user_data"),
+          JAVA_SHORT.withName("buf_index"),
+          JAVA_SHORT.withName("personality"),
+          JAVA_INT.withName("splice_fd_in"),
+          JAVA_LONG.withName("addr3"),
+          JAVA_LONG.withName("__pad2")
+  ).withName("io_uring_sqe");
+  static final StructLayout CQE = MemoryLayout.structLayout(
+          JAVA_LONG.withName("user_data"),
+          JAVA_INT.withName("res"),
+          JAVA_INT.withName("flags")
+  ).withName("io_uring_cqe");
+
+  private static final long SQE_OPCODE = SQE.byteOffset(PathElement.groupElement("opcode"));
+  private static final long SQE_FD = SQE.byteOffset(PathElement.groupElement("fd"));
+  private static final long SQE_OFF = SQE.byteOffset(PathElement.groupElement("off"));
+  private static final long SQE_ADDR = SQE.byteOffset(PathElement.groupElement("addr"));
+  private static final long SQE_LEN = SQE.byteOffset(PathElement.groupElement("len"));
+  private static final long SQE_USER_DATA = SQE.byteOffset(PathElement.groupElement("user_data"));
+  private static final long SQE_BUF_INDEX = SQE.byteOffset(PathElement.groupElement("buf_index"));
+  private static final long CQE_USER_DATA = CQE.byteOffset(PathElement.groupElement("user_data"));
+  private static final long CQE_RES = CQE.byteOffset(PathElement.groupElement("res"));
+  private static final long CQE_FLAGS = CQE.byteOffset(PathElement.groupElement("flags"));
+
+  // the ring head and tail indexes are shared with the kernel
+  private static final VarHandle RING_INDEX = JAVA_INT.varHandle();
+
+  /**
+   * Receives completions, with primitives only, so that draining the completion queue does not allocate.
+   */
+  @FunctionalInterface
+  public interface CompletionHandler {
+    /**
+     * @param userData the value given when the request was prepared
+     * @param result   the byte count, or {@code -errno}
+     * @param flags    the {@code IORING_CQE_F_*} flags
+     */
+    void onComplete(long userData, int result, int flags);
+  }
+
+  private final Arena arena;
+  private final int fd;
+
+  private final MemorySegment sqRing;
+  private final long sqHeadOffset;
+  private final long sqTailOffset;
+  private final int sqMask;
+  private final int sqEntries;
+  private final MemorySegment sqes;
+
+  private final MemorySegment cqRing;
+  private final long cqHeadOffset;
+  private final long cqTailOffset;
+  private final int cqMask;
+  private final long cqesOffset;
+
+  private int sqTail;
+  private int toSubmit;
+  private int inFlight;
+  private MemorySegment[] registeredBuffers = new MemorySegment[0];
+
+  private IoUring(Arena arena, int fd, MemorySegment params, MemorySegment sqRing, MemorySegment cqRing, MemorySegment sqes) {
+    this.arena = arena;
+    this.fd = fd;
+    this.sqRing = sqRing;
+    this.cqRing = cqRing;
+    this.sqes = sqes;
+
+    var sqOff = params.asSlice(PARAMS.byteOffset(PathElement.groupElement("sq_off")), SQRING_OFFSETS);
+    this.sqHeadOffset = sqOff.get(JAVA_INT, SQRING_OFFSETS.byteOffset(PathElement.groupElement("head")));
+    this.sqTailOffset = sqOff.get(JAVA_INT, SQRING_OFFSETS.byteOffset(PathElement.groupElement("tail")));
+    this.sqMask = sqRing.get(JAVA_INT, sqOff.get(JAVA_INT, SQRING_OFFSETS.byteOffset(PathElement.groupElement("ring_mask"))));
+    this.sqEntries = sqRing.get(JAVA_INT, sqOff.get(JAVA_INT, SQRING_OFFSETS.byteOffset(PathElement.groupElement("ring_entries"))));
+    this.sqTail = (int) RING_INDEX.getAcquire(sqRing, sqTailOffset);
+
+    var cqOff = params.asSlice(PARAMS.byteOffset(PathElement.groupElement("cq_off")), CQRING_OFFSETS);
+    this.cqHeadOffset = cqOff.get(JAVA_INT, CQRING_OFFSETS.byteOffset(PathElement.groupElement("head")));
+    this.cqTailOffset = cqOff.get(JAVA_INT, CQRING_OFFSETS.byteOffset(PathElement.groupElement("tail")));
+    this.cqMask = cqRing.get(JAVA_INT, cqOff.get(JAVA_INT, CQRING_OFFSETS.byteOffset(PathElement.groupElement("ring_mask"))));
+    this.cqesOffset = cqOff.get(JAVA_INT, CQRING_OFFSETS.byteOffset(PathElement.groupElement("cqes")));
+
+    // the submission array indirects ring slots to entries, an identity mapping is enough here
+    var array = sqOff.get(JAVA_INT, SQRING_OFFSETS.byteOffset(PathElement.groupElement("array")));
+    for (int i = 0; i < sqEntries; i++) {
+      sqRing.set(JAVA_INT, array + (long) i * Integer.BYTES, i);
+    }
+  }
+
+  /**
+   * Creates a ring with at least {@code entries} submission entries, rounded to a power of two by the kernel.
+   *
+   * @throws ErrnoException e.g. {@code ENOSYS} before Linux 5.1, or {@code EPERM} if disabled by {@code kernel.io_uring_disabled}
+   */
+  public static IoUring create(int entries) throws ErrnoException {
+    var arena = Arena.ofConfined();
+    var fd = -1;
+    try {
+      var params = arena.allocate(PARAMS);
+      fd = (int) LinuxSyscalls.check(
+              LinuxSyscalls.syscall(SYS_IO_URING_SETUP, entries, params.address()),
+              "io_uring_setup"
+      );
+
+      var sqOff = PARAMS.byteOffset(PathElement.groupElement("sq_off"));
+      var cqOff = PARAMS.byteOffset(PathElement.groupElement("cq_off"));
+      var sqEntries = params.get(JAVA_INT, PARAMS.byteOffset(PathElement.groupElement("sq_entries")));
+      var cqEntries = params.get(JAVA_INT, PARAMS.byteOffset(PathElement.groupElement("cq_entries")));
+      var features = params.get(JAVA_INT, PARAMS.byteOffset(PathElement.groupElement("features")));
+      var sqRingSize = params.get(JAVA_INT, sqOff + SQRING_OFFSETS.byteOffset(PathElement.groupElement("array")))
+                       + (long) sqEntries * Integer.BYTES;
+      var cqRingSize = params.get(JAVA_INT, cqOff + CQRING_OFFSETS.byteOffset(PathElement.groupElement("cqes")))
+                       + cqEntries * CQE.byteSize();
+
+      MemorySegment sqRing;
+      MemorySegment cqRing;
+      if ((features & IORING_FEAT_SINGLE_MMAP) != 0) {
+        // Linux 5.4+, both rings share one mapping
+        sqRing = map(fd, Math.max(sqRingSize, cqRingSize), IORING_OFF_SQ_RING, arena);
+        cqRing = sqRing;
+      } else {
+        sqRing = map(fd, sqRingSize, IORING_OFF_SQ_RING, arena);
+        cqRing = map(fd, cqRingSize, IORING_OFF_CQ_RING, arena);
+      }
+      var sqes = map(fd, sqEntries * SQE.byteSize(), IORING_OFF_SQES, arena);
+      return new IoUring(arena, fd, params, sqRing, cqRing, sqes);
+    } catch (ErrnoException | RuntimeException e) {
+      arena.close();
+      if (fd >= 0) {
+        LinuxSyscalls.close(fd);
+      }
+      throw e;
+    }
+  }
+
+  private static MemorySegment map(int fd, long size, long offset, Arena arena) throws ErrnoException {
+    var address = LinuxSyscalls.check(
+            LinuxSyscalls.mmap(MemorySegment.NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, offset),
+            "mmap"
+    );
+    return MemorySegment.ofAddress(address).reinterpret(size, arena, segment -> LinuxSyscalls.munmap(segment, size));
+  }
+
+  /**
+   * Registers native buffers for fixed reads and writes, their index is their position in the arguments.
+   * <p>
+   * Buffers can only be registered once per ring, a second call fails with {@code EBUSY}.
+   */
+  public void registerBuffers(MemorySegment... buffers) throws ErrnoException {
+    try (var iovArena = Arena.ofConfined()) {
+      var iovecs = iovArena.allocate(IOVEC, buffers.length);
+      for (int i = 0; i < buffers.length; i++) {
+        var iovec = iovecs.asSlice(i * IOVEC.byteSize(), IOVEC);
+        iovec.set(ADDRESS, IOVEC.byteOffset(PathElement.groupElement("iov_base")), buffers[i]);
+        iovec.set(JAVA_LONG, IOVEC.byteOffset(PathElement.groupElement("iov_len")), buffers[i].byteSize());
+      }
+      LinuxSyscalls.check(
+              LinuxSyscalls.syscall(SYS_IO_URING_REGISTER, fd, IORING_REGISTER_BUFFERS, iovecs.address(), buffers.length),
+              "io_uring_register"
+      );
+    }
+    registeredBuffers = buffers.clone();
+  }
+
+  /**
+   * Prepares a read of {@code buffer.byteSize()} bytes at {@code offset}, or at the file position if {@code -1}.
+   *
+   * @return {@code false} if the submission queue is full, submit or complete first
+   */
+  public boolean prepareRead(int fd, MemorySegment buffer, long offset, long userData) {
+    return prepare(IORING_OP_READ, fd, buffer, offset, userData, 0);
+  }
+
+  public boolean prepareWrite(int fd, MemorySegment buffer, long offset, long userData) {
+    return prepare(IORING_OP_WRITE, fd, buffer, offset, userData, 0);
+  }
+
+  /**
+   * Prepares a read in a registered buffer, {@code buffer} is the slice of this buffer to read in.
+   */
+  public boolean prepareReadFixed(int fd, int bufferIndex, MemorySegment buffer, long offset, long userData) {
+    checkRegistered(bufferIndex, buffer);
+    return prepare(IORING_OP_READ_FIXED, fd, buffer, offset, userData, bufferIndex);
+  }
+
+  public boolean prepareWriteFixed(int fd, int bufferIndex, MemorySegment buffer, long offset, long userData) {
+    checkRegistered(bufferIndex, buffer);
+    return prepare(IORING_OP_WRITE_FIXED, fd, buffer, offset, userData, bufferIndex);
+  }
+
+  private void checkRegistered(int bufferIndex, MemorySegment buffer) {
+    var registered = registeredBuffers[bufferIndex];
+    if (buffer.address() < registered.address()
+        || buffer.address() + buffer.byteSize() > registered.address() + registered.byteSize()) {
+      throw new IllegalArgumentException(STR."buffer is not within the registered buffer \{bufferIndex}");
+    }
+  }
+
+  private boolean prepare(byte opcode, int fd, MemorySegment buffer, long offset, long userData, int bufferIndex) {
+    if (!buffer.isNative()) {
+      throw new IllegalArgumentException("buffer must be native");
+    }
+    var head = (int) RING_INDEX.getAcquire(sqRing, sqHeadOffset);
+    if (sqTail - head == sqEntries) {
+      return false;
+    }
+    var sqe = sqes.asSlice((sqTail & sqMask) * SQE.byteSize(), SQE);
+    sqe.fill((byte) 0);
+    sqe.set(JAVA_BYTE, SQE_OPCODE, opcode);
+    sqe.set(JAVA_INT, SQE_FD, fd);
+    sqe.set(JAVA_LONG, SQE_OFF, offset);
+    sqe.set(JAVA_LONG, SQE_ADDR, buffer.address());
+    sqe.set(JAVA_INT, SQE_LEN, (int) Math.min(buffer.byteSize(), Integer.MAX_VALUE));
+    sqe.set(JAVA_LONG, SQE_USER_DATA, userData);
+    sqe.set(JAVA_SHORT, SQE_BUF_INDEX, (short) bufferIndex);
+    sqTail++;
+    toSubmit++;
+    return true;
+  }
+
+  /**
+   * Submits the prepared requests, returns the number of requests the kernel consumed.
+   */
+  public int submit() throws ErrnoException {
+    return enter(0, 0);
+  }
+
+  /**
+   * Submits the prepared requests and waits until at least {@code minComplete} completions are available.
+   */
+  public int submitAndWait(int minComplete) throws ErrnoException {
+    return enter(minComplete, IORING_ENTER_GETEVENTS);
+  }
+
+  private int enter(int minComplete, int flags) throws ErrnoException {
+    // publishes the entries filled since the last submission
+    RING_INDEX.setRelease(sqRing, sqTailOffset, sqTail);
+    long submitted;
+    do {
+      submitted = LinuxSyscalls.syscall(SYS_IO_URING_ENTER, fd, toSubmit, minComplete, flags, 0, 0);
+    } while (submitted == -Errno.EINTR.value());
+    LinuxSyscalls.check(submitted, "io_uring_enter");
+    toSubmit -= (int) submitted;
+    inFlight += (int) submitted;
+    return (int) submitted;
+  }
+
+  /**
+   * Hands the available completions to the handler, without waiting, returns their number.
+   */
+  public int complete(CompletionHandler handler) {
+    var head = (int) RING_INDEX.get(cqRing, cqHeadOffset);
+    var tail = (int) RING_INDEX.getAcquire(cqRing, cqTailOffset);
+    var count = 0;
+    try {
+      while (head != tail) {
+        var cqe = cqesOffset + (head & cqMask) * CQE.byteSize();
+        head++;
+        count++;
+        handler.onComplete(
+                cqRing.get(JAVA_LONG, cqe + CQE_USER_DATA),
+                cqRing.get(JAVA_INT, cqe + CQE_RES),
+                cqRing.get(JAVA_INT, cqe + CQE_FLAGS)
+        );
+      }
+    } finally {
+      // frees the entries for the kernel
+      RING_INDEX.setRelease(cqRing, cqHeadOffset, head);
+      inFlight -= count;
+    }
+    return count;
+  }
+
+  /**
+   * Number of free submission entries.
+   */
+  public int available() {
+    return sqEntries - (sqTail - (int) RING_INDEX.getAcquire(sqRing, sqHeadOffset));
+  }
+
+  /**
+   * Submitted requests whose completion has not been received yet.
+   */
+  public int inFlight() {
+    return inFlight;
+  }
+
+  public int entries() {
+    return sqEntries;
+  }
+
+  /**
+   * Unmaps the rings and closes the ring fd, in flight requests are cancelled by the kernel.
+   */
+  @Override
+  public void close() {
+    arena.close();
+    LinuxSyscalls.close(fd);
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * panama-watch
+ *
+ * Copyright (c) 2021, Today - Brice Dutheil
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package io.github.bric3.panama.memfdsecret.uring;
+
+import io.github.bric3.panama.memfdsecret.ErrnoException;
+import io.github.bric3.panama.memfdsecret.LinuxSyscalls;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.O_CLOEXEC;
+import static io.github.bric3.panama.memfdsecret.LinuxSyscalls.O_RDONLY;
+
+/**
+ * Checksums a file block by block, with many reads in flight on an {@link IoUring}.
+ * <p>
+ * Blocks are read in slots of a single registered buffer, completions arrive
+ * in any order, each block CRC32C is stored at its index and the file checksum
+ * is the CRC32C of the block checksums. The same checksum is then computed with
+ * sequential {@link FileChannel} reads for comparison, the program exits with 1
+ * if they differ.
+ *
+ * <pre><code>
+ * java --enable-preview --enable-native-access=ALL-UNNAMED -cp ... io.github.bric3.panama.memfdsecret.uring.UringChecksum FILE [QUEUE_DEPTH] [BLOCK_SIZE]
+ * </code></pre>
+ */
+public class UringChecksum {
+  public static void main(String[] args) throws IOException {
+    var path = Path.of(args[0]);
+    var queueDepth = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+    var blockSize = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+
+    var size = Files.size(path);
+    // the first rounds include the JIT warmup
+    for (int round = 0; round < 3; round++) {
+      var start = System.nanoTime();
+      var uringChecksum = checksum(path, queueDepth, blockSize);
+      var uringTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      var channelChecksum = channelChecksum(path, blockSize);
+      var channelTime = System.nanoTime() - start;
+
+      System.out.println(STR."io_uring    \{Long.toHexString(uringChecksum)} \{throughput(size, uringTime)} MiB/s, queue depth \{queueDepth}");
+      System.out.println(STR."FileChannel \{Long.toHexString(channelChecksum)} \{throughput(size, channelTime)} MiB/s");
+      if (uringChecksum != channelChecksum) {
+        System.err.println("io_uring and FileChannel checksums differ");
+        System.exit(1);
+      }
+    }
+  }
+
+  static long checksum(Path path, int queueDepth, int blockSize) throws IOException {
+    var size = Files.size(path);
+    var blockCount = (int) ((size + blockSize - 1) / blockSize);
+    var fd = LinuxSyscalls.check(LinuxSyscalls.open(path.toString(), O_RDONLY | O_CLOEXEC), STR."open(\{path})");
+    try (var ring = IoUring.create(queueDepth);
+         var arena = Arena.ofConfined()) {
+      var slots = Math.min(ring.entries(), Math.max(blockCount, 1));
+      var buffer = arena.allocate((long) slots * blockSize, 4096);
+      ring.registerBuffers(buffer);
+
+      var reader = new BlockReader(buffer, blockSize, blockCount, slots);
+      var next = 0;
+      var done = 0;
+      try {
+        while (done < blockCount) {
+          while (next < blockCount && reader.freeCount > 0) {
+            var slot = reader.free[--reader.freeCount];
+            var offset = (long) next * blockSize;
+            var length = Math.min(blockSize, size - offset);
+            ring.prepareReadFixed(fd, 0, buffer.asSlice((long) slot * blockSize, length), offset, userData(next, slot));
+            next++;
+          }
+          ring.submitAndWait(1);
+          done += ring.complete(reader);
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return combine(reader.checksums);
+    } finally {
+      LinuxSyscalls.close(fd);
+    }
+  }
+
+  static long channelChecksum(Path path, int blockSize) throws IOException {
+    try (var channel = FileChannel.open(path)) {
+      var blockCount = (int) ((channel.size() + blockSize - 1) / blockSize);
+      var checksums = new long[blockCount];
+      var block = ByteBuffer.allocateDirect(blockSize);
+      var crc = new CRC32C();
+      for (int i = 0; i < blockCount; i++) {
+        block.clear();
+        while (block.hasRemaining() && channel.read(block) >= 0) {
+          // a block is only short at the end of the file
+        }
+        crc.reset();
+        crc.update(block.flip());
+        checksums[i] = crc.getValue();
+      }
+      return combine(checksums);
+    }
+  }
+
+  private static long userData(int block, int slot) {
+    return (long) block << 32 | slot;
+  }
+
+  private static long combine(long[] checksums) {
+    var crc = new CRC32C();
+    var bytes = ByteBuffer.allocate(checksums.length * Long.BYTES);
+    bytes.asLongBuffer().put(checksums);
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  private static long throughput(long size, long nanos) {
+    return size * 1_000_000_000L / Math.max(nanos, 1) / (1024 * 1024);
+  }
+
+  /**
+   * Checksums completed blocks and recycles their slot.
+   */
+  private static final class BlockReader implements IoUring.CompletionHandler {
+    private final MemorySegment buffer;
+    private final int blockSize;
+    private final long[] checksums;
+    private final int[] free;
+    private int freeCount;
+    private final CRC32C crc = new CRC32C();
+
+    BlockReader(MemorySegment buffer, int blockSize, int blockCount, int slots) {
+      this.buffer = buffer;
+      this.blockSize = blockSize;
+      this.checksums = new long[blockCount];
+      this.free = new int[slots];
+      for (int i = 0; i < slots; i++) {
+        free[freeCount++] = i;
+      }
+    }
+
+    @Override
+    public void onComplete(long userData, int result, int flags) {
+      var block = (int) (userData >>> 32);
+      var slot = (int) userData;
+      if (result < 0) {
+        throw new UncheckedIOException(new ErrnoException(STR."read of block \{block}", -result));
+      }
+      if (result < blockSize && block != checksums.length - 1) {
+        // short reads only happen at the end of regular files
+        throw new UncheckedIOException(new IOException(STR."short read of block \{block}: \{result} bytes"));
+      }
+      crc.reset();
+      crc.update(buffer.asSlice((long) slot * blockSize, result).asByteBuffer());
+      checksums[block] = crc.getValue();
+      free[freeCount++] = slot;
+    }
+  }
+}
@@ -19,6 +19,9 @@ includeBuild("conventions")
 include(
   "ffm-basic-examples",
   "ffm-blake3",
+  "ffm-blake3-jmh",
+  "ffm-offheap-sort",
+  "ffm-offheap-sort-jmh",
   "ffm-syscall-macos",
   "ffm-syscall-linux-memfdsecret",
   "ffm-touchid",